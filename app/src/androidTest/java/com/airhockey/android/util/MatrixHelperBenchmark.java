@@ -0,0 +1,146 @@
+package com.airhockey.android.util;
+
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import static android.opengl.Matrix.*;
+
+/**
+ * Compares the affine kernels in MatrixHelper against the general routines
+ * in android.opengl.Matrix on the device, checking that they agree and
+ * logging the time per call. Run with the other instrumentation tests and
+ * read the results from logcat.
+ */
+public class MatrixHelperBenchmark extends TestCase {
+    private static final String TAG = "MatrixHelperBenchmark";
+    private static final int ITERATIONS = 200000;
+    private static final float EPSILON = 1e-4f;
+    private static final String[] NAMES = {
+            "multiply", "invert", "normal matrix", "Euler rotation of a vector"};
+
+    private final float[] matrices = new float[64 * 16];
+    private final float[] vectors = new float[64 * 4];
+    private final float[] angles = new float[64 * 3];
+    private final float[] result = new float[16];
+    private final float[] temp = new float[16];
+    private final float[] quaternion = new float[4];
+    private float sink;
+
+    @Override
+    protected void setUp() throws Exception {
+        final FastRandom random = new FastRandom(2L);
+        for (int i = 0; i < 64; i++) {
+            // Rigid, so the rigid inverse is valid for every one of them.
+            setRotateM(matrices, i * 16, random.nextFloat() * 360f, random.nextFloat() - 0.5f,
+                    random.nextFloat() - 0.5f, random.nextFloat() - 0.5f);
+            matrices[i * 16 + 12] = random.nextFloat() * 20f - 10f;
+            matrices[i * 16 + 13] = random.nextFloat() * 20f - 10f;
+            matrices[i * 16 + 14] = random.nextFloat() * 20f - 10f;
+            for (int k = 0; k < 3; k++) {
+                vectors[i * 4 + k] = random.nextFloat() - 0.5f;
+                angles[i * 3 + k] = random.nextFloat() * 360f - 180f;
+            }
+        }
+    }
+
+    public void testKernelsMatchMatrix() throws Exception {
+        final float[] expected = new float[16];
+        for (int i = 0; i < 64; i++) {
+            final int lhs = i * 16;
+            final int rhs = ((i + 1) & 63) * 16;
+
+            multiplyMM(expected, 0, matrices, lhs, matrices, rhs);
+            MatrixHelper.multiplyAffineMM(result, 0, matrices, lhs, matrices, rhs);
+            assertMatrixEquals(expected, result, 0, 16);
+
+            invertM(expected, 0, matrices, lhs);
+            MatrixHelper.invertRigidM(result, 0, matrices, lhs);
+            assertMatrixEquals(expected, result, 0, 16);
+
+            invertM(temp, 0, matrices, lhs);
+            transposeM(expected, 0, temp, 0);
+            MatrixHelper.normalMatrixM(result, 0, matrices, lhs);
+            for (int column = 0; column < 3; column++) {
+                assertMatrixEquals(expected, result, column * 4, 3);
+            }
+
+            final float x = angles[i * 3], y = angles[i * 3 + 1], z = angles[i * 3 + 2];
+            setRotateM(expected, 0, -z, 0f, 0f, 1f);
+            rotateM(expected, 0, -y, 0f, 1f, 0f);
+            rotateM(expected, 0, -x, 1f, 0f, 0f);
+            multiplyMV(temp, 0, expected, 0, vectors, i * 4);
+            MatrixHelper.rotateEulerV(result, 0, vectors, i * 4, x, y, z);
+            assertMatrixEquals(temp, result, 0, 3);
+
+            setRotateM(expected, 0, x, vectors[i * 4], vectors[i * 4 + 1], vectors[i * 4 + 2]);
+            MatrixHelper.setRotateQuaternion(quaternion, 0, x,
+                    vectors[i * 4], vectors[i * 4 + 1], vectors[i * 4 + 2]);
+            MatrixHelper.setRotateQuaternionM(result, 0, quaternion, 0);
+            assertMatrixEquals(expected, result, 0, 16);
+        }
+    }
+
+    public void testMatrixAgainstKernels() throws Exception {
+        for (int kernel = 0; kernel < 4; kernel++) {
+            // Warm up both, so the JIT has compiled them before timing.
+            run(kernel, false, ITERATIONS);
+            run(kernel, true, ITERATIONS);
+
+            long startTime = System.nanoTime();
+            run(kernel, false, ITERATIONS);
+            final long matrixNanos = System.nanoTime() - startTime;
+            startTime = System.nanoTime();
+            run(kernel, true, ITERATIONS);
+            final long helperNanos = System.nanoTime() - startTime;
+
+            Log.i(TAG, NAMES[kernel] + ": Matrix " + matrixNanos / ITERATIONS
+                    + " ns, MatrixHelper " + helperNanos / ITERATIONS + " ns per call");
+        }
+    }
+
+    private void run(int kernel, boolean helper, int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            final int lhs = (i & 63) * 16;
+            final int rhs = ((i + 1) & 63) * 16;
+            if (kernel == 0) {
+                if (helper) {
+                    MatrixHelper.multiplyAffineMM(result, 0, matrices, lhs, matrices, rhs);
+                } else {
+                    multiplyMM(result, 0, matrices, lhs, matrices, rhs);
+                }
+            } else if (kernel == 1) {
+                if (helper) {
+                    MatrixHelper.invertRigidM(result, 0, matrices, lhs);
+                } else {
+                    invertM(result, 0, matrices, lhs);
+                }
+            } else if (kernel == 2) {
+                if (helper) {
+                    MatrixHelper.normalMatrixM(result, 0, matrices, lhs);
+                } else {
+                    invertM(temp, 0, matrices, lhs);
+                    transposeM(result, 0, temp, 0);
+                }
+            } else {
+                final int angle = (i & 63) * 3;
+                final int vector = (i & 63) * 4;
+                if (helper) {
+                    MatrixHelper.rotateEulerV(result, 0, vectors, vector,
+                            angles[angle], angles[angle + 1], angles[angle + 2]);
+                } else {
+                    setRotateEulerM(temp, 0, angles[angle], angles[angle + 1], angles[angle + 2]);
+                    multiplyMV(result, 0, temp, 0, vectors, vector);
+                }
+            }
+            sink += result[0];
+        }
+    }
+
+    private static void assertMatrixEquals(float[] expected, float[] actual, int offset,
+                                           int length) {
+        for (int i = offset; i < offset + length; i++) {
+            assertEquals(expected[i], actual[i], EPSILON * Math.max(1f, Math.abs(expected[i])));
+        }
+    }
+}
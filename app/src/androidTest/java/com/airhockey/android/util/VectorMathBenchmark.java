@@ -0,0 +1,86 @@
+package com.airhockey.android.util;
+
+import android.os.Debug;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares picking a sphere and a plane with Geometry against VectorMath
+ * on the device, logging the time and the allocations per call. Run with
+ * the other instrumentation tests and read the results from logcat.
+ */
+public class VectorMathBenchmark extends TestCase {
+    private static final String TAG = "VectorMathBenchmark";
+    private static final int ITERATIONS = 200000;
+
+    private final float[] rays = new float[64 * VectorMath.RAY_COMPONENT_COUNT];
+    private final float[] sphere = {0.5f, 1f, -2f, 0.75f};
+    private final float[] plane = {0f, 0f, 0f, 0f, 1f, 0f};
+    private final float[] result = new float[3];
+    private float sink;
+
+    @Override
+    protected void setUp() throws Exception {
+        final FastRandom random = new FastRandom(1L);
+        for (int i = 0; i < rays.length; i++) {
+            rays[i] = random.nextFloat() * 4f - 2f;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testGeometryAgainstVectorMath() throws Exception {
+        // Warm up both, so the JIT has compiled them before timing.
+        runGeometry(ITERATIONS);
+        runVectorMath(ITERATIONS);
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        long startTime = System.nanoTime();
+        runGeometry(ITERATIONS);
+        final long geometryNanos = System.nanoTime() - startTime;
+        final int geometryAllocations = Debug.getThreadAllocCount();
+
+        Debug.resetThreadAllocCount();
+        startTime = System.nanoTime();
+        runVectorMath(ITERATIONS);
+        final long vectorMathNanos = System.nanoTime() - startTime;
+        final int vectorMathAllocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        Log.i(TAG, "Geometry: " + geometryNanos / ITERATIONS + " ns, "
+                + (float) geometryAllocations / ITERATIONS + " allocations per call");
+        Log.i(TAG, "VectorMath: " + vectorMathNanos / ITERATIONS + " ns, "
+                + (float) vectorMathAllocations / ITERATIONS + " allocations per call");
+        assertEquals(0, vectorMathAllocations);
+    }
+
+    private void runGeometry(int iterations) {
+        final Geometry.Sphere geometrySphere = new Geometry.Sphere(
+                new Geometry.Point(sphere[0], sphere[1], sphere[2]), sphere[3]);
+        final Geometry.Plane geometryPlane = new Geometry.Plane(
+                new Geometry.Point(plane[0], plane[1], plane[2]),
+                new Geometry.Vector(plane[3], plane[4], plane[5]));
+        for (int i = 0; i < iterations; i++) {
+            final int offset = (i & 63) * VectorMath.RAY_COMPONENT_COUNT;
+            final Geometry.Ray ray = new Geometry.Ray(
+                    new Geometry.Point(rays[offset], rays[offset + 1], rays[offset + 2]),
+                    new Geometry.Vector(rays[offset + 3], rays[offset + 4], rays[offset + 5]));
+            if (Geometry.intersects(geometrySphere, ray)) {
+                sink += 1f;
+            }
+            sink += Geometry.intersectionPoint(ray, geometryPlane).x;
+        }
+    }
+
+    private void runVectorMath(int iterations) {
+        for (int i = 0; i < iterations; i++) {
+            final int offset = (i & 63) * VectorMath.RAY_COMPONENT_COUNT;
+            if (VectorMath.intersects(sphere, 0, rays, offset)) {
+                sink += 1f;
+            }
+            VectorMath.intersectionPoint(result, 0, rays, offset, plane, 0);
+            sink += result[0];
+        }
+    }
+}
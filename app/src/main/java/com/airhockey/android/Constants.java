@@ -6,4 +6,5 @@ package com.airhockey.android;
 public class Constants {
     public static final int BYTES_PER_FLOAT = 4;
     public static final int BYTES_PER_SHORT = 2;
+    public static final int BYTES_PER_INT = 4;
 }
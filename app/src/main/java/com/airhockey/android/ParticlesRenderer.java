@@ -2,22 +2,32 @@ package com.airhockey.android;
 
 import android.content.Context;
 import android.graphics.Color;
-import android.graphics.drawable.BitmapDrawable;
 import android.opengl.GLSurfaceView.Renderer;
+import android.util.Log;
 
 import com.airhockey.android.objects.Heightmap;
+import com.airhockey.android.objects.NoiseHeightSource;
+import com.airhockey.android.objects.NoiseTileSource;
 import com.airhockey.android.objects.ParticleShooter;
 import com.airhockey.android.objects.ParticleSystem;
+import com.airhockey.android.objects.PgmTileSource;
 import com.airhockey.android.objects.Skybox;
+import com.airhockey.android.objects.TerrainStreamer;
 import com.airhockey.android.programs.HeightmapShaderProgram;
 import com.airhockey.android.programs.ParticleShaderProgram;
 import com.airhockey.android.programs.SkyboxShaderProgram;
+import com.airhockey.android.util.Camera;
+import com.airhockey.android.util.FrameTimeBudget;
+import com.airhockey.android.util.Frustum;
 import com.airhockey.android.util.Geometry;
 import com.airhockey.android.util.Geometry.Point;
 import com.airhockey.android.util.Geometry.Vector;
-import com.airhockey.android.util.MatrixHelper;
+import com.airhockey.android.util.GlState;
+import com.airhockey.android.util.LoggerConfig;
 import com.airhockey.android.util.TextureHelper;
 
+import java.io.File;
+
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -28,19 +38,22 @@ import static android.opengl.Matrix.*;
  * Created by Jonathan on 6/14/2016.
  */
 public class ParticlesRenderer implements Renderer {
+    private static final String TAG = "ParticlesRenderer";
+    // How often the GL call counts are logged, in frames.
+    private static final int GL_STATS_INTERVAL = 300;
     private final Context context;
     /*private final float[] projectionMatrix = new float[16];
     private final float[] viewMatrix = new float[16];*/
     //private final float[] viewProjectionMatrix = new float[16];
 
-    private final float[] modelMatrix = new float[16];
-    private final float[] viewMatrix = new float[16];
-    private final float[] viewMatrixForSkybox = new float[16];
-    private final float[] projectionMatrix = new float[16];
-    private final float[] tempMatrix = new float[16];
-    private final float[] modelViewProjectionMatrix = new float[16];
-    private final float[] modelViewMatrix = new float[16];
-    private final float[] it_modelViewMatrix = new float[16];
+    // The matrices are only recomputed when the camera moves or the
+    // surface changes, not every frame.
+    private final Camera camera = new Camera(0f, -1.5f, -5f);
+    private final Camera.ModelTransform heightmapTransform =
+            new Camera.ModelTransform(camera, true);
+
+    // Reused for whichever model is being drawn, to skip what's off screen.
+    private final Frustum frustum = new Frustum();
 
     // Particle fields
     private ParticleShaderProgram particleProgram;
@@ -51,6 +64,26 @@ public class ParticlesRenderer implements Renderer {
     long globalStartTime;
     final float angleVarianceInDegrees = 5f;
     final float speedVariance = 1f;
+    // Turn particle directions by random Euler angles, with the corrected
+    // Euler rotation, instead of sampling them evenly from a cone.
+    final boolean eulerParticleDirections = false;
+    final float particleLifetime = 10f;
+    // Move particles on the CPU so they bounce off the terrain, instead of
+    // letting the vertex shader fly them straight through it.
+    final boolean simulateParticlesOnCpu = false;
+    // Largest direction component a particle can have, which sets the
+    // precision of the compact particle vertex layout.
+    final float maxParticleSpeed = 2f;
+    // Particles each shooter emits per second at full quality.
+    final float particlesPerSecond = 300f;
+    // Scales emission and particle count down when frames run slow.
+    private final FrameTimeBudget frameTimeBudget = new FrameTimeBudget(1f / 60f, 0.1f);
+    private long previousFrameTime;
+    private int frameCount;
+    // Where each shooter's particles can reach, for skipping emission while
+    // they are out of view.
+    private final float[] emitterBounds = new float[3 * Frustum.BOX_COMPONENT_COUNT];
+    private final boolean[] emitterVisible = new boolean[3];
     private int particleTexture;
 
     // Skybox fields
@@ -61,9 +94,42 @@ public class ParticlesRenderer implements Renderer {
     // Heightmap fields
     private HeightmapShaderProgram heightmapProgram;
     private Heightmap heightmap;
+    // The heightmap is drawn in full detail out to this distance, and
+    // coarser each time the distance doubles.
+    final float terrainLodDistance = 10f;
+    // Store terrain vertices as 12-byte normalized shorts instead of six
+    // floats.
+    final boolean quantizeTerrainVertices = true;
+    // Draw terrain tiles streamed in around the camera instead of the
+    // single heightmap. Tiles are read from the "terrain" directory of the
+    // app's files.
+    final boolean streamTerrain = false;
+    // Generate the terrain, and any streamed tiles, from noise instead of
+    // loading R.drawable.heightmap and tile files.
+    final boolean generateTerrain = false;
+    final long terrainSeed = 1L;
+    // Roughly how many samples apart the largest generated hills are.
+    final float terrainFeatureSize = 128f;
+    // Quads along each side of a streamed tile, and the tile's size in the
+    // world.
+    final int terrainTileSize = 64;
+    final float terrainTileWorldSize = 25f;
+    final float terrainHeightScale = 10f;
+    // Tiles are kept loaded this many tiles around the camera, as long as
+    // their buffers fit in the byte budget.
+    final int terrainLoadRadius = 4;
+    final long terrainByteBudget = 16 * 1024 * 1024;
+    final int terrainWorkerCount = 2;
+    // Time each frame may spend uploading streamed tiles.
+    final long terrainUploadBudgetNanos = 2000000L;
+    private TerrainStreamer terrainStreamer;
 
     //private final Vector vectorToLight = new Vector(0.30f, 0.35f, -0.89f).normalize();
     final float[] vectorToLight = {0.30f, 0.35f, -0.89f, 0f};
+    // The lights in eye space, as of camera version lightsCameraVersion.
+    private final float[] vectorToLightInEyeSpace = new float[4];
+    private final float[] pointPositionsInEyeSpace = new float[12];
+    private int lightsCameraVersion = -1;
 
     private final float[] pointLightPositions = new float[]{
             -1f, 1f, 0f, 1f,
@@ -77,16 +143,26 @@ public class ParticlesRenderer implements Renderer {
 
     public ParticlesRenderer(Context context) {
         this.context = context;
+
+        final float[] modelMatrix = new float[16];
+        setIdentityM(modelMatrix, 0);
+        scaleM(modelMatrix, 0, 100f, 10f, 100f);
+        heightmapTransform.setModelMatrix(modelMatrix, 0);
     }
 
     @Override
     public void onSurfaceCreated(GL10 gl, EGLConfig config) {
+        // Nothing set through GlState survives a new context.
+        GlState.reset();
         glClearColor(0.0f, 0.0f, 0.0f, 0.0f);
-        glEnable(GL_DEPTH_TEST);
+        GlState.enable(GL_DEPTH_TEST);
+        // LEQUAL lets the skybox pass at the far plane and draws the
+        // terrain the same as LESS, so it is set once rather than switched
+        // around the skybox every frame.
+        GlState.depthFunc(GL_LEQUAL);
 
         // Particle initialization
         particleProgram = new ParticleShaderProgram(context);
-        particleSystem = new ParticleSystem(10000);
         globalStartTime = System.nanoTime();
         final Geometry.Vector particleDirection = new Vector(0f, 0.5f, 0f);
         redParticleShooter = new ParticleShooter(
@@ -94,19 +170,25 @@ public class ParticlesRenderer implements Renderer {
                 particleDirection,
                 Color.rgb(255, 50, 5),
                 angleVarianceInDegrees,
-                speedVariance );
+                speedVariance,
+                false,
+                eulerParticleDirections);
         greenParticleShooter = new ParticleShooter(
                 new Point(0f, 0f, 0f),
                 particleDirection,
                 Color.rgb(25, 255, 25),
                 angleVarianceInDegrees,
-                speedVariance );
+                speedVariance,
+                false,
+                eulerParticleDirections);
         blueParticleShooter = new ParticleShooter(
                 new Point(1f, 0f, 0f),
                 particleDirection,
                 Color.rgb(5, 50, 255),
                 angleVarianceInDegrees,
-                speedVariance );
+                speedVariance,
+                false,
+                eulerParticleDirections);
 
         // load particleTexture for particles
         particleTexture = TextureHelper.loadTexture(context, R.drawable.particle_texture);
@@ -123,9 +205,39 @@ public class ParticlesRenderer implements Renderer {
                         R.drawable.night_bottom, R.drawable.night_top,
                         R.drawable.night_front, R.drawable.night_back});
         // heightmap initialization
-        heightmapProgram = new HeightmapShaderProgram(context);
-        heightmap = new Heightmap(((BitmapDrawable)context.getResources()
-                .getDrawable(R.drawable.heightmap)).getBitmap());
+        heightmapProgram = new HeightmapShaderProgram(context, quantizeTerrainVertices);
+        if (generateTerrain) {
+            heightmap = new Heightmap(
+                    new NoiseHeightSource(terrainSeed, 257, 257, terrainFeatureSize),
+                    quantizeTerrainVertices);
+        } else {
+            heightmap = new Heightmap(context, R.drawable.heightmap, quantizeTerrainVertices);
+        }
+        heightmap.setLevelOfDetail(terrainLodDistance, 100f, 10f, 100f);
+        if (terrainStreamer != null) {
+            // Its buffers went with the old context.
+            terrainStreamer.shutdown();
+            terrainStreamer = null;
+        }
+        if (streamTerrain) {
+            final TerrainStreamer.TileSource tileSource = generateTerrain
+                    ? new NoiseTileSource(terrainSeed, terrainFeatureSize)
+                    : new PgmTileSource(new File(context.getFilesDir(), "terrain"));
+            terrainStreamer = new TerrainStreamer(tileSource, terrainTileSize,
+                    terrainTileWorldSize, terrainHeightScale, terrainLoadRadius,
+                    terrainByteBudget, quantizeTerrainVertices, terrainWorkerCount);
+        }
+
+        particleSystem = new ParticleSystem(10000, particleLifetime, maxParticleSpeed,
+                simulateParticlesOnCpu,
+                simulateParticlesOnCpu
+                        ? heightmap.getHeightField().scaled(100f, 10f, 100f) : null);
+        redParticleShooter.getBounds(particleLifetime, emitterBounds,
+                0 * Frustum.BOX_COMPONENT_COUNT);
+        greenParticleShooter.getBounds(particleLifetime, emitterBounds,
+                1 * Frustum.BOX_COMPONENT_COUNT);
+        blueParticleShooter.getBounds(particleLifetime, emitterBounds,
+                2 * Frustum.BOX_COMPONENT_COUNT);
 
 
     }
@@ -133,13 +245,23 @@ public class ParticlesRenderer implements Renderer {
     @Override
     public void onSurfaceChanged(GL10 gl, int width, int height) {
         glViewport(0, 0, width, height);
-        MatrixHelper.perspectiveM(projectionMatrix, 45, (float) width
-                / (float) height, 1f, 100f);
-        updateViewMatrices();
+        camera.setPerspective(45, (float) width / (float) height, 1f, 100f);
     }
 
     @Override
     public void onDrawFrame(GL10 gl) {
+        final long frameTime = System.nanoTime();
+        if (previousFrameTime != 0) {
+            frameTimeBudget.onFrame((frameTime - previousFrameTime) / 1000000000f);
+        }
+        previousFrameTime = frameTime;
+
+        GlState.beginFrame();
+        if (LoggerConfig.ON && ++frameCount % GL_STATS_INTERVAL == 0) {
+            Log.d(TAG, "GL calls per frame: " + GlState.getIssuedCallCount() + " issued, "
+                    + GlState.getFilteredCallCount() + " filtered");
+        }
+
         //glClear(GL_COLOR_BUFFER_BIT);
         glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
         drawHeightmap();
@@ -150,29 +272,46 @@ public class ParticlesRenderer implements Renderer {
     private void drawParticles() {
         float currentTime = (System.nanoTime() - globalStartTime) / 1000000000f;
 
-        redParticleShooter.addParticles(particleSystem, currentTime, 5);
-        greenParticleShooter.addParticles(particleSystem, currentTime, 5);
-        blueParticleShooter.addParticles(particleSystem, currentTime, 5);
-
         /*setIdentityM(viewMatrix, 0);
         translateM(viewMatrix, 0, 0f, -1.5f, -5f);
         rotateM(viewMatrix, 0, -yRotation, 1f, 0f, 0f);
         rotateM(viewMatrix, 0, -xRotation, 0f, 1f, 0f);
         multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);*/
-        setIdentityM(modelMatrix, 0);
-        updateMvpMatrix();
+        // Particles are drawn without a model matrix.
+        final float[] viewProjectionMatrix = camera.getViewProjectionMatrix();
+
+        // Shooters out of view don't emit; they catch up when they return.
+        frustum.update(viewProjectionMatrix);
+        frustum.cullBoxes(emitterBounds, emitterVisible.length, emitterVisible);
+        final float loadScale = frameTimeBudget.getScale();
+        final float emissionRate = particlesPerSecond * loadScale;
+        if (emitterVisible[0]) {
+            redParticleShooter.emitParticles(particleSystem, currentTime, emissionRate);
+        }
+        if (emitterVisible[1]) {
+            greenParticleShooter.emitParticles(particleSystem, currentTime, emissionRate);
+        }
+        if (emitterVisible[2]) {
+            blueParticleShooter.emitParticles(particleSystem, currentTime, emissionRate);
+        }
+        particleSystem.setParticleBudget(
+                (int) (particleSystem.getMaxParticleCount() * loadScale));
 
-        glEnable(GL_BLEND);
-        glBlendFunc(GL_ONE, GL_ONE);
+        GlState.enable(GL_BLEND);
+        GlState.blendFunc(GL_ONE, GL_ONE);
 
         particleProgram.useProgram();
         //particleProgram.setUniforms(viewProjectionMatrix, currentTime, particleTexture);
-        particleProgram.setUniforms(modelViewProjectionMatrix, currentTime, particleTexture);
+        particleProgram.setUniforms(viewProjectionMatrix,
+                currentTime - particleSystem.getTimeEpoch(),
+                particleSystem.getParticleLifetime(), particleSystem.isSimulatedOnCpu(),
+                particleTexture);
         particleSystem.bindData(particleProgram);
-        glDepthMask(false);
-        particleSystem.draw();
-        glDepthMask(true);
-        glDisable(GL_BLEND);
+        GlState.depthMask(false);
+        particleSystem.draw(currentTime);
+        // Left on, glClear wouldn't clear the depth buffer.
+        GlState.depthMask(true);
+        GlState.disable(GL_BLEND);
     }
 
     public void drawSkybox(){
@@ -180,65 +319,46 @@ public class ParticlesRenderer implements Renderer {
         rotateM(viewMatrix, 0, -yRotation, 1f, 0f, 0f);
         rotateM(viewMatrix, 0, -xRotation, 0f, 1f, 0f);
         multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);*/
-        setIdentityM(modelMatrix, 0);
-        updateMvpMatrixForSkybox();
-
         skyboxProgram.useProgram();
         //skyboxProgram.setUniforms(viewProjectionMatrix, skyboxTexture);
-        skyboxProgram.setUniforms(modelViewProjectionMatrix, skyboxTexture);
+        skyboxProgram.setUniforms(camera.getRotationProjectionMatrix(), skyboxTexture);
         skybox.bindData(skyboxProgram);
-        glDepthFunc(GL_LEQUAL);
         skybox.draw();
-        glDepthFunc(GL_LESS);
     }
 
     private void drawHeightmap() {
-        setIdentityM(modelMatrix, 0);
-        scaleM(modelMatrix, 0, 100f, 10f, 100f);
-        updateMvpMatrix();
         heightmapProgram.useProgram();
         //heightmapProgram.setUniforms(modelViewProjectionMatrix, vectorToLight);
-        // Put the light positions into eye space.
-        final float[] vectorToLightInEyeSpace = new float[4];
-        final float[] pointPositionsInEyeSpace = new float[12];
-        multiplyMV(vectorToLightInEyeSpace, 0, viewMatrix, 0, vectorToLight, 0);
-        multiplyMV(pointPositionsInEyeSpace, 0, viewMatrix, 0, pointLightPositions, 0);
-        multiplyMV(pointPositionsInEyeSpace, 4, viewMatrix, 0, pointLightPositions, 4);
-        multiplyMV(pointPositionsInEyeSpace, 8, viewMatrix, 0, pointLightPositions, 8);
-        heightmapProgram.setUniforms(modelViewMatrix, it_modelViewMatrix,
+        final float[] viewMatrix = camera.getViewMatrix();
+        if (lightsCameraVersion != camera.getVersion()) {
+            // Put the light positions into eye space.
+            multiplyMV(vectorToLightInEyeSpace, 0, viewMatrix, 0, vectorToLight, 0);
+            multiplyMV(pointPositionsInEyeSpace, 0, viewMatrix, 0, pointLightPositions, 0);
+            multiplyMV(pointPositionsInEyeSpace, 4, viewMatrix, 0, pointLightPositions, 4);
+            multiplyMV(pointPositionsInEyeSpace, 8, viewMatrix, 0, pointLightPositions, 8);
+            lightsCameraVersion = camera.getVersion();
+        }
+        final float[] modelViewProjectionMatrix =
+                heightmapTransform.getModelViewProjectionMatrix();
+        heightmapProgram.setUniforms(heightmapTransform.getModelViewMatrix(),
+                heightmapTransform.getNormalMatrix(),
                 modelViewProjectionMatrix, vectorToLightInEyeSpace,
                 pointPositionsInEyeSpace, pointLightColors);
+        final float[] eyePosition = camera.getEyePosition();
+        if (terrainStreamer != null) {
+            terrainStreamer.update(eyePosition[0], eyePosition[2], terrainUploadBudgetNanos);
+            terrainStreamer.draw(heightmapProgram, viewMatrix, camera.getProjectionMatrix());
+            return;
+        }
         heightmap.bindData(heightmapProgram);
-        heightmap.draw();
-
+        // The planes come out in the heightmap's model space, where the
+        // chunk bounds are.
+        frustum.update(modelViewProjectionMatrix);
+        heightmap.draw(frustum, eyePosition[0] / 100f, eyePosition[1] / 10f,
+                eyePosition[2] / 100f);
 
 
-    }
-
-    private void updateViewMatrices() {
-        setIdentityM(viewMatrix, 0);
-        rotateM(viewMatrix, 0, -yRotation, 1f, 0f, 0f);
-        rotateM(viewMatrix, 0, -xRotation, 0f, 1f, 0f);
-        System.arraycopy(viewMatrix, 0, viewMatrixForSkybox, 0, viewMatrix.length);
-
-        // We want the translation to apply to the regular view matrix, and not
-        // the skybox.
-        translateM(viewMatrix, 0, 0, -1.5f, -5f);
-    }
-
-    private void updateMvpMatrix() {
-        multiplyMM(modelViewMatrix, 0, viewMatrix, 0, modelMatrix, 0);
-        invertM(tempMatrix, 0, modelViewMatrix, 0);
-        transposeM(it_modelViewMatrix, 0, tempMatrix, 0);
-        multiplyMM(
-                modelViewProjectionMatrix, 0,
-                projectionMatrix, 0,
-                modelViewMatrix, 0);
-    }
 
-    private void updateMvpMatrixForSkybox() {
-        multiplyMM(tempMatrix, 0, viewMatrixForSkybox, 0, modelMatrix, 0);
-        multiplyMM(modelViewProjectionMatrix, 0, projectionMatrix, 0, tempMatrix, 0);
     }
 
     private float xRotation, yRotation;
@@ -251,7 +371,7 @@ public class ParticlesRenderer implements Renderer {
             yRotation = 90;
         }
 
-        updateViewMatrices();
+        camera.setRotation(xRotation, yRotation);
     }
 
 }
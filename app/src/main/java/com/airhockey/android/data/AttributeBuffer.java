@@ -0,0 +1,14 @@
+package com.airhockey.android.data;
+
+/**
+ * A GPU buffer that vertex attributes can be read from, whether its
+ * contents are fixed or change after creation.
+ */
+public interface AttributeBuffer {
+    /**
+     * Points attributeLocation at componentCount values of type, starting
+     * dataOffset bytes into the buffer and repeating every stride bytes.
+     */
+    void setVertexAttribPointer(int dataOffset, int attributeLocation, int componentCount,
+                                int type, boolean normalized, int stride);
+}
@@ -0,0 +1,123 @@
+package com.airhockey.android.data;
+
+import com.airhockey.android.Constants;
+import com.airhockey.android.util.GlState;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import static android.opengl.GLES20.*;
+
+/**
+ * A vertex buffer object whose contents change after creation. Writes go to
+ * a native copy of the data and only the requested ranges are sent to the
+ * GPU with glBufferSubData.
+ */
+public class DynamicVertexBuffer implements AttributeBuffer {
+    private final int bufferId;
+    private final ByteBuffer byteBuffer;
+    private final FloatBuffer floatBuffer;
+
+    public DynamicVertexBuffer(float[] vertexData) {
+        byteBuffer = allocateNative(vertexData.length * Constants.BYTES_PER_FLOAT);
+        floatBuffer = byteBuffer.asFloatBuffer();
+        floatBuffer.put(vertexData);
+        floatBuffer.position(0);
+        bufferId = createBuffer(byteBuffer);
+    }
+
+    /**
+     * Creates a buffer holding a copy of vertexData, which may be read-only,
+     * such as a mapped cache file.
+     */
+    public DynamicVertexBuffer(ByteBuffer vertexData) {
+        byteBuffer = allocateNative(vertexData.remaining());
+        byteBuffer.put(vertexData.duplicate());
+        byteBuffer.position(0);
+        floatBuffer = byteBuffer.asFloatBuffer();
+        bufferId = createBuffer(byteBuffer);
+    }
+
+    /**
+     * Creates a zero-filled buffer of the given size, for data that will be
+     * written straight into getByteBuffer().
+     */
+    public DynamicVertexBuffer(int sizeInBytes) {
+        byteBuffer = allocateNative(sizeInBytes);
+        floatBuffer = byteBuffer.asFloatBuffer();
+        bufferId = createBuffer(byteBuffer);
+    }
+
+    // Allocates the native copy. We keep it around so that later updates
+    // can be uploaded without allocating.
+    private static ByteBuffer allocateNative(int sizeInBytes) {
+        return ByteBuffer
+                .allocateDirect(sizeInBytes)
+                .order(ByteOrder.nativeOrder());
+    }
+
+    // Creates the GPU buffer with the contents of data, which are already
+    // filled in, so they go up in the one glBufferData.
+    private static int createBuffer(ByteBuffer data) {
+
+        // Allocate a buffer.
+        final int buffers[] = new int[1];
+        glGenBuffers(buffers.length, buffers, 0);
+        if (buffers[0] == 0) {
+            throw new RuntimeException("Could not create a new vertex buffer object.");
+        }
+
+        // Bind to the buffer and transfer the data.
+        GlState.bindBuffer(GL_ARRAY_BUFFER, buffers[0]);
+        glBufferData(GL_ARRAY_BUFFER, data.capacity(), data, GL_DYNAMIC_DRAW);
+        return buffers[0];
+    }
+
+    public void setVertexAttribPointer(int dataOffset, int attributeLocation,
+                                       int componentCount, int stride) {
+        setVertexAttribPointer(dataOffset, attributeLocation, componentCount,
+                GL_FLOAT, false, stride);
+    }
+
+    @Override
+    public void setVertexAttribPointer(int dataOffset, int attributeLocation,
+                                       int componentCount, int type, boolean normalized,
+                                       int stride) {
+        GlState.bindBuffer(GL_ARRAY_BUFFER, bufferId);
+        GlState.vertexAttribPointer(attributeLocation, componentCount, type,
+                normalized, stride, dataOffset);
+    }
+
+    /**
+     * Copies count floats starting at start from vertexData into the same
+     * range of this buffer, and uploads just that range to the GPU.
+     */
+    public void updateBuffer(float[] vertexData, int start, int count) {
+        floatBuffer.position(start);
+        floatBuffer.put(vertexData, start, count);
+        floatBuffer.position(0);
+
+        uploadBytes(start * Constants.BYTES_PER_FLOAT, count * Constants.BYTES_PER_FLOAT);
+    }
+
+    /**
+     * Returns the native copy of the data, for callers that pack their own
+     * vertices. Write with absolute puts and then call uploadBytes.
+     */
+    public ByteBuffer getByteBuffer() {
+        return byteBuffer;
+    }
+
+    /**
+     * Uploads byteCount bytes of the native copy, starting at byteOffset.
+     */
+    public void uploadBytes(int byteOffset, int byteCount) {
+        byteBuffer.position(byteOffset);
+
+        GlState.bindBuffer(GL_ARRAY_BUFFER, bufferId);
+        glBufferSubData(GL_ARRAY_BUFFER, byteOffset, byteCount, byteBuffer);
+
+        byteBuffer.position(0);
+    }
+}
@@ -1,20 +1,17 @@
 package com.airhockey.android.data;
 
 import com.airhockey.android.Constants;
+import com.airhockey.android.util.GlState;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 
 import static android.opengl.GLES20.GL_ELEMENT_ARRAY_BUFFER;
-import static android.opengl.GLES20.GL_FLOAT;
 import static android.opengl.GLES20.GL_STATIC_DRAW;
-import static android.opengl.GLES20.glBindBuffer;
 import static android.opengl.GLES20.glBufferData;
-import static android.opengl.GLES20.glEnableVertexAttribArray;
 import static android.opengl.GLES20.glGenBuffers;
-import static android.opengl.GLES20.glVertexAttribPointer;
 
 /**
  * Created by pixuredlinux3 on 6/20/16.
@@ -33,11 +30,11 @@ public class IndexBuffer {
         bufferId = buffers[0];
 
         // Bind to the buffer.
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
+        GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
 
         // Transfer data to native memory.
         ShortBuffer vertexArray = ByteBuffer
-                .allocateDirect(vertexData.length * Constants.BYTES_PER_FLOAT)
+                .allocateDirect(vertexData.length * Constants.BYTES_PER_SHORT)
                 .order(ByteOrder.nativeOrder())
                 .asShortBuffer()
                 .put(vertexData);
@@ -46,21 +43,65 @@ public class IndexBuffer {
         // Transfer data from native memory to the GPU buffer.
         glBufferData(GL_ELEMENT_ARRAY_BUFFER, vertexArray.capacity() * Constants.BYTES_PER_SHORT,
                 vertexArray, GL_STATIC_DRAW);
+    }
+
+    /**
+     * Creates a buffer of 32-bit indices, for drawing with GL_UNSIGNED_INT
+     * where OES_element_index_uint is available.
+     */
+    public IndexBuffer(int[] vertexData) {
+
+        // Allocate a buffer.
+        final int buffers[] = new int[1];
+        glGenBuffers(buffers.length, buffers, 0);
+        if (buffers[0] == 0) {
+            throw new RuntimeException("Could not create a new vertex buffer object.");
+        }
+        bufferId = buffers[0];
+
+        // Bind to the buffer.
+        GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
 
-        //  Unbind from the buffer when we're done with it.
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+        // Transfer data to native memory.
+        IntBuffer vertexArray = ByteBuffer
+                .allocateDirect(vertexData.length * Constants.BYTES_PER_INT)
+                .order(ByteOrder.nativeOrder())
+                .asIntBuffer()
+                .put(vertexData);
+        vertexArray.position(0);
+
+        // Transfer data from native memory to the GPU buffer.
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, vertexArray.capacity() * Constants.BYTES_PER_INT,
+                vertexArray, GL_STATIC_DRAW);
     }
 
-    public void setVertexAttribPointer(int dataOffset, int attributeLocation,
-                                       int componentCount, int stride) {
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER , bufferId);
-        glVertexAttribPointer(attributeLocation, componentCount, GL_FLOAT,
-                false, stride, dataOffset);
-        glEnableVertexAttribArray(attributeLocation);
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+    /**
+     * Creates a buffer from index data that is already in native memory,
+     * such as a mapped cache file, without copying it first.
+     */
+    public IndexBuffer(ByteBuffer indexData) {
+
+        // Allocate a buffer.
+        final int buffers[] = new int[1];
+        glGenBuffers(buffers.length, buffers, 0);
+        if (buffers[0] == 0) {
+            throw new RuntimeException("Could not create a new vertex buffer object.");
+        }
+        bufferId = buffers[0];
+
+        // Transfer data from native memory to the GPU buffer.
+        GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, buffers[0]);
+        glBufferData(GL_ELEMENT_ARRAY_BUFFER, indexData.remaining(), indexData, GL_STATIC_DRAW);
     }
 
     public int getBufferId() {
         return bufferId;
     }
+
+    /**
+     * Frees the GPU buffer. The buffer can't be used afterwards.
+     */
+    public void delete() {
+        GlState.deleteBuffer(bufferId);
+    }
 }
@@ -1,6 +1,7 @@
 package com.airhockey.android.data;
 
 import com.airhockey.android.Constants;
+import com.airhockey.android.util.GlState;
 
 import java.nio.*;
 
@@ -24,9 +25,8 @@ public class VertexArray {
     public void setVertexAttribPointer(int dataOffset, int attributeLocation,
                                        int componentCount, int stride) {
         floatBuffer.position(dataOffset);
-        glVertexAttribPointer(attributeLocation, componentCount, GL_FLOAT,
+        GlState.vertexAttribPointer(attributeLocation, componentCount, GL_FLOAT,
                 false, stride, floatBuffer);
-        glEnableVertexAttribArray(attributeLocation);
         floatBuffer.position(0);
     }
 
@@ -1,6 +1,7 @@
 package com.airhockey.android.data;
 
 import com.airhockey.android.Constants;
+import com.airhockey.android.util.GlState;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -9,7 +10,7 @@ import static android.opengl.GLES20.*;
 /**
  * Created by pixuredlinux3 on 6/20/16.
  */
-public class VertexBuffer {
+public class VertexBuffer implements AttributeBuffer {
     private final int bufferId;
     public VertexBuffer(float[] vertexData) {
 
@@ -22,7 +23,7 @@ public class VertexBuffer {
         bufferId = buffers[0];
 
         // Bind to the buffer.
-        glBindBuffer(GL_ARRAY_BUFFER, buffers[0]);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, buffers[0]);
 
         // Transfer data to native memory.
         FloatBuffer vertexArray = ByteBuffer
@@ -35,17 +36,46 @@ public class VertexBuffer {
         // Transfer data from native memory to the GPU buffer.
         glBufferData(GL_ARRAY_BUFFER, vertexArray.capacity() * Constants.BYTES_PER_FLOAT,
                 vertexArray, GL_STATIC_DRAW);
+    }
+
+    /**
+     * Creates a buffer from vertex data that is already in native memory,
+     * such as a mapped cache file, without copying it first.
+     */
+    public VertexBuffer(ByteBuffer vertexData) {
+
+        // Allocate a buffer.
+        final int buffers[] = new int[1];
+        glGenBuffers(buffers.length, buffers, 0);
+        if (buffers[0] == 0) {
+            throw new RuntimeException("Could not create a new vertex buffer object.");
+        }
+        bufferId = buffers[0];
 
-        //  Unbind from the buffer when we're done with it.
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        // Transfer data from native memory to the GPU buffer.
+        GlState.bindBuffer(GL_ARRAY_BUFFER, buffers[0]);
+        glBufferData(GL_ARRAY_BUFFER, vertexData.remaining(), vertexData, GL_STATIC_DRAW);
     }
 
     public void setVertexAttribPointer(int dataOffset, int attributeLocation,
                                        int componentCount, int stride) {
-        glBindBuffer(GL_ARRAY_BUFFER, bufferId);
-        glVertexAttribPointer(attributeLocation, componentCount, GL_FLOAT,
-                false, stride, dataOffset);
-        glEnableVertexAttribArray(attributeLocation);
-        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        setVertexAttribPointer(dataOffset, attributeLocation, componentCount,
+                GL_FLOAT, false, stride);
+    }
+
+    @Override
+    public void setVertexAttribPointer(int dataOffset, int attributeLocation,
+                                       int componentCount, int type, boolean normalized,
+                                       int stride) {
+        GlState.bindBuffer(GL_ARRAY_BUFFER, bufferId);
+        GlState.vertexAttribPointer(attributeLocation, componentCount, type,
+                normalized, stride, dataOffset);
+    }
+
+    /**
+     * Frees the GPU buffer. The buffer can't be used afterwards.
+     */
+    public void delete() {
+        GlState.deleteBuffer(bufferId);
     }
 }
@@ -0,0 +1,110 @@
+package com.airhockey.android.objects;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Color;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads heights from the red channel of an image, 8 bits per sample.
+ *
+ * Given an encoded image, it decodes one band of rows at a time with a
+ * BitmapRegionDecoder, so the whole ARGB image never has to be in memory.
+ */
+public class BitmapHeightSource implements HeightSource {
+    private static final int BAND_ROWS = 32;
+
+    private final Bitmap bitmap;
+    private final BitmapRegionDecoder decoder;
+    private final InputStream stream;
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+    private final Rect region = new Rect();
+    private final BitmapFactory.Options options = new BitmapFactory.Options();
+    private int nextRow;
+
+    /**
+     * Reads from an image that has already been decoded. Closing the source
+     * recycles the bitmap.
+     */
+    public BitmapHeightSource(Bitmap bitmap) {
+        this.bitmap = bitmap;
+        this.decoder = null;
+        this.stream = null;
+        width = bitmap.getWidth();
+        height = bitmap.getHeight();
+        pixels = new int[width * Math.min(BAND_ROWS, height)];
+    }
+
+    /**
+     * Reads from an encoded PNG or JPEG image, band by band. Closing the
+     * source closes stream.
+     */
+    public BitmapHeightSource(InputStream stream) throws IOException {
+        this.bitmap = null;
+        this.stream = stream;
+        decoder = BitmapRegionDecoder.newInstance(stream, false);
+        if (decoder == null) {
+            stream.close();
+            throw new IOException("Could not decode heightmap image.");
+        }
+        width = decoder.getWidth();
+        height = decoder.getHeight();
+        pixels = new int[width * Math.min(BAND_ROWS, height)];
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRows(float[] heights, int offset, int rowCount) throws IOException {
+        if (nextRow + rowCount > height) {
+            throw new IllegalArgumentException("Only " + (height - nextRow) + " rows are left.");
+        }
+        while (rowCount > 0) {
+            final int bandRows = Math.min(BAND_ROWS, rowCount);
+            if (decoder != null) {
+                region.set(0, nextRow, width, nextRow + bandRows);
+                final Bitmap band = decoder.decodeRegion(region, options);
+                if (band == null) {
+                    throw new IOException("Could not decode heightmap rows from " + nextRow);
+                }
+                band.getPixels(pixels, 0, width, 0, 0, width, bandRows);
+                band.recycle();
+            } else {
+                bitmap.getPixels(pixels, 0, width, 0, nextRow, width, bandRows);
+            }
+
+            final int count = bandRows * width;
+            for (int i = 0; i < count; i++) {
+                heights[offset + i] = (float) Color.red(pixels[i]) / (float) 255;
+            }
+            offset += count;
+            nextRow += bandRows;
+            rowCount -= bandRows;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (decoder != null) {
+            decoder.recycle();
+            stream.close();
+        } else {
+            bitmap.recycle();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.airhockey.android.objects;
+
+import com.airhockey.android.util.FastRandom;
+import com.airhockey.android.util.Geometry;
+
+/**
+ * Samples velocities uniformly inside a cone around a base direction, with
+ * the speed scaled by a random factor between 1 and 1 + speedVariance.
+ *
+ * The cone is sampled directly: the angle from the axis is drawn so that
+ * the directions are spread evenly over the spherical cap, and the angle
+ * around the axis comes from a precomputed sine/cosine table. No rotation
+ * matrices are built and nothing is allocated per sample.
+ */
+public class ConeDirectionSampler implements DirectionSampler {
+    private static final int AZIMUTH_TABLE_BITS = 10;
+    private static final int AZIMUTH_TABLE_SIZE = 1 << AZIMUTH_TABLE_BITS;
+    private static final float[] AZIMUTH_COS = new float[AZIMUTH_TABLE_SIZE];
+    private static final float[] AZIMUTH_SIN = new float[AZIMUTH_TABLE_SIZE];
+
+    static {
+        for (int i = 0; i < AZIMUTH_TABLE_SIZE; i++) {
+            final double angle = 2.0 * Math.PI * i / AZIMUTH_TABLE_SIZE;
+            AZIMUTH_COS[i] = (float) Math.cos(angle);
+            AZIMUTH_SIN[i] = (float) Math.sin(angle);
+        }
+    }
+
+    private final FastRandom random;
+    private final float speed;
+    private final float speedVariance;
+    private final float maxAngle;
+    private final float oneMinusCosMaxAngle;
+
+    // Orthonormal basis: w is the cone axis, u and v span the plane
+    // perpendicular to it.
+    private final float wx, wy, wz;
+    private final float ux, uy, uz;
+    private final float vx, vy, vz;
+
+    /**
+     * @param angleVarianceInDegrees the full opening angle of the cone; the
+     *                               particles deviate from direction by at
+     *                               most half of this.
+     */
+    public ConeDirectionSampler(Geometry.Vector direction, float angleVarianceInDegrees,
+                                float speedVariance, FastRandom random) {
+        this.random = random;
+        this.speed = direction.length();
+        this.speedVariance = speedVariance;
+        if (speed == 0f) {
+            throw new IllegalArgumentException("The direction must not be zero.");
+        }
+
+        final double maxAngle = Math.toRadians(angleVarianceInDegrees / 2.0);
+        this.maxAngle = (float) maxAngle;
+        this.oneMinusCosMaxAngle = (float) (1.0 - Math.cos(maxAngle));
+
+        wx = direction.x / speed;
+        wy = direction.y / speed;
+        wz = direction.z / speed;
+
+        // Start from whichever world axis is least parallel to w.
+        float ax = 0f, ay = 0f, az = 0f;
+        if (Math.abs(wx) <= Math.abs(wy) && Math.abs(wx) <= Math.abs(wz)) {
+            ax = 1f;
+        } else if (Math.abs(wy) <= Math.abs(wz)) {
+            ay = 1f;
+        } else {
+            az = 1f;
+        }
+        // u = normalize(a x w), v = w x u
+        float cx = ay * wz - az * wy;
+        float cy = az * wx - ax * wz;
+        float cz = ax * wy - ay * wx;
+        final float length = (float) Math.sqrt(cx * cx + cy * cy + cz * cz);
+        ux = cx / length;
+        uy = cy / length;
+        uz = cz / length;
+        vx = wy * uz - wz * uy;
+        vy = wz * ux - wx * uz;
+        vz = wx * uy - wy * ux;
+    }
+
+    @Override
+    public void sample(float[] out, int offset) {
+        final float cosTheta = 1f - random.nextFloat() * oneMinusCosMaxAngle;
+        final float sinTheta = (float) Math.sqrt(Math.max(0f, 1f - cosTheta * cosTheta));
+        final int azimuth = random.nextInt() >>> (32 - AZIMUTH_TABLE_BITS);
+        final float a = AZIMUTH_COS[azimuth] * sinTheta;
+        final float b = AZIMUTH_SIN[azimuth] * sinTheta;
+        final float scale = speed * (1f + random.nextFloat() * speedVariance);
+
+        out[offset] = (wx * cosTheta + ux * a + vx * b) * scale;
+        out[offset + 1] = (wy * cosTheta + uy * a + vy * b) * scale;
+        out[offset + 2] = (wz * cosTheta + uz * a + vz * b) * scale;
+    }
+
+    @Override
+    public void getBounds(float[] bounds, int offset) {
+        getConeBounds(wx, wy, wz, maxAngle, speed, speedVariance, bounds, offset);
+    }
+
+    /**
+     * Writes the box holding every velocity within maxAngle radians of the
+     * unit axis w, at speeds from speed to speed * (1 + speedVariance).
+     */
+    static void getConeBounds(float wx, float wy, float wz, float maxAngle, float speed,
+                              float speedVariance, float[] bounds, int offset) {
+        getAxisBounds(wx, maxAngle, speed, speedVariance, bounds, offset);
+        getAxisBounds(wy, maxAngle, speed, speedVariance, bounds, offset + 1);
+        getAxisBounds(wz, maxAngle, speed, speedVariance, bounds, offset + 2);
+    }
+
+    private static void getAxisBounds(float axisComponent, float maxAngle, float speed,
+                                      float speedVariance, float[] bounds, int offset) {
+        // Unit directions within maxAngle of the axis have components
+        // between the cosines of the axis's own angle plus and minus maxAngle.
+        final float angle = (float) Math.acos(Math.max(-1f, Math.min(1f, axisComponent)));
+        final float minComponent = (float) Math.cos(Math.min((float) Math.PI, angle + maxAngle));
+        final float maxComponent = (float) Math.cos(Math.max(0f, angle - maxAngle));
+        final float maxSpeed = speed * (1f + speedVariance);
+
+        bounds[offset] = minComponent * (minComponent >= 0f ? speed : maxSpeed);
+        bounds[offset + 3] = maxComponent * (maxComponent >= 0f ? maxSpeed : speed);
+    }
+}
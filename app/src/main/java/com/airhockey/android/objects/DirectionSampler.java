@@ -0,0 +1,18 @@
+package com.airhockey.android.objects;
+
+/**
+ * Picks the initial velocity of each particle a shooter emits.
+ */
+public interface DirectionSampler {
+    /**
+     * Writes the x, y and z components of the next velocity into out,
+     * starting at offset.
+     */
+    void sample(float[] out, int offset);
+
+    /**
+     * Writes a box that holds every velocity this sampler can return, as
+     * minX, minY, minZ, maxX, maxY, maxZ, starting at offset.
+     */
+    void getBounds(float[] bounds, int offset);
+}
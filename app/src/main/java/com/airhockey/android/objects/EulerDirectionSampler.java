@@ -0,0 +1,58 @@
+package com.airhockey.android.objects;
+
+import com.airhockey.android.util.FastRandom;
+import com.airhockey.android.util.Geometry;
+import com.airhockey.android.util.MatrixHelper;
+
+/**
+ * Turns the base direction by three random Euler angles, each within half
+ * the angle variance either way, and scales the speed by a random factor
+ * between 1 and 1 + speedVariance.
+ *
+ * Shooters first picked directions this way with setRotateEulerM, but
+ * that matrix isn't a pure rotation. This sampler uses the corrected
+ * rotation of setRotateEulerM2, applied straight to the vector with
+ * MatrixHelper.rotateEulerV, so the spread is close to the original but
+ * not the same. Directions bunch up towards the middle more than with
+ * ConeDirectionSampler, and the spread is not round.
+ */
+public class EulerDirectionSampler implements DirectionSampler {
+    private final FastRandom random;
+    private final float[] direction;
+    private final float angleVariance;
+    private final float speedVariance;
+
+    public EulerDirectionSampler(Geometry.Vector direction, float angleVarianceInDegrees,
+                                 float speedVariance, FastRandom random) {
+        if (direction.length() == 0f) {
+            throw new IllegalArgumentException("The direction must not be zero.");
+        }
+        this.random = random;
+        this.direction = new float[]{direction.x, direction.y, direction.z};
+        this.angleVariance = angleVarianceInDegrees;
+        this.speedVariance = speedVariance;
+    }
+
+    @Override
+    public void sample(float[] out, int offset) {
+        MatrixHelper.rotateEulerV(out, offset, direction, 0,
+                (random.nextFloat() - 0.5f) * angleVariance,
+                (random.nextFloat() - 0.5f) * angleVariance,
+                (random.nextFloat() - 0.5f) * angleVariance);
+        final float speedAdjustment = 1f + random.nextFloat() * speedVariance;
+        out[offset] *= speedAdjustment;
+        out[offset + 1] *= speedAdjustment;
+        out[offset + 2] *= speedAdjustment;
+    }
+
+    @Override
+    public void getBounds(float[] bounds, int offset) {
+        // Three turns of at most half the variance each can't move the
+        // direction further than their sum.
+        final float speed = (float) Math.sqrt(direction[0] * direction[0]
+                + direction[1] * direction[1] + direction[2] * direction[2]);
+        final float maxAngle = (float) Math.min(Math.PI, Math.toRadians(1.5 * angleVariance));
+        ConeDirectionSampler.getConeBounds(direction[0] / speed, direction[1] / speed,
+                direction[2] / speed, maxAngle, speed, speedVariance, bounds, offset);
+    }
+}
@@ -0,0 +1,25 @@
+package com.airhockey.android.objects;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Supplies the heights of a terrain a few rows at a time, so that a map can
+ * be read without decoding all of its source into memory first.
+ *
+ * Heights are normalized to the range 0 to 1. Rows are read in order, from
+ * row 0 down, and the grid doesn't need to be square.
+ */
+public interface HeightSource extends Closeable {
+    /** Returns the number of heights in each row. */
+    int getWidth();
+
+    /** Returns the number of rows. */
+    int getHeight();
+
+    /**
+     * Reads the next rowCount rows into heights, starting at offset, with
+     * getWidth() heights per row.
+     */
+    void readRows(float[] heights, int offset, int rowCount) throws IOException;
+}
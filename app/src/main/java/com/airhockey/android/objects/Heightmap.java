@@ -1,26 +1,85 @@
 package com.airhockey.android.objects;
 
+import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Color;
+import android.util.Log;
 import static android.opengl.GLES20.*;
 
 import com.airhockey.android.Constants;
+import com.airhockey.android.data.AttributeBuffer;
+import com.airhockey.android.data.DynamicVertexBuffer;
 import com.airhockey.android.data.IndexBuffer;
 import com.airhockey.android.data.VertexBuffer;
 import com.airhockey.android.programs.HeightmapShaderProgram;
-import com.airhockey.android.util.Geometry;
+import com.airhockey.android.util.BoundingVolumeHierarchy;
+import com.airhockey.android.util.Frustum;
+import com.airhockey.android.util.GlState;
+import com.airhockey.android.util.HeightField;
+import com.airhockey.android.util.LoggerConfig;
+import com.airhockey.android.util.VertexCacheOptimizer;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
 
 /**
  * Created by pixuredlinux3 on 6/20/16.
+ *
+ * The terrain is split into chunks of up to TerrainMeshBuilder.DEFAULT_CHUNK_SIZE
+ * quads on a side, each with its own range of the vertex buffer, so the
+ * size of the map is no longer limited by 16-bit indices. Where
+ * OES_element_index_uint is available every chunk is drawn from one set of
+ * attribute pointers with 32-bit indices; otherwise the chunks share short
+ * index patterns and the attribute pointers are moved to each chunk's
+ * first vertex before it is drawn.
+ *
+ * With a level of detail set, chunks further from the eye are drawn from
+ * decimated, stitched index patterns (see TerrainLodIndices). Those are
+ * always short patterns drawn per chunk.
+ *
+ * Heights come from a HeightSource, read a band of rows at a time: the red
+ * channel of an image, or 16-bit and float samples for terrain that needs
+ * more than 256 levels, or NoiseHeightSource to generate them.
+ *
+ * A deformable heightmap keeps its vertices in a dynamic buffer, so that
+ * heights can be changed while it is in use. Only the changed vertices and
+ * their neighbours are rebuilt, and only their bytes are uploaded again.
  */
 public class Heightmap {
+    private static final String TAG = "Heightmap";
     private static final int POSITION_COMPONENT_COUNT = 3;
 
     private final int width;
     private final int height;
-    private final int numElements;
-    private final VertexBuffer vertexBuffer;
+    private final boolean useIntIndices;
+    private final boolean quantizedVertices;
+    private final TerrainChunk[] chunks;
+    private final int[] indexOffsets;
+    private final int[] indexCounts;
+    private final float[] chunkBounds;
+    private final boolean[] chunkVisible;
+    // Over chunkBounds, so that culling skips whole groups of chunks.
+    private final BoundingVolumeHierarchy chunkTree;
+    private final AttributeBuffer vertexBuffer;
+    // Only for deformable heightmaps.
+    private final DynamicVertexBuffer dynamicVertexBuffer;
+    private final float[] heights;
+    private final int[] dirtyRanges;
     private final IndexBuffer indexBuffer;
+    private final int chunkRows;
+    private final int chunkColumns;
+    private final TerrainLodIndices lodIndices;
+    private final IndexBuffer lodIndexBuffer;
+    private final int[] chunkLevels;
+    private final HeightField heightField;
+
+    // Level of detail: full detail within lodDistance of the eye, in world
+    // units, then one level coarser each time the distance doubles.
+    private float lodDistance;
+    private float scaleX = 1f, scaleY = 1f, scaleZ = 1f;
+    private int drawnTriangleCount;
+
+    private int positionAttributeLocation;
+    private int normalAttributeLocation;
 
     private static final int NORMAL_COMPONENT_COUNT = 3;
     private static final int TOTAL_COMPONENT_COUNT =
@@ -30,103 +89,331 @@ public class Heightmap {
 
 
     public Heightmap(Bitmap bitmap){
-        width = bitmap.getWidth();
-        height = bitmap.getHeight();
-
-        if (width * height > 65536) {
-            throw new RuntimeException("Heightmap is too large for the index buffer.");
-        }
-        numElements = calculateNumElements();
-        vertexBuffer = new VertexBuffer(loadBitmapData(bitmap));
-        indexBuffer = new IndexBuffer(createIndexData());
-    }
-
-    private float[] loadBitmapData(Bitmap bitmap){
-        final int[] pixels = new int[width * height];
-        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
-        bitmap.recycle();
-        final float[] heightmapVertices =
-                new float[width * height * TOTAL_COMPONENT_COUNT];
-        int offset = 0;
-
-        // read in all bitmap data
-        for (int row = 0; row < height; row++) {
-            for (int col = 0; col < width; col++) {
-                final float xPosition = ((float)col / (float)(width - 1)) - 0.5f;
-                final float yPosition =
-                        (float) Color.red(pixels[(row * height) + col]) / (float)255;
-                final float zPosition = ((float)row / (float)(height - 1)) - 0.5f;
-                /*heightmapVertices[offset++] = xPosition;
-                heightmapVertices[offset++] = yPosition;
-                heightmapVertices[offset++] = zPosition;*/
-
-                final Geometry.Point point = getPoint(pixels, row, col);
-                heightmapVertices[offset++] = point.x;
-                heightmapVertices[offset++] = point.y;
-                heightmapVertices[offset++] = point.z;
-
-                final Geometry.Point top = getPoint(pixels, row - 1, col);
-                final Geometry.Point left = getPoint(pixels, row, col - 1);
-                final Geometry.Point right = getPoint(pixels, row, col + 1);
-                final Geometry.Point bottom = getPoint(pixels, row + 1, col);
-                final Geometry.Vector rightToLeft = Geometry.vectorBetween(right, left);
-                final Geometry.Vector topToBottom = Geometry.vectorBetween(top, bottom);
-                final Geometry.Vector normal = rightToLeft.crossProduct(topToBottom).normalize();
-                heightmapVertices[offset++] = normal.x;
-                heightmapVertices[offset++] = normal.y;
-                heightmapVertices[offset++] = normal.z;
+        this(new BitmapHeightSource(bitmap));
+    }
+
+    /**
+     * Builds the terrain from every row of source, then closes it.
+     */
+    public Heightmap(HeightSource source) {
+        this(source, false);
+    }
+
+    /**
+     * Builds the terrain from every row of source, then closes it.
+     *
+     * @param quantizedVertices true to store the vertices in the 12-byte
+     *                          quantized layout.
+     */
+    public Heightmap(HeightSource source, boolean quantizedVertices) {
+        this(buildTerrain(source, supportsIntIndices(), quantizedVertices), false);
+    }
+
+    /**
+     * Loads the heightmap resourceId: an image among the drawables, or a
+     * binary PGM among the raw resources. The built mesh is kept in the
+     * app's cache directory and reused for as long as the resource and the
+     * build settings stay the same.
+     */
+    public Heightmap(Context context, int resourceId) {
+        this(context, resourceId, false);
+    }
+
+    /**
+     * @param quantizedVertices true to store the vertices in the 12-byte
+     *                          quantized layout, which must be drawn with a
+     *                          HeightmapShaderProgram created for it.
+     */
+    public Heightmap(Context context, int resourceId, boolean quantizedVertices) {
+        this(context, resourceId, quantizedVertices, false);
+    }
+
+    /**
+     * @param deformable true to allow setHeights and addCrater.
+     */
+    public Heightmap(Context context, int resourceId, boolean quantizedVertices,
+                     boolean deformable) {
+        this(loadTerrain(context, resourceId, quantizedVertices), deformable);
+    }
+
+    private Heightmap(TerrainMeshCache.Entry terrain, boolean deformable) {
+        final TerrainMesh mesh = terrain.mesh;
+        width = mesh.width;
+        height = mesh.height;
+        useIntIndices = mesh.hasIntIndices();
+        quantizedVertices = mesh.quantizedVertices;
+        heights = terrain.heights;
+        heightField = new HeightField(heights, width, height);
+
+        chunks = mesh.chunks;
+        indexOffsets = mesh.indexOffsets;
+        indexCounts = mesh.indexCounts;
+        chunkRows = mesh.chunkRows;
+        chunkColumns = mesh.chunkColumns;
+        chunkLevels = new int[chunks.length];
+        chunkBounds = new float[chunks.length * Frustum.BOX_COMPONENT_COUNT];
+        for (int i = 0; i < chunks.length; i++) {
+            final int offset = i * Frustum.BOX_COMPONENT_COUNT;
+            chunkBounds[offset] = chunks[i].minX;
+            chunkBounds[offset + 1] = chunks[i].minY;
+            chunkBounds[offset + 2] = chunks[i].minZ;
+            chunkBounds[offset + 3] = chunks[i].maxX;
+            chunkBounds[offset + 4] = chunks[i].maxY;
+            chunkBounds[offset + 5] = chunks[i].maxZ;
+        }
+        chunkVisible = new boolean[chunks.length];
+        chunkTree = new BoundingVolumeHierarchy(chunkBounds, chunks.length);
+        if (deformable) {
+            // A copy that can be written to; the mesh may be a read-only
+            // mapping of the cache file.
+            dynamicVertexBuffer = mesh.vertexData != null
+                    ? new DynamicVertexBuffer(mesh.vertexData)
+                    : new DynamicVertexBuffer(mesh.vertices);
+            vertexBuffer = dynamicVertexBuffer;
+            dirtyRanges = new int[chunks.length * 2];
+        } else {
+            dynamicVertexBuffer = null;
+            dirtyRanges = null;
+            // Read from the cache; upload straight from the mapped file.
+            vertexBuffer = mesh.vertexData != null
+                    ? new VertexBuffer(mesh.vertexData) : new VertexBuffer(mesh.vertices);
+        }
+        if (mesh.indexData != null) {
+            indexBuffer = new IndexBuffer(mesh.indexData);
+        } else {
+            indexBuffer = useIntIndices
+                    ? new IndexBuffer(mesh.intIndices) : new IndexBuffer(mesh.shortIndices);
+        }
+        lodIndices = new TerrainLodIndices(mesh);
+        lodIndexBuffer = new IndexBuffer(lodIndices.indices);
+
+        if (LoggerConfig.ON) {
+            final int[] firstChunk = TerrainIndexBuilder.buildGridIndices(
+                    chunks[0].columns, chunks[0].rows, TerrainIndexBuilder.DEFAULT_ORDERING);
+            Log.v(TAG, "Terrain chunk ACMR: " + VertexCacheOptimizer.averageCacheMissRatio(
+                    firstChunk, VertexCacheOptimizer.DEFAULT_CACHE_SIZE));
+        }
+    }
+
+    private static boolean supportsIntIndices() {
+        final String extensions = glGetString(GL_EXTENSIONS);
+        return extensions != null && extensions.contains("GL_OES_element_index_uint");
+    }
+
+    private static TerrainMeshCache.Entry loadTerrain(Context context, int resourceId,
+                                                      boolean quantizedVertices) {
+        final long startTime = System.nanoTime();
+        final boolean intIndices = supportsIntIndices();
+        final TerrainMeshCache cache = new TerrainMeshCache(context.getCacheDir());
+        final long key = TerrainMeshCache.computeKey(
+                context.getResources().openRawResource(resourceId),
+                TerrainMeshBuilder.DEFAULT_CHUNK_SIZE, TerrainIndexBuilder.DEFAULT_ORDERING,
+                intIndices ? 1 : 0, quantizedVertices ? 1 : 0);
+
+        TerrainMeshCache.Entry terrain = cache.load(key);
+        final boolean cached = terrain != null;
+        if (!cached) {
+            terrain = buildTerrain(openHeightSource(context, resourceId), intIndices,
+                    quantizedVertices);
+            cache.store(key, terrain.heights, terrain.mesh);
+        }
+
+        if (LoggerConfig.ON) {
+            Log.v(TAG, (cached ? "Loaded cached terrain in " : "Built terrain in ")
+                    + (System.nanoTime() - startTime) / 1000000 + " ms");
+        }
+        return terrain;
+    }
+
+    private static HeightSource openHeightSource(Context context, int resourceId) {
+        try {
+            if ("raw".equals(context.getResources().getResourceTypeName(resourceId))) {
+                return RawHeightSource.openPgm(Channels.newChannel(
+                        context.getResources().openRawResource(resourceId)));
             }
+            return new BitmapHeightSource(context.getResources().openRawResource(resourceId));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open heightmap resource " + resourceId, e);
         }
+    }
 
-        return heightmapVertices;
+    private static TerrainMeshCache.Entry buildTerrain(HeightSource source, boolean intIndices,
+                                                       boolean quantizedVertices) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+        final float[] heights = new float[width * height];
+        try {
+            try {
+                source.readRows(heights, 0, height);
+            } finally {
+                source.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read heightmap.", e);
+        }
+        final TerrainMesh mesh = TerrainMeshBuilder.buildChunkedMesh(
+                heights, width, height, TerrainMeshBuilder.DEFAULT_CHUNK_SIZE, intIndices);
+        return new TerrainMeshCache.Entry(heights,
+                quantizedVertices ? TerrainMeshBuilder.quantize(mesh) : mesh);
     }
 
-    private Geometry.Point getPoint(int[] pixels, int row, int col) {
-        float x = ((float)col / (float)(width - 1)) - 0.5f;
-        float z = ((float)row / (float)(height - 1)) - 0.5f;
-        row = clamp(row, 0, width - 1);
-        col = clamp(col, 0, height - 1);
-        float y = (float)Color.red(pixels[(row * height) + col]) / (float)255;
-        return new Geometry.Point(x, y, z);
+    /**
+     * Returns the heights of this map in model space, where x and z run
+     * from -0.5 to 0.5 and y from 0 to 1.
+     */
+    public HeightField getHeightField() {
+        return heightField;
     }
-    private int clamp(int val, int min, int max) {
-        return Math.max(min, Math.min(max, val));
+
+    /**
+     * Replaces rowCount x columnCount heights, from 0 to 1, starting at
+     * firstRow and firstColumn, with values read row by row from source
+     * starting at offset. Only for deformable heightmaps.
+     */
+    public void setHeights(int firstRow, int firstColumn, int rowCount, int columnCount,
+                           float[] source, int offset) {
+        checkDeformable();
+        for (int row = 0; row < rowCount; row++) {
+            System.arraycopy(source, offset + row * columnCount,
+                    heights, (firstRow + row) * width + firstColumn, columnCount);
+        }
+        updateRegion(firstRow, firstRow + rowCount, firstColumn, firstColumn + columnCount);
     }
 
-    private int calculateNumElements() {
-        return (width - 1) * (height - 1) * 2 * 3;
+    /**
+     * Presses a round dent of the given radius and depth into the terrain
+     * at x, z, all in model space. The dent is deepest in the middle and
+     * eases out to nothing at its edge. Only for deformable heightmaps.
+     */
+    public void addCrater(float x, float z, float radius, float depth) {
+        checkDeformable();
+        // The grid samples the crater can reach.
+        final int startRow = Math.max(0, (int) Math.floor((z - radius + 0.5f) * (height - 1)));
+        final int endRow = Math.min(height,
+                (int) Math.ceil((z + radius + 0.5f) * (height - 1)) + 1);
+        final int startColumn = Math.max(0, (int) Math.floor((x - radius + 0.5f) * (width - 1)));
+        final int endColumn = Math.min(width,
+                (int) Math.ceil((x + radius + 0.5f) * (width - 1)) + 1);
+        if (startRow >= endRow || startColumn >= endColumn) {
+            return;
+        }
+
+        final float radiusSquared = radius * radius;
+        for (int row = startRow; row < endRow; row++) {
+            final float dz = ((float) row / (float) (height - 1)) - 0.5f - z;
+            for (int col = startColumn; col < endColumn; col++) {
+                final float dx = ((float) col / (float) (width - 1)) - 0.5f - x;
+                final float distanceSquared = dx * dx + dz * dz;
+                if (distanceSquared < radiusSquared) {
+                    final float falloff = 1f - distanceSquared / radiusSquared;
+                    final int index = row * width + col;
+                    heights[index] = Math.max(0f, Math.min(1f,
+                            heights[index] - depth * falloff * falloff));
+                }
+            }
+        }
+        updateRegion(startRow, endRow, startColumn, endColumn);
     }
 
-    private short[] createIndexData() {
-        final short[] indexData = new short[numElements];
-        int offset = 0;
-        for (int row = 0; row < height - 1; row++) {
-            for (int col = 0; col < width - 1; col++) {
-                short topLeftIndexNum = (short) (row * width + col);
-                short topRightIndexNum = (short) (row * width + col + 1);
-                short bottomLeftIndexNum = (short) ((row + 1) * width + col);
-                short bottomRightIndexNum = (short) ((row + 1) * width + col + 1);
+    private void checkDeformable() {
+        if (dynamicVertexBuffer == null) {
+            throw new IllegalStateException("This heightmap wasn't created deformable.");
+        }
+    }
 
-                // Write out two triangles.
-                indexData[offset++] = topLeftIndexNum;
-                indexData[offset++] = bottomLeftIndexNum;
-                indexData[offset++] = topRightIndexNum;
-                indexData[offset++] = topRightIndexNum;
-                indexData[offset++] = bottomLeftIndexNum;
-                indexData[offset++] = bottomRightIndexNum;
+    // Rebuilds and uploads everything that depends on the heights from
+    // startRow to endRow and startColumn to endColumn (exclusive).
+    private void updateRegion(int startRow, int endRow, int startColumn, int endColumn) {
+        final int rangeCount = TerrainMeshBuilder.rebuildRegion(heights, width, height, chunks,
+                startRow, endRow, startColumn, endColumn,
+                dynamicVertexBuffer.getByteBuffer(), quantizedVertices, dirtyRanges);
+        for (int i = 0; i < rangeCount; i++) {
+            dynamicVertexBuffer.uploadBytes(dirtyRanges[i * 2],
+                    dirtyRanges[i * 2 + 1] - dirtyRanges[i * 2]);
+        }
+        heightField.updateRegion(startRow, endRow, startColumn, endColumn);
+
+        // Chunks the edit reached get new vertical bounds.
+        for (int i = 0; i < chunks.length; i++) {
+            final TerrainChunk chunk = chunks[i];
+            if (chunk.firstRow >= endRow || chunk.firstRow + chunk.rows < startRow
+                    || chunk.firstColumn >= endColumn
+                    || chunk.firstColumn + chunk.columns < startColumn) {
+                continue;
+            }
+            float minY = Float.MAX_VALUE;
+            float maxY = -Float.MAX_VALUE;
+            for (int row = chunk.firstRow; row <= chunk.firstRow + chunk.rows; row++) {
+                for (int col = chunk.firstColumn; col <= chunk.firstColumn + chunk.columns; col++) {
+                    minY = Math.min(minY, heights[row * width + col]);
+                    maxY = Math.max(maxY, heights[row * width + col]);
+                }
             }
+            chunkBounds[i * Frustum.BOX_COMPONENT_COUNT + 1] = minY;
+            chunkBounds[i * Frustum.BOX_COMPONENT_COUNT + 4] = maxY;
         }
-        return indexData;
+        chunkTree.refit();
+    }
+
+    /**
+     * Turns on geomipmapping for draw(Frustum, float, float, float). The
+     * scale is the one the heightmap is drawn with, so that distances are
+     * measured in world units. A lodDistance of 0 turns it off again.
+     */
+    public void setLevelOfDetail(float lodDistance, float scaleX, float scaleY, float scaleZ) {
+        this.lodDistance = lodDistance;
+        this.scaleX = scaleX;
+        this.scaleY = scaleY;
+        this.scaleZ = scaleZ;
+    }
+
+    /**
+     * Returns the number of triangles submitted by the last draw call.
+     */
+    public int getDrawnTriangleCount() {
+        return drawnTriangleCount;
     }
 
     public void bindData(HeightmapShaderProgram heightmapProgram) {
-        vertexBuffer.setVertexAttribPointer(0,
-                heightmapProgram.getPositionAttributeLocation(),
-                POSITION_COMPONENT_COUNT, STRIDE);
+        positionAttributeLocation = heightmapProgram.getPositionAttributeLocation();
+        normalAttributeLocation = heightmapProgram.getNormalAttributeLocation();
+        bindVertices(0);
+    }
+
+    private void bindVertices(int firstVertex) {
+        bindVertices(vertexBuffer, firstVertex, quantizedVertices,
+                positionAttributeLocation, normalAttributeLocation);
+    }
+
+    /**
+     * Points the attributes at the terrain vertices in vertexBuffer from
+     * firstVertex on, in either the float or the quantized layout.
+     */
+    static void bindVertices(AttributeBuffer vertexBuffer, int firstVertex,
+                             boolean quantizedVertices, int positionAttributeLocation,
+                             int normalAttributeLocation) {
+        if (quantizedVertices) {
+            final int dataOffset = firstVertex * TerrainMeshBuilder.QUANTIZED_STRIDE;
+            vertexBuffer.setVertexAttribPointer(dataOffset,
+                    positionAttributeLocation,
+                    TerrainMeshBuilder.QUANTIZED_POSITION_COMPONENT_COUNT,
+                    GL_SHORT, true, TerrainMeshBuilder.QUANTIZED_STRIDE);
+            vertexBuffer.setVertexAttribPointer(
+                    dataOffset + TerrainMeshBuilder.QUANTIZED_NORMAL_OFFSET,
+                    normalAttributeLocation,
+                    TerrainMeshBuilder.QUANTIZED_NORMAL_COMPONENT_COUNT,
+                    GL_SHORT, true, TerrainMeshBuilder.QUANTIZED_STRIDE);
+            return;
+        }
+
+        final int dataOffset = firstVertex * STRIDE;
+        vertexBuffer.setVertexAttribPointer(dataOffset,
+                positionAttributeLocation,
+                POSITION_COMPONENT_COUNT, GL_FLOAT, false, STRIDE);
         vertexBuffer.setVertexAttribPointer(
-                POSITION_COMPONENT_COUNT * Constants.BYTES_PER_FLOAT,
-                heightmapProgram.getNormalAttributeLocation(),
-                NORMAL_COMPONENT_COUNT, STRIDE);
+                dataOffset + POSITION_COMPONENT_COUNT * Constants.BYTES_PER_FLOAT,
+                normalAttributeLocation,
+                NORMAL_COMPONENT_COUNT, GL_FLOAT, false, STRIDE);
     }
 
 
@@ -137,8 +424,123 @@ public class Heightmap {
     }*/
 
     public void draw() {
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer.getBufferId());
-        glDrawElements(GL_TRIANGLES, numElements, GL_UNSIGNED_SHORT, 0);
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
+        drawnTriangleCount = 0;
+        GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer.getBufferId());
+        for (int i = 0; i < chunks.length; i++) {
+            drawChunk(i);
+            drawnTriangleCount += indexCounts[i] / 3;
+        }
+    }
+
+    /**
+     * Draws only the chunks that may be inside frustum, whose planes must be
+     * in the heightmap's model space. Returns the number of chunks drawn.
+     */
+    public int draw(Frustum frustum) {
+        drawnTriangleCount = 0;
+        final int visibleCount = chunkTree.cull(frustum, chunkVisible);
+        if (visibleCount == 0) {
+            return 0;
+        }
+
+        GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer.getBufferId());
+        int chunk = 0;
+        while (chunk < chunks.length) {
+            if (!chunkVisible[chunk]) {
+                chunk++;
+            } else if (useIntIndices) {
+                // The indices of neighbouring chunks follow each other, so a
+                // run of visible chunks is one draw call.
+                int indexCount = 0;
+                final int firstChunk = chunk;
+                while (chunk < chunks.length && chunkVisible[chunk]) {
+                    indexCount += indexCounts[chunk++];
+                }
+                drawnTriangleCount += indexCount / 3;
+                glDrawElements(GL_TRIANGLES, indexCount, GL_UNSIGNED_INT,
+                        indexOffsets[firstChunk] * Constants.BYTES_PER_INT);
+            } else {
+                drawnTriangleCount += indexCounts[chunk] / 3;
+                drawChunk(chunk++);
+            }
+        }
+        return visibleCount;
+    }
+
+    /**
+     * Like draw(Frustum), but picks each chunk's level of detail from its
+     * distance to the eye, given in the heightmap's model space.
+     */
+    public int draw(Frustum frustum, float eyeX, float eyeY, float eyeZ) {
+        if (lodDistance <= 0f) {
+            return draw(frustum);
+        }
+        drawnTriangleCount = 0;
+        final int visibleCount = chunkTree.cull(frustum, chunkVisible);
+        if (visibleCount == 0) {
+            return 0;
+        }
+        selectLevels(eyeX, eyeY, eyeZ);
+
+        GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, lodIndexBuffer.getBufferId());
+        for (int chunk = 0; chunk < chunks.length; chunk++) {
+            if (!chunkVisible[chunk]) {
+                continue;
+            }
+            final int level = chunkLevels[chunk];
+            final int edgeMask = TerrainLodIndices.getEdgeMask(
+                    chunkLevels, chunkRows, chunkColumns, chunk);
+            final int bodyCount = lodIndices.getBodyCount(chunk, level);
+            final int ringCount = lodIndices.getRingCount(chunk, level, edgeMask);
+
+            bindVertices(chunks[chunk].vertexOffset);
+            if (bodyCount > 0) {
+                glDrawElements(GL_TRIANGLES, bodyCount, GL_UNSIGNED_SHORT,
+                        lodIndices.getBodyOffset(chunk, level) * Constants.BYTES_PER_SHORT);
+            }
+            glDrawElements(GL_TRIANGLES, ringCount, GL_UNSIGNED_SHORT,
+                    lodIndices.getRingOffset(chunk, level, edgeMask) * Constants.BYTES_PER_SHORT);
+            drawnTriangleCount += (bodyCount + ringCount) / 3;
+        }
+        return visibleCount;
+    }
+
+    private void selectLevels(float eyeX, float eyeY, float eyeZ) {
+        final int maxLevel = lodIndices.getLevelCount() - 1;
+        for (int i = 0; i < chunks.length; i++) {
+            // Distance from the eye to the nearest point of the chunk's box.
+            final int offset = i * Frustum.BOX_COMPONENT_COUNT;
+            final float dx = scaleX
+                    * distanceOutside(eyeX, chunkBounds[offset], chunkBounds[offset + 3]);
+            final float dy = scaleY
+                    * distanceOutside(eyeY, chunkBounds[offset + 1], chunkBounds[offset + 4]);
+            final float dz = scaleZ
+                    * distanceOutside(eyeZ, chunkBounds[offset + 2], chunkBounds[offset + 5]);
+            final float distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+            int level = 0;
+            float levelDistance = lodDistance;
+            while (level < maxLevel && distance >= levelDistance) {
+                level++;
+                levelDistance *= 2f;
+            }
+            chunkLevels[i] = level;
+        }
+        TerrainLodIndices.limitNeighbourLevels(chunkLevels, chunkRows, chunkColumns);
+    }
+
+    private static float distanceOutside(float value, float min, float max) {
+        return Math.max(0f, Math.max(min - value, value - max));
+    }
+
+    private void drawChunk(int chunk) {
+        if (useIntIndices) {
+            glDrawElements(GL_TRIANGLES, indexCounts[chunk], GL_UNSIGNED_INT,
+                    indexOffsets[chunk] * Constants.BYTES_PER_INT);
+        } else {
+            bindVertices(chunks[chunk].vertexOffset);
+            glDrawElements(GL_TRIANGLES, indexCounts[chunk], GL_UNSIGNED_SHORT,
+                    indexOffsets[chunk] * Constants.BYTES_PER_SHORT);
+        }
     }
 }
@@ -0,0 +1,163 @@
+package com.airhockey.android.objects;
+
+import com.airhockey.android.util.Parallel;
+import com.airhockey.android.util.SimplexNoise;
+
+/**
+ * Generates terrain from fractal simplex noise instead of reading it, so
+ * no heightmap has to be shipped or decoded.
+ *
+ * Each height is a sum of octaves of noise (fractional Brownian motion),
+ * sampled at a position that is itself pushed around by two coarser sums.
+ * This domain warping bends the ridges and valleys so the terrain looks
+ * less like uniform hills. The rows asked for can be generated in bands
+ * across all cores, for a map built once at startup, or on the calling
+ * thread, for callers such as the terrain streamer's low-priority workers
+ * that mustn't take over the shared pool.
+ *
+ * The same seed and settings always give the same heights, and sample
+ * (column, row) of the map starting at (firstColumn, firstRow) is the same
+ * as sample (firstColumn + column, firstRow + row) of the map starting at
+ * (0, 0), so neighbouring maps join up.
+ */
+public class NoiseHeightSource implements HeightSource {
+    public static final int DEFAULT_OCTAVES = 6;
+    public static final float DEFAULT_WARP = 0.8f;
+
+    // Octaves in the sums that warp the sample positions. Warping only needs
+    // the broad shapes.
+    private static final int WARP_OCTAVES = 3;
+    private static final float LACUNARITY = 2f;
+    private static final float GAIN = 0.5f;
+    // fBm rarely gets near its theoretical limits, so spread it out before
+    // clamping to 0 to 1.
+    private static final float CONTRAST = 1.4f;
+    private static final int MIN_ROWS_PER_TASK = 16;
+
+    private final SimplexNoise noise;
+    private final int width;
+    private final int height;
+    private final int firstColumn;
+    private final int firstRow;
+    private final float frequency;
+    private final int octaves;
+    private final float warp;
+    private final boolean parallel;
+    private int nextRow;
+
+    /**
+     * @param featureSize roughly how many samples apart the largest hills
+     *                    are.
+     */
+    public NoiseHeightSource(long seed, int width, int height, float featureSize) {
+        this(new SimplexNoise(seed), width, height, 0, 0, featureSize, DEFAULT_OCTAVES,
+                DEFAULT_WARP, true);
+    }
+
+    /**
+     * @param noise       the noise to sum, which can be shared by many
+     *                    sources.
+     * @param firstColumn the column of the first sample of each row.
+     * @param firstRow    the row of the first sample.
+     * @param featureSize roughly how many samples apart the largest hills
+     *                    are.
+     * @param octaves     how many octaves to sum. Each adds detail half the
+     *                    size of the one before.
+     * @param warp        how far the sample positions are pushed, in units
+     *                    of featureSize. 0 turns warping off.
+     * @param parallel    true to spread the rows over Parallel's pool, false
+     *                    to generate them on the calling thread.
+     */
+    public NoiseHeightSource(SimplexNoise noise, int width, int height, int firstColumn,
+                             int firstRow, float featureSize, int octaves, float warp,
+                             boolean parallel) {
+        if (width < 2 || height < 2) {
+            throw new IllegalArgumentException("Heightmap is too small: " + width + "x" + height);
+        }
+        if (octaves < 1) {
+            throw new IllegalArgumentException("Need at least one octave.");
+        }
+        this.noise = noise;
+        this.width = width;
+        this.height = height;
+        this.firstColumn = firstColumn;
+        this.firstRow = firstRow;
+        this.frequency = 1f / featureSize;
+        this.octaves = octaves;
+        this.warp = warp;
+        this.parallel = parallel;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRows(final float[] heights, final int offset, int rowCount) {
+        if (nextRow + rowCount > height) {
+            throw new IllegalArgumentException("Only " + (height - nextRow) + " rows are left.");
+        }
+        final int startRow = nextRow;
+        if (parallel) {
+            Parallel.forRange(0, rowCount, MIN_ROWS_PER_TASK, new Parallel.RangeTask() {
+                @Override
+                public void run(int start, int end) {
+                    generateRows(heights, offset, startRow, start, end);
+                }
+            });
+        } else {
+            generateRows(heights, offset, startRow, 0, rowCount);
+        }
+        nextRow += rowCount;
+    }
+
+    // Fills rows start to end of a read that began at startRow.
+    private void generateRows(float[] heights, int offset, int startRow, int start, int end) {
+        for (int row = start; row < end; row++) {
+            final float y = (firstRow + startRow + row) * frequency;
+            final int rowOffset = offset + row * width;
+            for (int col = 0; col < width; col++) {
+                heights[rowOffset + col] = getHeight((firstColumn + col) * frequency, y);
+            }
+        }
+    }
+
+    private float getHeight(float x, float y) {
+        if (warp != 0f) {
+            // Offsets decorrelate the two warp sums from each other and
+            // from the height.
+            final float warpX = sum(x + 1.7f, y + 9.2f, WARP_OCTAVES);
+            final float warpY = sum(x + 8.3f, y + 2.8f, WARP_OCTAVES);
+            x += warp * warpX;
+            y += warp * warpY;
+        }
+        final float value = 0.5f + 0.5f * CONTRAST * sum(x, y, octaves);
+        return Math.max(0f, Math.min(1f, value));
+    }
+
+    // Sums octaves of noise, scaled back to about -1 to 1.
+    private float sum(float x, float y, int octaveCount) {
+        float total = 0f;
+        float amplitude = 1f;
+        float amplitudeSum = 0f;
+        for (int i = 0; i < octaveCount; i++) {
+            total += amplitude * noise.noise(x, y);
+            amplitudeSum += amplitude;
+            amplitude *= GAIN;
+            // Shifted so the octaves don't all line up at the origin.
+            x = x * LACUNARITY + 19.1f;
+            y = y * LACUNARITY + 7.7f;
+        }
+        return total / amplitudeSum;
+    }
+
+    @Override
+    public void close() {
+    }
+}
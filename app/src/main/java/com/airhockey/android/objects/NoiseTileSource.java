@@ -0,0 +1,31 @@
+package com.airhockey.android.objects;
+
+import com.airhockey.android.util.SimplexNoise;
+
+/**
+ * Generates terrain tiles from one endless NoiseHeightSource landscape, so
+ * the streamer has something to show without any tile files. Tiles are
+ * generated on the streamer's own workers rather than Parallel's pool, so
+ * they don't hold up the particle simulation.
+ */
+public class NoiseTileSource implements TerrainStreamer.TileSource {
+    private final SimplexNoise noise;
+    private final float featureSize;
+
+    /**
+     * @param featureSize roughly how many samples apart the largest hills
+     *                    are.
+     */
+    public NoiseTileSource(long seed, float featureSize) {
+        this.noise = new SimplexNoise(seed);
+        this.featureSize = featureSize;
+    }
+
+    @Override
+    public HeightSource openTile(int column, int row, int samples) {
+        // Tiles share their edge samples.
+        return new NoiseHeightSource(noise, samples, samples, column * (samples - 1),
+                row * (samples - 1), featureSize, NoiseHeightSource.DEFAULT_OCTAVES,
+                NoiseHeightSource.DEFAULT_WARP, false);
+    }
+}
@@ -1,12 +1,9 @@
 package com.airhockey.android.objects;
 
-import com.airhockey.android.util.Geometry;
-
-import java.util.Random;
+import android.graphics.Color;
 
-import static android.opengl.GLES20.*;
-import static android.opengl.Matrix.multiplyMV;
-import static android.opengl.Matrix.setRotateEulerM;
+import com.airhockey.android.util.FastRandom;
+import com.airhockey.android.util.Geometry;
 
 /**
  * Created by pixuredlinux3 on 6/20/16.
@@ -15,46 +12,182 @@ public class ParticleShooter {
     private final Geometry.Point position;
     private final Geometry.Vector direction;
     private final int color;
+    private final float red, green, blue;
+
+    private final DirectionSampler directionSampler;
+    private final boolean emitUndeviated;
+    private final float[] resultVector = new float[3];
 
-    private final float angleVariance;
-    private final float speedVariance;
-    private final Random random = new Random();
-    private float[] rotationMatrix = new float[16];
-    private float[] directionVector = new float[4];
-    private float[] resultVector = new float[4];
+    // Particles are packed here before being handed to the particle system
+    // in one call. Grown on demand and reused between frames.
+    private float[] packedParticles = new float[0];
+
+    // Rate-based emission state: when we last emitted, and the fraction of
+    // a particle that was due but not yet emitted.
+    private float lastEmissionTime = Float.NaN;
+    private float emissionRemainder;
 
     public ParticleShooter(Geometry.Point position, Geometry.Vector direction, int color, float angleVarianceInDegrees, float speedVariance) {
+        this(position, direction, color, angleVarianceInDegrees, speedVariance, false);
+    }
+
+    public ParticleShooter(Geometry.Point position, Geometry.Vector direction, int color,
+                           float angleVarianceInDegrees, float speedVariance,
+                           boolean emitUndeviated) {
+        this(position, direction, color, angleVarianceInDegrees, speedVariance,
+                emitUndeviated, false);
+    }
+
+    /**
+     * @param eulerDirections true to turn direction by three random Euler
+     *                        angles, with the corrected setRotateEulerM2
+     *                        rotation, instead of sampling a cone around it.
+     */
+    public ParticleShooter(Geometry.Point position, Geometry.Vector direction, int color,
+                           float angleVarianceInDegrees, float speedVariance,
+                           boolean emitUndeviated, boolean eulerDirections) {
+        this(position, direction, color,
+                eulerDirections
+                        ? new EulerDirectionSampler(direction, angleVarianceInDegrees,
+                                speedVariance, new FastRandom())
+                        : new ConeDirectionSampler(direction, angleVarianceInDegrees,
+                                speedVariance, new FastRandom()),
+                emitUndeviated);
+    }
+
+    /**
+     * @param emitUndeviated if true, every particle is accompanied by a
+     *                       second one that travels exactly along direction.
+     */
+    public ParticleShooter(Geometry.Point position, Geometry.Vector direction, int color,
+                           DirectionSampler directionSampler, boolean emitUndeviated) {
         this.position = position;
         this.direction = direction;
         this.color = color;
+        this.red = Color.red(color) / 255f;
+        this.green = Color.green(color) / 255f;
+        this.blue = Color.blue(color) / 255f;
 
-        this.angleVariance = angleVarianceInDegrees;
-        this.speedVariance = speedVariance;
-        directionVector[0] = direction.x;
-        directionVector[1] = direction.y;
-        directionVector[2] = direction.z;
+        this.directionSampler = directionSampler;
+        this.emitUndeviated = emitUndeviated;
+    }
+
+    /**
+     * Emits the particles due since the last call at particlesPerSecond.
+     * Their start times are spread evenly over that interval, so the stream
+     * looks the same whatever the frame rate.
+     *
+     * Callers may stop calling this while the shooter is out of view. The
+     * next call then catches up in one batch, but only with the particles
+     * from the last particle lifetime, as older ones would have expired.
+     * Particles moved by the shader appear mid-flight; particles simulated
+     * on the CPU all start from the shooter.
+     */
+    public void emitParticles(ParticleSystem particleSystem, float currentTime,
+                              float particlesPerSecond) {
+        if (Float.isNaN(lastEmissionTime)) {
+            lastEmissionTime = currentTime;
+            return;
+        }
+
+        final float particleLifetime = particleSystem.getParticleLifetime();
+        if (currentTime - lastEmissionTime > particleLifetime) {
+            lastEmissionTime = currentTime - particleLifetime;
+            emissionRemainder = 0f;
+        }
+
+        final float elapsedTime = currentTime - lastEmissionTime;
+        final float due = particlesPerSecond * elapsedTime + emissionRemainder;
+        final int count = (int) due;
+        emissionRemainder = due - count;
+        if (count > 0) {
+            final float timeStep = elapsedTime / count;
+            addParticles(particleSystem, lastEmissionTime + timeStep, timeStep, count);
+        }
+        lastEmissionTime = currentTime;
+    }
+
+    /**
+     * Writes a box that holds every particle this shooter emits during its
+     * first lifetime seconds, as minX, minY, minZ, maxX, maxY, maxZ,
+     * starting at offset. Particles fall as they do in the particle shader.
+     */
+    public void getBounds(float lifetime, float[] bounds, int offset) {
+        directionSampler.getBounds(bounds, offset);
+        if (emitUndeviated) {
+            bounds[offset] = Math.min(bounds[offset], direction.x);
+            bounds[offset + 1] = Math.min(bounds[offset + 1], direction.y);
+            bounds[offset + 2] = Math.min(bounds[offset + 2], direction.z);
+            bounds[offset + 3] = Math.max(bounds[offset + 3], direction.x);
+            bounds[offset + 4] = Math.max(bounds[offset + 4], direction.y);
+            bounds[offset + 5] = Math.max(bounds[offset + 5], direction.z);
+        }
+        final float minDirectionY = bounds[offset + 1];
+        final float maxDirectionY = bounds[offset + 4];
+
+        // x and z move linearly, so they are furthest out at the start or
+        // the end of a particle's life.
+        bounds[offset] = position.x + Math.min(0f, bounds[offset] * lifetime);
+        bounds[offset + 2] = position.z + Math.min(0f, bounds[offset + 2] * lifetime);
+        bounds[offset + 3] = position.x + Math.max(0f, bounds[offset + 3] * lifetime);
+        bounds[offset + 5] = position.z + Math.max(0f, bounds[offset + 5] * lifetime);
+
+        // y = vy * t - t^2 / 8 peaks at t = 4 * vy.
+        final float peakTime = Math.max(0f, Math.min(lifetime, 4f * maxDirectionY));
+        bounds[offset + 4] = position.y + maxDirectionY * peakTime - peakTime * peakTime / 8f;
+        bounds[offset + 1] = position.y
+                + Math.min(0f, minDirectionY * lifetime - lifetime * lifetime / 8f);
     }
 
     public void addParticles(ParticleSystem particleSystem, float currentTime, int count){
+        addParticles(particleSystem, currentTime, 0f, count);
+    }
+
+    private void addParticles(ParticleSystem particleSystem, float firstStartTime,
+                              float timeStep, int count) {
+        // Only the newest particles fit in the system, as the rest would be
+        // overwritten at once, so after a long stall the older ones are
+        // skipped rather than packed.
+        final int maxCount = particleSystem.getMaxParticleCount() / (emitUndeviated ? 2 : 1);
+        if (count > maxCount) {
+            firstStartTime += timeStep * (count - maxCount);
+            count = maxCount;
+        }
+        final int particleCount = emitUndeviated ? count * 2 : count;
+        final int packedLength = particleCount * ParticleSystem.PACKED_COMPONENT_COUNT;
+        if (packedParticles.length < packedLength) {
+            packedParticles = new float[packedLength];
+        }
+
+        int offset = 0;
         for(int i = 0; i < count; i++){
-            setRotateEulerM(rotationMatrix, 0,
-                    (random.nextFloat() - 0.5f) * angleVariance,
-                    (random.nextFloat() - 0.5f) * angleVariance,
-                    (random.nextFloat() - 0.5f) * angleVariance);
-            multiplyMV(
-                    resultVector, 0,
-                    rotationMatrix, 0,
-                    directionVector, 0);
-            float speedAdjustment = 1f + random.nextFloat() * speedVariance;
-            Geometry.Vector thisDirection = new Geometry.Vector(
-                    resultVector[0] * speedAdjustment,
-                    resultVector[1] * speedAdjustment,
-                    resultVector[2] * speedAdjustment);
-            particleSystem.addParticle(position, color, thisDirection, currentTime);
-
-            particleSystem.addParticle(position,color,direction,currentTime);
+            final float particleStartTime = firstStartTime + timeStep * i;
+            directionSampler.sample(resultVector, 0);
+            offset = packParticle(offset,
+                    resultVector[0], resultVector[1], resultVector[2],
+                    particleStartTime);
+
+            if (emitUndeviated) {
+                offset = packParticle(offset,
+                        direction.x, direction.y, direction.z, particleStartTime);
+            }
         }
+        particleSystem.addParticles(packedParticles, particleCount);
     }
 
-
+    private int packParticle(int offset, float directionX, float directionY,
+                             float directionZ, float particleStartTime) {
+        final float[] packed = packedParticles;
+        packed[offset++] = position.x;
+        packed[offset++] = position.y;
+        packed[offset++] = position.z;
+        packed[offset++] = red;
+        packed[offset++] = green;
+        packed[offset++] = blue;
+        packed[offset++] = directionX;
+        packed[offset++] = directionY;
+        packed[offset++] = directionZ;
+        packed[offset++] = particleStartTime;
+        return offset;
+    }
 }
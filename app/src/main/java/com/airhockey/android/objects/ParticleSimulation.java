@@ -0,0 +1,140 @@
+package com.airhockey.android.objects;
+
+import com.airhockey.android.util.HeightField;
+import com.airhockey.android.util.Parallel;
+
+/**
+ * Moves particles on the CPU instead of in the vertex shader, so that they
+ * can bounce off the terrain. Positions and velocities are kept as separate
+ * primitive arrays, one per component, and updated in chunks across all
+ * cores.
+ *
+ * After each step the positions are also written interleaved (x, y, z) into
+ * an array that can be uploaded to a vertex buffer as is.
+ */
+public class ParticleSimulation {
+    // Matches the t * t / 8 drop in the particle vertex shader.
+    private static final float GRAVITY = -0.25f;
+    private static final int MIN_CHUNK_SIZE = 4096;
+
+    private final int capacity;
+    private final float[] positionX, positionY, positionZ;
+    private final float[] velocityX, velocityY, velocityZ;
+    private final float[] interleavedPositions;
+    private final HeightField terrain;
+    private float restitution = 0.3f;
+    private float friction = 0.8f;
+
+    // Reused by step() so that no task objects are created per frame.
+    private final StepTask stepTask = new StepTask();
+
+    /**
+     * @param terrain the ground particles collide with, or null for none.
+     */
+    public ParticleSimulation(int capacity, HeightField terrain) {
+        this.capacity = capacity;
+        this.terrain = terrain;
+        positionX = new float[capacity];
+        positionY = new float[capacity];
+        positionZ = new float[capacity];
+        velocityX = new float[capacity];
+        velocityY = new float[capacity];
+        velocityZ = new float[capacity];
+        interleavedPositions = new float[capacity * 3];
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @param restitution how much of the vertical speed is kept when a
+     *                    particle bounces off the ground.
+     * @param friction    how much of the horizontal speed is kept.
+     */
+    public void setBounce(float restitution, float friction) {
+        this.restitution = restitution;
+        this.friction = friction;
+    }
+
+    public void setParticle(int index, float x, float y, float z,
+                            float vx, float vy, float vz) {
+        positionX[index] = x;
+        positionY[index] = y;
+        positionZ[index] = z;
+        velocityX[index] = vx;
+        velocityY[index] = vy;
+        velocityZ[index] = vz;
+        interleavedPositions[index * 3] = x;
+        interleavedPositions[index * 3 + 1] = y;
+        interleavedPositions[index * 3 + 2] = z;
+    }
+
+    /**
+     * Advances the particles from start (inclusive) to end (exclusive) by
+     * deltaTime seconds.
+     */
+    public void step(int start, int end, float deltaTime) {
+        stepTask.deltaTime = deltaTime;
+        Parallel.forRange(start, end, MIN_CHUNK_SIZE, stepTask);
+    }
+
+    private void step(int start, int end, float deltaTime, HeightField terrain) {
+        final float[] px = positionX, py = positionY, pz = positionZ;
+        final float[] vx = velocityX, vy = velocityY, vz = velocityZ;
+        final float[] out = interleavedPositions;
+        final float gravityStep = GRAVITY * deltaTime;
+
+        for (int i = start; i < end; i++) {
+            vy[i] += gravityStep;
+            px[i] += vx[i] * deltaTime;
+            py[i] += vy[i] * deltaTime;
+            pz[i] += vz[i] * deltaTime;
+
+            if (terrain != null) {
+                final float ground = terrain.heightAt(px[i], pz[i]);
+                if (py[i] < ground) {
+                    py[i] = ground;
+                    if (vy[i] < 0f) {
+                        vy[i] = -vy[i] * restitution;
+                        vx[i] *= friction;
+                        vz[i] *= friction;
+                    }
+                }
+            }
+
+            out[i * 3] = px[i];
+            out[i * 3 + 1] = py[i];
+            out[i * 3 + 2] = pz[i];
+        }
+    }
+
+    public float[] getInterleavedPositions() {
+        return interleavedPositions;
+    }
+
+    public float getPositionX(int index) {
+        return positionX[index];
+    }
+
+    public float getPositionY(int index) {
+        return positionY[index];
+    }
+
+    public float getPositionZ(int index) {
+        return positionZ[index];
+    }
+
+    public float getVelocityY(int index) {
+        return velocityY[index];
+    }
+
+    private class StepTask implements Parallel.RangeTask {
+        float deltaTime;
+
+        @Override
+        public void run(int start, int end) {
+            step(start, end, deltaTime, terrain);
+        }
+    }
+}
@@ -3,9 +3,13 @@ package com.airhockey.android.objects;
 import android.graphics.Color;
 
 import com.airhockey.android.Constants;
-import com.airhockey.android.data.VertexArray;
+import com.airhockey.android.data.DynamicVertexBuffer;
 import com.airhockey.android.programs.ParticleShaderProgram;
 import com.airhockey.android.util.Geometry;
+import com.airhockey.android.util.HeightField;
+
+import java.nio.ByteBuffer;
+
 import static android.opengl.GLES20.*;
 
 /**
@@ -22,30 +26,135 @@ public class ParticleSystem {
                     + VECTOR_COMPONENT_COUNT
                     + PARTICLE_START_TIME_COMPONENT_COUNT;
     private static final int STRIDE = TOTAL_COMPONENT_COUNT * Constants.BYTES_PER_FLOAT;
+    private static final int DIRECTION_OFFSET =
+            POSITION_COMPONENT_COUNT + COLOR_COMPONENT_COUNT;
+    private static final int START_TIME_OFFSET = TOTAL_COMPONENT_COUNT - 1;
+
+    // The compact vertex layout: float position, normalized unsigned byte
+    // color (padded to four bytes), normalized short direction (padded to
+    // four shorts) scaled by directionScale, and a float start time
+    // relative to timeEpoch. 28 bytes instead of 40.
+    private static final int COMPACT_COLOR_BYTE_OFFSET =
+            POSITION_COMPONENT_COUNT * Constants.BYTES_PER_FLOAT;
+    private static final int COMPACT_DIRECTION_BYTE_OFFSET = COMPACT_COLOR_BYTE_OFFSET + 4;
+    private static final int COMPACT_START_TIME_BYTE_OFFSET =
+            COMPACT_DIRECTION_BYTE_OFFSET + 4 * Constants.BYTES_PER_SHORT;
+    private static final int COMPACT_STRIDE =
+            COMPACT_START_TIME_BYTE_OFFSET + Constants.BYTES_PER_FLOAT;
+
+    // Longest step the CPU simulation takes, so that a long pause doesn't
+    // throw every particle through the ground.
+    private static final float MAX_SIMULATION_STEP = 0.1f;
+
+    // Number of floats per particle expected by addParticles: position,
+    // color (0 to 1), direction and start time, in that order.
+    public static final int PACKED_COMPONENT_COUNT = TOTAL_COMPONENT_COUNT;
 
     private final float[] particles;
-    private final VertexArray vertexArray;
+    private final DynamicVertexBuffer vertexBuffer;
     private final int maxParticleCount;
-    private int currentParticleCount;
+    private final float particleLifetime;
     private int nextParticle;
 
-    public ParticleSystem(int maxParticleCount) {
+    // Only used by the compact vertex layout.
+    private final boolean compact;
+    private final float directionScale;
+    private float timeEpoch = Float.NaN;
+
+    // The live window: liveParticleCount particles starting at
+    // oldestParticle, possibly wrapping around the end of the ring. Start
+    // times grow as we go around the ring (to within a frame, since
+    // shooters spread their particles over the frame), so once the oldest
+    // particle is still alive, the rest are too. Stragglers that expire a
+    // little early are hidden by the vertex shader.
+    private int oldestParticle;
+    private int liveParticleCount;
+    private int particleBudget;
+
+    // Particles written since the last upload. Since particles are written
+    // one after the other around the ring, this is always one contiguous
+    // range that may wrap past the end of the buffer.
+    private int dirtyStart;
+    private int dirtyCount;
+
+    // Only used when particles are simulated on the CPU. The simulated
+    // positions live in their own buffer, re-uploaded every frame.
+    private final ParticleSimulation simulation;
+    private final DynamicVertexBuffer positionBuffer;
+    private float lastSimulationTime = Float.NaN;
+
+    /**
+     * Creates a particle system that moves its particles in the vertex
+     * shader.
+     *
+     * @param particleLifetime how many seconds a particle is drawn for after
+     *                         its start time.
+     */
+    public ParticleSystem(int maxParticleCount, float particleLifetime) {
+        this(maxParticleCount, particleLifetime, false, 1f, false, null);
+    }
+
+    /**
+     * Creates a particle system that moves its particles on the CPU, so
+     * that they can bounce off the terrain.
+     *
+     * @param terrain the ground particles collide with, or null for none.
+     */
+    public ParticleSystem(int maxParticleCount, float particleLifetime, HeightField terrain) {
+        this(maxParticleCount, particleLifetime, false, 1f, true, terrain);
+    }
+
+    /**
+     * Creates a particle system that stores its particles in the compact
+     * vertex layout, which takes 28 bytes per particle instead of 40.
+     *
+     * @param maxParticleSpeed the largest direction vector component that
+     *                         will be stored; larger ones are clamped.
+     * @param simulateOnCpu    whether particles are moved on the CPU.
+     * @param terrain          when simulating on the CPU, the ground
+     *                         particles collide with, or null for none.
+     */
+    public ParticleSystem(int maxParticleCount, float particleLifetime,
+                          float maxParticleSpeed, boolean simulateOnCpu, HeightField terrain) {
+        this(maxParticleCount, particleLifetime, true, maxParticleSpeed, simulateOnCpu, terrain);
+    }
+
+    private ParticleSystem(int maxParticleCount, float particleLifetime,
+                           boolean compact, float directionScale,
+                           boolean simulateOnCpu, HeightField terrain) {
         particles = new float[maxParticleCount * TOTAL_COMPONENT_COUNT];
-        vertexArray = new VertexArray(particles);
+        if (compact) {
+            vertexBuffer = new DynamicVertexBuffer(maxParticleCount * COMPACT_STRIDE);
+        } else {
+            vertexBuffer = new DynamicVertexBuffer(particles);
+        }
         this.maxParticleCount = maxParticleCount;
+        this.particleLifetime = particleLifetime;
+        this.particleBudget = maxParticleCount;
+        this.compact = compact;
+        this.directionScale = directionScale;
+        if (simulateOnCpu) {
+            simulation = new ParticleSimulation(maxParticleCount, terrain);
+            positionBuffer = new DynamicVertexBuffer(simulation.getInterleavedPositions());
+        } else {
+            simulation = null;
+            positionBuffer = null;
+        }
+    }
+
+    public boolean isSimulatedOnCpu() {
+        return simulation != null;
     }
 
     public void addParticle(Geometry.Point position, int color, Geometry.Vector direction,
                             float particleStartTime) {
         final int particleOffset = nextParticle * TOTAL_COMPONENT_COUNT;
         int currentOffset = particleOffset;
+        markDirty(nextParticle, 1);
+        growLiveWindow(1);
         nextParticle++;
-        if (currentParticleCount < maxParticleCount) {
-            currentParticleCount++;
-        }
         if (nextParticle == maxParticleCount) {
-            // Start over at the beginning, but keep currentParticleCount so
-            // that all the other particles still get drawn.
+            // Start over at the beginning, overwriting the oldest particles.
             nextParticle = 0;
         }
 
@@ -60,32 +169,284 @@ public class ParticleSystem {
         particles[currentOffset++] = direction.z;
         particles[currentOffset++] = particleStartTime;
 
-        vertexArray.updateBuffer(particles, particleOffset, TOTAL_COMPONENT_COUNT);
+        initTimeEpoch(particleOffset / TOTAL_COMPONENT_COUNT);
+        spawnSimulatedParticles(particleOffset / TOTAL_COMPONENT_COUNT, 1);
+    }
+
+    /**
+     * Adds count particles from packed, which holds
+     * PACKED_COMPONENT_COUNT floats per particle. This copies straight into
+     * the particle store without creating any objects.
+     */
+    public void addParticles(float[] packed, int count) {
+        if (count <= 0) {
+            return;
+        }
+        if (count > maxParticleCount) {
+            // Only the last maxParticleCount particles would survive anyway.
+            addParticles(packed, (count - maxParticleCount) * TOTAL_COMPONENT_COUNT,
+                    maxParticleCount);
+        } else {
+            addParticles(packed, 0, count);
+        }
+    }
+
+    private void addParticles(float[] packed, int packedOffset, int count) {
+        markDirty(nextParticle, count);
+        growLiveWindow(count);
+
+        // Copy up to the end of the ring, then wrap around to the start.
+        final int firstCount = Math.min(count, maxParticleCount - nextParticle);
+        System.arraycopy(packed, packedOffset,
+                particles, nextParticle * TOTAL_COMPONENT_COUNT,
+                firstCount * TOTAL_COMPONENT_COUNT);
+        System.arraycopy(packed, packedOffset + firstCount * TOTAL_COMPONENT_COUNT,
+                particles, 0,
+                (count - firstCount) * TOTAL_COMPONENT_COUNT);
+        initTimeEpoch(nextParticle);
+        spawnSimulatedParticles(nextParticle, firstCount);
+        spawnSimulatedParticles(0, count - firstCount);
+
+        nextParticle = (nextParticle + count) % maxParticleCount;
+    }
+
+    private void initTimeEpoch(int particle) {
+        // The first particle's start time becomes the epoch, so stored start
+        // times stay small and keep their precision.
+        if (Float.isNaN(timeEpoch)) {
+            timeEpoch = particles[particle * TOTAL_COMPONENT_COUNT + START_TIME_OFFSET];
+        }
+    }
+
+    private void spawnSimulatedParticles(int firstParticle, int count) {
+        if (simulation == null) {
+            return;
+        }
+        for (int i = firstParticle; i < firstParticle + count; i++) {
+            final int offset = i * TOTAL_COMPONENT_COUNT;
+            simulation.setParticle(i,
+                    particles[offset], particles[offset + 1], particles[offset + 2],
+                    particles[offset + DIRECTION_OFFSET],
+                    particles[offset + DIRECTION_OFFSET + 1],
+                    particles[offset + DIRECTION_OFFSET + 2]);
+        }
+    }
+
+    private void simulateLiveParticles(float currentTime) {
+        final float deltaTime = Float.isNaN(lastSimulationTime)
+                ? 0f : Math.min(currentTime - lastSimulationTime, MAX_SIMULATION_STEP);
+        lastSimulationTime = currentTime;
+
+        final int liveEnd = oldestParticle + liveParticleCount;
+        if (liveEnd <= maxParticleCount) {
+            simulateParticles(oldestParticle, liveParticleCount, deltaTime);
+        } else {
+            simulateParticles(oldestParticle, maxParticleCount - oldestParticle, deltaTime);
+            simulateParticles(0, liveEnd - maxParticleCount, deltaTime);
+        }
+    }
+
+    private void simulateParticles(int firstParticle, int count, float deltaTime) {
+        if (count == 0) {
+            return;
+        }
+        simulation.step(firstParticle, firstParticle + count, deltaTime);
+        // Every live particle moved, so upload all of their positions.
+        positionBuffer.updateBuffer(simulation.getInterleavedPositions(),
+                firstParticle * POSITION_COMPONENT_COUNT,
+                count * POSITION_COMPONENT_COUNT);
+    }
+
+    private void growLiveWindow(int count) {
+        liveParticleCount += count;
+        if (liveParticleCount > maxParticleCount) {
+            // The ring is full, so the new particles replace the oldest ones.
+            oldestParticle = (oldestParticle + liveParticleCount - maxParticleCount)
+                    % maxParticleCount;
+            liveParticleCount = maxParticleCount;
+        }
+    }
+
+    /**
+     * Limits how many particles are drawn at once. When there are more, the
+     * oldest ones are dropped early. Used to shed load when frames are slow.
+     */
+    public void setParticleBudget(int particleBudget) {
+        this.particleBudget = Math.max(0, Math.min(particleBudget, maxParticleCount));
+    }
+
+    public int getMaxParticleCount() {
+        return maxParticleCount;
+    }
+
+    private void retireExpiredParticles(float currentTime) {
+        final float oldestAllowedStartTime = currentTime - particleLifetime;
+        while (liveParticleCount > particleBudget
+                || (liveParticleCount > 0
+                && particles[oldestParticle * TOTAL_COMPONENT_COUNT + START_TIME_OFFSET]
+                < oldestAllowedStartTime)) {
+            oldestParticle++;
+            if (oldestParticle == maxParticleCount) {
+                oldestParticle = 0;
+            }
+            liveParticleCount--;
+        }
+    }
+
+    public float getParticleLifetime() {
+        return particleLifetime;
+    }
+
+    /**
+     * Returns the time that start times are stored relative to. The time
+     * given to the particle shader should have this subtracted.
+     */
+    public float getTimeEpoch() {
+        return compact && !Float.isNaN(timeEpoch) ? timeEpoch : 0f;
+    }
+
+    private void markDirty(int firstParticle, int count) {
+        if (dirtyCount == 0) {
+            dirtyStart = firstParticle;
+        }
+        dirtyCount = Math.min(dirtyCount + count, maxParticleCount);
+    }
+
+    private void uploadDirtyParticles() {
+        if (dirtyCount == 0) {
+            return;
+        }
+
+        final int dirtyEnd = dirtyStart + dirtyCount;
+        if (dirtyCount == maxParticleCount) {
+            // Everything was rewritten, so send the whole ring at once.
+            uploadParticles(0, maxParticleCount);
+        } else if (dirtyEnd <= maxParticleCount) {
+            uploadParticles(dirtyStart, dirtyCount);
+        } else {
+            // The writes wrapped around the end of the ring.
+            uploadParticles(dirtyStart, maxParticleCount - dirtyStart);
+            uploadParticles(0, dirtyEnd - maxParticleCount);
+        }
+        dirtyCount = 0;
+    }
+
+    private void uploadParticles(int firstParticle, int particleCount) {
+        if (compact) {
+            packCompactParticles(firstParticle, particleCount);
+            vertexBuffer.uploadBytes(firstParticle * COMPACT_STRIDE,
+                    particleCount * COMPACT_STRIDE);
+        } else {
+            vertexBuffer.updateBuffer(particles,
+                    firstParticle * TOTAL_COMPONENT_COUNT,
+                    particleCount * TOTAL_COMPONENT_COUNT);
+        }
+    }
+
+    private void packCompactParticles(int firstParticle, int particleCount) {
+        final ByteBuffer data = vertexBuffer.getByteBuffer();
+        final float shortsPerUnit = Short.MAX_VALUE / directionScale;
+
+        for (int i = firstParticle; i < firstParticle + particleCount; i++) {
+            int offset = i * TOTAL_COMPONENT_COUNT;
+            int byteOffset = i * COMPACT_STRIDE;
+            data.putFloat(byteOffset, particles[offset++]);
+            data.putFloat(byteOffset + 4, particles[offset++]);
+            data.putFloat(byteOffset + 8, particles[offset++]);
+
+            byteOffset = i * COMPACT_STRIDE + COMPACT_COLOR_BYTE_OFFSET;
+            data.put(byteOffset, toUnsignedByte(particles[offset++]));
+            data.put(byteOffset + 1, toUnsignedByte(particles[offset++]));
+            data.put(byteOffset + 2, toUnsignedByte(particles[offset++]));
+
+            byteOffset = i * COMPACT_STRIDE + COMPACT_DIRECTION_BYTE_OFFSET;
+            data.putShort(byteOffset, toShort(particles[offset++] * shortsPerUnit));
+            data.putShort(byteOffset + 2, toShort(particles[offset++] * shortsPerUnit));
+            data.putShort(byteOffset + 4, toShort(particles[offset++] * shortsPerUnit));
+
+            data.putFloat(i * COMPACT_STRIDE + COMPACT_START_TIME_BYTE_OFFSET,
+                    particles[offset] - timeEpoch);
+        }
+    }
+
+    private static byte toUnsignedByte(float value) {
+        return (byte) Math.round(Math.max(0f, Math.min(1f, value)) * 255f);
+    }
+
+    private static short toShort(float value) {
+        return (short) Math.round(Math.max(-Short.MAX_VALUE, Math.min(Short.MAX_VALUE, value)));
     }
 
     public void bindData(ParticleShaderProgram particleProgram) {
+        if (compact) {
+            bindCompactData(particleProgram);
+            return;
+        }
+        particleProgram.setDirectionScale(1f);
 
         int dataOffset = 0;
-        vertexArray.setVertexAttribPointer(dataOffset,
-                particleProgram.getPositionAttributeLocation(),
-                POSITION_COMPONENT_COUNT, STRIDE);
-        dataOffset += POSITION_COMPONENT_COUNT;
+        if (simulation != null) {
+            positionBuffer.setVertexAttribPointer(0,
+                    particleProgram.getPositionAttributeLocation(),
+                    POSITION_COMPONENT_COUNT, 0);
+        } else {
+            vertexBuffer.setVertexAttribPointer(dataOffset,
+                    particleProgram.getPositionAttributeLocation(),
+                    POSITION_COMPONENT_COUNT, STRIDE);
+        }
+        dataOffset += POSITION_COMPONENT_COUNT * Constants.BYTES_PER_FLOAT;
 
-        vertexArray.setVertexAttribPointer(dataOffset,
+        vertexBuffer.setVertexAttribPointer(dataOffset,
                 particleProgram.getColorAttributeLocation(),
                 COLOR_COMPONENT_COUNT, STRIDE);
-        dataOffset += COLOR_COMPONENT_COUNT;
+        dataOffset += COLOR_COMPONENT_COUNT * Constants.BYTES_PER_FLOAT;
 
-        vertexArray.setVertexAttribPointer(dataOffset,
+        vertexBuffer.setVertexAttribPointer(dataOffset,
                 particleProgram.getDirectionVectorAttributeLocation(),
                 VECTOR_COMPONENT_COUNT, STRIDE);
-        dataOffset += VECTOR_COMPONENT_COUNT;
-        vertexArray.setVertexAttribPointer(dataOffset,
+        dataOffset += VECTOR_COMPONENT_COUNT * Constants.BYTES_PER_FLOAT;
+        vertexBuffer.setVertexAttribPointer(dataOffset,
                 particleProgram.getParticleStartTimeAttributeLocation(),
                 PARTICLE_START_TIME_COMPONENT_COUNT, STRIDE);
     }
 
-    public void draw() {
-        glDrawArrays(GL_POINTS, 0, currentParticleCount);
+    private void bindCompactData(ParticleShaderProgram particleProgram) {
+        particleProgram.setDirectionScale(directionScale);
+
+        if (simulation != null) {
+            positionBuffer.setVertexAttribPointer(0,
+                    particleProgram.getPositionAttributeLocation(),
+                    POSITION_COMPONENT_COUNT, 0);
+        } else {
+            vertexBuffer.setVertexAttribPointer(0,
+                    particleProgram.getPositionAttributeLocation(),
+                    POSITION_COMPONENT_COUNT, COMPACT_STRIDE);
+        }
+        vertexBuffer.setVertexAttribPointer(COMPACT_COLOR_BYTE_OFFSET,
+                particleProgram.getColorAttributeLocation(),
+                COLOR_COMPONENT_COUNT, GL_UNSIGNED_BYTE, true, COMPACT_STRIDE);
+        vertexBuffer.setVertexAttribPointer(COMPACT_DIRECTION_BYTE_OFFSET,
+                particleProgram.getDirectionVectorAttributeLocation(),
+                VECTOR_COMPONENT_COUNT, GL_SHORT, true, COMPACT_STRIDE);
+        vertexBuffer.setVertexAttribPointer(COMPACT_START_TIME_BYTE_OFFSET,
+                particleProgram.getParticleStartTimeAttributeLocation(),
+                PARTICLE_START_TIME_COMPONENT_COUNT, COMPACT_STRIDE);
+    }
+
+    public void draw(float currentTime) {
+        retireExpiredParticles(currentTime);
+        uploadDirtyParticles();
+        if (simulation != null) {
+            simulateLiveParticles(currentTime);
+        }
+
+        final int liveEnd = oldestParticle + liveParticleCount;
+        if (liveEnd <= maxParticleCount) {
+            glDrawArrays(GL_POINTS, oldestParticle, liveParticleCount);
+        } else {
+            // The live window wraps around the end of the ring.
+            glDrawArrays(GL_POINTS, oldestParticle, maxParticleCount - oldestParticle);
+            glDrawArrays(GL_POINTS, 0, liveEnd - maxParticleCount);
+        }
     }
 }
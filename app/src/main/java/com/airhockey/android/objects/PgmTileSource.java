@@ -0,0 +1,55 @@
+package com.airhockey.android.objects;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Loads terrain tiles from binary PGM files named column_row.pgm in a
+ * directory, such as tiles cut from a large 16-bit terrain export.
+ * Tiles without a file are flat, at a height of 0.
+ */
+public class PgmTileSource implements TerrainStreamer.TileSource {
+    private final File directory;
+
+    public PgmTileSource(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public HeightSource openTile(int column, int row, int samples) throws IOException {
+        final File file = new File(directory, column + "_" + row + ".pgm");
+        if (!file.exists()) {
+            return new FlatHeightSource(samples);
+        }
+        return RawHeightSource.openPgm(new FileInputStream(file).getChannel());
+    }
+
+    private static class FlatHeightSource implements HeightSource {
+        private final int samples;
+
+        FlatHeightSource(int samples) {
+            this.samples = samples;
+        }
+
+        @Override
+        public int getWidth() {
+            return samples;
+        }
+
+        @Override
+        public int getHeight() {
+            return samples;
+        }
+
+        @Override
+        public void readRows(float[] heights, int offset, int rowCount) {
+            Arrays.fill(heights, offset, offset + rowCount * samples, 0f);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.airhockey.android.objects;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads heights stored as a bare grid of samples, one row after another:
+ * 16-bit RAW exports from terrain tools, the pixels of a binary PGM, or
+ * 32-bit floats.
+ *
+ * Rows are read from a channel in bands into a single direct buffer, so
+ * memory use stays at a few rows however large the map is, and 16-bit
+ * and float samples keep their full precision.
+ */
+public class RawHeightSource implements HeightSource {
+    public static final int SAMPLE_UNSIGNED_BYTE = 1;
+    public static final int SAMPLE_UNSIGNED_SHORT = 2;
+    public static final int SAMPLE_FLOAT = 4;
+
+    // Roughly how much is read from the channel at a time.
+    private static final int BAND_BYTES = 64 * 1024;
+
+    private final ReadableByteChannel channel;
+    private final int width;
+    private final int height;
+    private final int sampleType;
+    private final float minValue;
+    private final float scale;
+    private final int rowBytes;
+    private final int bandRows;
+    private final ByteBuffer band;
+    private int nextRow;
+
+    /**
+     * Reads samples of sampleType, which is also their size in bytes.
+     * Unsigned samples are scaled from their full range to 0 to 1, and
+     * float samples are used as they are.
+     */
+    public RawHeightSource(ReadableByteChannel channel, int width, int height,
+                           int sampleType, ByteOrder order) {
+        this(channel, width, height, sampleType, order, 0f, getMaxValue(sampleType));
+    }
+
+    /**
+     * Reads samples of sampleType, mapping minValue to a height of 0 and
+     * maxValue to a height of 1.
+     */
+    public RawHeightSource(ReadableByteChannel channel, int width, int height,
+                           int sampleType, ByteOrder order, float minValue, float maxValue) {
+        if (sampleType != SAMPLE_UNSIGNED_BYTE && sampleType != SAMPLE_UNSIGNED_SHORT
+                && sampleType != SAMPLE_FLOAT) {
+            throw new IllegalArgumentException("Unknown sample type: " + sampleType);
+        }
+        if (width < 2 || height < 2) {
+            throw new IllegalArgumentException("Heightmap is too small: " + width + "x" + height);
+        }
+        this.channel = channel;
+        this.width = width;
+        this.height = height;
+        this.sampleType = sampleType;
+        this.minValue = minValue;
+        this.scale = 1f / (maxValue - minValue);
+        rowBytes = width * sampleType;
+        bandRows = Math.max(1, Math.min(height, BAND_BYTES / rowBytes));
+        band = ByteBuffer.allocateDirect(bandRows * rowBytes).order(order);
+    }
+
+    /**
+     * Opens a binary (P5) PGM image, 8 or 16 bits per sample, reading its
+     * header from channel. 16-bit samples are big-endian, as the format
+     * requires.
+     */
+    public static RawHeightSource openPgm(ReadableByteChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(1);
+        if (readHeaderByte(channel, header) != 'P' || readHeaderByte(channel, header) != '5') {
+            throw new IOException("Not a binary PGM image.");
+        }
+        final int width = readHeaderNumber(channel, header);
+        final int height = readHeaderNumber(channel, header);
+        final int maxValue = readHeaderNumber(channel, header);
+        if (maxValue <= 0 || maxValue > 65535) {
+            throw new IOException("Bad PGM maximum value: " + maxValue);
+        }
+        // readHeaderNumber has already used up the single whitespace
+        // character before the samples.
+        return new RawHeightSource(channel, width, height,
+                maxValue < 256 ? SAMPLE_UNSIGNED_BYTE : SAMPLE_UNSIGNED_SHORT,
+                ByteOrder.BIG_ENDIAN, 0f, maxValue);
+    }
+
+    private static int readHeaderNumber(ReadableByteChannel channel, ByteBuffer header)
+            throws IOException {
+        int c = readHeaderByte(channel, header);
+        while (true) {
+            if (c == '#') {
+                while (c != '\n' && c != '\r') {
+                    c = readHeaderByte(channel, header);
+                }
+            } else if (!Character.isWhitespace(c)) {
+                break;
+            }
+            c = readHeaderByte(channel, header);
+        }
+        int value = 0;
+        while (c >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            c = readHeaderByte(channel, header);
+        }
+        if (!Character.isWhitespace(c)) {
+            throw new IOException("Bad PGM header.");
+        }
+        return value;
+    }
+
+    private static int readHeaderByte(ReadableByteChannel channel, ByteBuffer header)
+            throws IOException {
+        header.clear();
+        readFully(channel, header);
+        return header.get(0) & 0xFF;
+    }
+
+    private static float getMaxValue(int sampleType) {
+        switch (sampleType) {
+            case SAMPLE_UNSIGNED_BYTE:
+                return 255f;
+            case SAMPLE_UNSIGNED_SHORT:
+                return 65535f;
+            default:
+                return 1f;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public void readRows(float[] heights, int offset, int rowCount) throws IOException {
+        if (nextRow + rowCount > height) {
+            throw new IllegalArgumentException("Only " + (height - nextRow) + " rows are left.");
+        }
+        while (rowCount > 0) {
+            final int rows = Math.min(bandRows, rowCount);
+            final int count = rows * width;
+            band.clear();
+            band.limit(rows * rowBytes);
+            readFully(channel, band);
+            band.flip();
+
+            switch (sampleType) {
+                case SAMPLE_UNSIGNED_BYTE:
+                    for (int i = 0; i < count; i++) {
+                        heights[offset + i] = ((band.get() & 0xFF) - minValue) * scale;
+                    }
+                    break;
+                case SAMPLE_UNSIGNED_SHORT:
+                    for (int i = 0; i < count; i++) {
+                        heights[offset + i] = ((band.getShort() & 0xFFFF) - minValue) * scale;
+                    }
+                    break;
+                default:
+                    for (int i = 0; i < count; i++) {
+                        heights[offset + i] = (band.getFloat() - minValue) * scale;
+                    }
+                    break;
+            }
+            offset += count;
+            nextRow += rows;
+            rowCount -= rows;
+        }
+    }
+
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of heightmap data.");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
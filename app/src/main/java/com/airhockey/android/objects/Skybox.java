@@ -2,6 +2,7 @@ package com.airhockey.android.objects;
 
 import com.airhockey.android.data.VertexArray;
 import com.airhockey.android.programs.SkyboxShaderProgram;
+import com.airhockey.android.util.GlState;
 
 import java.nio.ByteBuffer;
 import static android.opengl.GLES20.*;
@@ -63,6 +64,8 @@ public class Skybox {
     }
 
     public void draw() {
+        // The indices are in client memory.
+        GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, 0);
         glDrawElements(GL_TRIANGLES, 36, GL_UNSIGNED_BYTE, indexArray);
     }
 }
@@ -0,0 +1,41 @@
+package com.airhockey.android.objects;
+
+/**
+ * One rectangular piece of a chunked terrain mesh. A chunk covers the quads
+ * from firstRow to firstRow + rows and firstColumn to firstColumn +
+ * columns, so it owns (rows + 1) * (columns + 1) vertices, stored row by
+ * row starting at vertexOffset. Vertices on the border between two chunks
+ * are stored in both.
+ */
+public class TerrainChunk {
+    public final int firstRow;
+    public final int firstColumn;
+    public final int rows;
+    public final int columns;
+    public final int vertexOffset;
+
+    // Model-space bounds of the chunk.
+    public final float minX, minY, minZ;
+    public final float maxX, maxY, maxZ;
+
+    public TerrainChunk(int firstRow, int firstColumn, int rows, int columns,
+                        int vertexOffset,
+                        float minX, float minY, float minZ,
+                        float maxX, float maxY, float maxZ) {
+        this.firstRow = firstRow;
+        this.firstColumn = firstColumn;
+        this.rows = rows;
+        this.columns = columns;
+        this.vertexOffset = vertexOffset;
+        this.minX = minX;
+        this.minY = minY;
+        this.minZ = minZ;
+        this.maxX = maxX;
+        this.maxY = maxY;
+        this.maxZ = maxZ;
+    }
+
+    public int getVertexCount() {
+        return (rows + 1) * (columns + 1);
+    }
+}
@@ -0,0 +1,158 @@
+package com.airhockey.android.objects;
+
+import com.airhockey.android.util.VertexCacheOptimizer;
+
+/**
+ * Generates triangle indices for rectangular grids of terrain vertices.
+ *
+ * A plain row-major list walks a whole row before coming back to its
+ * vertices, so on rows longer than the post-transform cache nearly every
+ * vertex is shaded twice (an ACMR of about 1). The other orderings keep
+ * the shared vertices in the cache and get close to the 0.5 a grid allows.
+ * Use VertexCacheOptimizer.averageCacheMissRatio to compare them.
+ */
+public class TerrainIndexBuilder {
+    /** Triangles row by row across the whole grid. */
+    public static final int ORDER_ROW_MAJOR = 0;
+
+    /**
+     * Row by row within vertical bands narrow enough for the bottom row of
+     * one pass to still be cached on the next.
+     */
+    public static final int ORDER_COLUMN_BLOCKED = 1;
+
+    /** Row-major, reordered by VertexCacheOptimizer. */
+    public static final int ORDER_FORSYTH = 2;
+
+    public static final int DEFAULT_ORDERING = ORDER_COLUMN_BLOCKED;
+
+    /**
+     * Returns the indices of a grid of columns x rows quads, two triangles
+     * per quad, row by row. Vertices are numbered row by row with
+     * columns + 1 vertices per row.
+     */
+    public static int[] buildGridIndices(int columns, int rows) {
+        return buildGridIndices(columns, rows, ORDER_ROW_MAJOR);
+    }
+
+    public static int[] buildGridIndices(int columns, int rows, int ordering) {
+        switch (ordering) {
+            case ORDER_ROW_MAJOR:
+                return buildBlockedIndices(columns, rows, columns);
+            case ORDER_COLUMN_BLOCKED:
+                return buildBlockedIndices(columns, rows,
+                        getBlockColumns(VertexCacheOptimizer.DEFAULT_CACHE_SIZE));
+            case ORDER_FORSYTH:
+                return VertexCacheOptimizer.optimize(
+                        buildBlockedIndices(columns, rows, columns),
+                        (columns + 1) * (rows + 1));
+            default:
+                throw new IllegalArgumentException("Unknown index ordering: " + ordering);
+        }
+    }
+
+    /**
+     * Returns the widest band, in quads, whose two rows of vertices fit in
+     * a FIFO cache of cacheSize entries.
+     */
+    public static int getBlockColumns(int cacheSize) {
+        return Math.max(1, cacheSize / 2 - 1);
+    }
+
+    private static int[] buildBlockedIndices(int columns, int rows, int blockColumns) {
+        final int vertexColumns = columns + 1;
+        final int[] indexData = new int[columns * rows * 2 * 3];
+        int offset = 0;
+        for (int firstCol = 0; firstCol < columns; firstCol += blockColumns) {
+            final int endCol = Math.min(firstCol + blockColumns, columns);
+            for (int row = 0; row < rows; row++) {
+                for (int col = firstCol; col < endCol; col++) {
+                    int topLeftIndexNum = row * vertexColumns + col;
+                    int topRightIndexNum = row * vertexColumns + col + 1;
+                    int bottomLeftIndexNum = (row + 1) * vertexColumns + col;
+                    int bottomRightIndexNum = (row + 1) * vertexColumns + col + 1;
+
+                    // Write out two triangles.
+                    indexData[offset++] = topLeftIndexNum;
+                    indexData[offset++] = bottomLeftIndexNum;
+                    indexData[offset++] = topRightIndexNum;
+                    indexData[offset++] = topRightIndexNum;
+                    indexData[offset++] = bottomLeftIndexNum;
+                    indexData[offset++] = bottomRightIndexNum;
+                }
+            }
+        }
+        return indexData;
+    }
+
+    /**
+     * Returns the same grid as a single GL_TRIANGLE_STRIP, row by row within
+     * bands of blockColumns quads. Rows are joined by repeating the last
+     * index of one and the first of the next, which makes degenerate
+     * triangles that the GPU skips. The winding matches buildGridIndices.
+     */
+    public static int[] buildGridStrip(int columns, int rows, int blockColumns) {
+        final int vertexColumns = columns + 1;
+        int count = 0;
+        for (int firstCol = 0; firstCol < columns; firstCol += blockColumns) {
+            final int bandVertices = Math.min(blockColumns, columns - firstCol) + 1;
+            count += rows * (bandVertices * 2 + 2);
+        }
+        // No join after the last row.
+        count -= 2;
+
+        final int[] strip = new int[count];
+        int offset = 0;
+        for (int firstCol = 0; firstCol < columns; firstCol += blockColumns) {
+            final int endCol = Math.min(firstCol + blockColumns, columns);
+            for (int row = 0; row < rows; row++) {
+                if (offset > 0) {
+                    // Repeat the last index, then the first of this row.
+                    strip[offset] = strip[offset - 1];
+                    strip[offset + 1] = row * vertexColumns + firstCol;
+                    offset += 2;
+                }
+                for (int col = firstCol; col <= endCol; col++) {
+                    strip[offset++] = row * vertexColumns + col;
+                    strip[offset++] = (row + 1) * vertexColumns + col;
+                }
+            }
+        }
+        return strip;
+    }
+
+    /**
+     * Expands a triangle strip into the triangle list it draws, dropping
+     * degenerate triangles, so that strips can be measured and compared
+     * with lists. The vertices enter the cache in the same order.
+     */
+    public static int[] stripToTriangles(int[] strip) {
+        int triangles = 0;
+        for (int i = 2; i < strip.length; i++) {
+            if (!isDegenerate(strip[i - 2], strip[i - 1], strip[i])) {
+                triangles++;
+            }
+        }
+        final int[] indexData = new int[triangles * 3];
+        int offset = 0;
+        for (int i = 2; i < strip.length; i++) {
+            if (isDegenerate(strip[i - 2], strip[i - 1], strip[i])) {
+                continue;
+            }
+            // Every other triangle of a strip is wound the other way.
+            if ((i & 1) == 0) {
+                indexData[offset++] = strip[i - 2];
+                indexData[offset++] = strip[i - 1];
+            } else {
+                indexData[offset++] = strip[i - 1];
+                indexData[offset++] = strip[i - 2];
+            }
+            indexData[offset++] = strip[i];
+        }
+        return indexData;
+    }
+
+    private static boolean isDegenerate(int a, int b, int c) {
+        return a == b || b == c || a == c;
+    }
+}
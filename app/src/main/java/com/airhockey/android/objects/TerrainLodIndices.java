@@ -0,0 +1,294 @@
+package com.airhockey.android.objects;
+
+/**
+ * Decimated index patterns for drawing the chunks of a TerrainMesh at lower
+ * levels of detail (geomipmapping).
+ *
+ * Level L uses every 2^L-th row and column of a chunk, plus its last row
+ * and column so that chunks that aren't a multiple of 2^L still reach their
+ * edges. Each level is split into a body, the cells away from the chunk's
+ * border, and a ring of border cells. The ring comes in one variant for
+ * every combination of coarser neighbours: along an edge whose neighbour
+ * uses a coarser level, the border vertices are snapped back onto that
+ * neighbour's vertices. Triangles that collapse are dropped, and the edge
+ * ends up with exactly the vertices of the neighbour's edge, so there are
+ * no cracks. Neighbouring levels must differ by at most one.
+ *
+ * All indices are relative to a chunk's first vertex and fit in shorts.
+ */
+public class TerrainLodIndices {
+    /** Edge flags for the ring variants: set when that neighbour is coarser. */
+    public static final int EDGE_TOP = 1;
+    public static final int EDGE_RIGHT = 2;
+    public static final int EDGE_BOTTOM = 4;
+    public static final int EDGE_LEFT = 8;
+    private static final int EDGE_MASK_COUNT = 16;
+
+    public final short[] indices;
+    private final int levelCount;
+    private final int[] chunkShapes;
+    // [shape][level]
+    private final int[][] bodyOffsets;
+    private final int[][] bodyCounts;
+    // [shape][level * EDGE_MASK_COUNT + edgeMask]
+    private final int[][] ringOffsets;
+    private final int[][] ringCounts;
+
+    public TerrainLodIndices(TerrainMesh mesh) {
+        int levels = 1;
+        while ((1 << levels) <= mesh.chunkSize) {
+            levels++;
+        }
+        levelCount = levels;
+
+        // Only the last row and column of chunks can have a different size.
+        final int[] shapeRows = new int[4];
+        final int[] shapeColumns = new int[4];
+        int shapeCount = 0;
+        chunkShapes = new int[mesh.chunks.length];
+        for (int i = 0; i < mesh.chunks.length; i++) {
+            int shape = 0;
+            while (shape < shapeCount && (shapeRows[shape] != mesh.chunks[i].rows
+                    || shapeColumns[shape] != mesh.chunks[i].columns)) {
+                shape++;
+            }
+            if (shape == shapeCount) {
+                shapeRows[shape] = mesh.chunks[i].rows;
+                shapeColumns[shape] = mesh.chunks[i].columns;
+                shapeCount++;
+            }
+            chunkShapes[i] = shape;
+        }
+
+        bodyOffsets = new int[shapeCount][levelCount];
+        bodyCounts = new int[shapeCount][levelCount];
+        ringOffsets = new int[shapeCount][levelCount * EDGE_MASK_COUNT];
+        ringCounts = new int[shapeCount][levelCount * EDGE_MASK_COUNT];
+
+        // Count first, then fill, so that everything lands in one array.
+        int indexCount = 0;
+        for (int shape = 0; shape < shapeCount; shape++) {
+            for (int level = 0; level < levelCount; level++) {
+                bodyOffsets[shape][level] = indexCount;
+                bodyCounts[shape][level] = writeBody(null, 0,
+                        shapeColumns[shape], shapeRows[shape], level);
+                indexCount += bodyCounts[shape][level];
+                for (int edgeMask = 0; edgeMask < EDGE_MASK_COUNT; edgeMask++) {
+                    final int variant = level * EDGE_MASK_COUNT + edgeMask;
+                    ringOffsets[shape][variant] = indexCount;
+                    ringCounts[shape][variant] = writeRing(null, 0,
+                            shapeColumns[shape], shapeRows[shape], level, edgeMask);
+                    indexCount += ringCounts[shape][variant];
+                }
+            }
+        }
+
+        indices = new short[indexCount];
+        for (int shape = 0; shape < shapeCount; shape++) {
+            for (int level = 0; level < levelCount; level++) {
+                writeBody(indices, bodyOffsets[shape][level],
+                        shapeColumns[shape], shapeRows[shape], level);
+                for (int edgeMask = 0; edgeMask < EDGE_MASK_COUNT; edgeMask++) {
+                    writeRing(indices, ringOffsets[shape][level * EDGE_MASK_COUNT + edgeMask],
+                            shapeColumns[shape], shapeRows[shape], level, edgeMask);
+                }
+            }
+        }
+    }
+
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    public int getBodyOffset(int chunk, int level) {
+        return bodyOffsets[chunkShapes[chunk]][level];
+    }
+
+    public int getBodyCount(int chunk, int level) {
+        return bodyCounts[chunkShapes[chunk]][level];
+    }
+
+    public int getRingOffset(int chunk, int level, int edgeMask) {
+        return ringOffsets[chunkShapes[chunk]][level * EDGE_MASK_COUNT + edgeMask];
+    }
+
+    public int getRingCount(int chunk, int level, int edgeMask) {
+        return ringCounts[chunkShapes[chunk]][level * EDGE_MASK_COUNT + edgeMask];
+    }
+
+    /**
+     * Lowers levels until no chunk is more than one level coarser than any
+     * of its neighbours. levels holds one level per chunk, row by row.
+     */
+    public static void limitNeighbourLevels(int[] levels, int chunkRows, int chunkColumns) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int row = 0; row < chunkRows; row++) {
+                for (int col = 0; col < chunkColumns; col++) {
+                    final int i = row * chunkColumns + col;
+                    int limit = levels[i];
+                    if (row > 0) {
+                        limit = Math.min(limit, levels[i - chunkColumns] + 1);
+                    }
+                    if (row < chunkRows - 1) {
+                        limit = Math.min(limit, levels[i + chunkColumns] + 1);
+                    }
+                    if (col > 0) {
+                        limit = Math.min(limit, levels[i - 1] + 1);
+                    }
+                    if (col < chunkColumns - 1) {
+                        limit = Math.min(limit, levels[i + 1] + 1);
+                    }
+                    if (limit < levels[i]) {
+                        levels[i] = limit;
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the EDGE_ flags of the neighbours of chunk that use a coarser
+     * level than it does.
+     */
+    public static int getEdgeMask(int[] levels, int chunkRows, int chunkColumns, int chunk) {
+        final int row = chunk / chunkColumns;
+        final int col = chunk % chunkColumns;
+        final int level = levels[chunk];
+        int edgeMask = 0;
+        if (row > 0 && levels[chunk - chunkColumns] > level) {
+            edgeMask |= EDGE_TOP;
+        }
+        if (row < chunkRows - 1 && levels[chunk + chunkColumns] > level) {
+            edgeMask |= EDGE_BOTTOM;
+        }
+        if (col > 0 && levels[chunk - 1] > level) {
+            edgeMask |= EDGE_LEFT;
+        }
+        if (col < chunkColumns - 1 && levels[chunk + 1] > level) {
+            edgeMask |= EDGE_RIGHT;
+        }
+        return edgeMask;
+    }
+
+    /**
+     * Returns the rows or columns used at level: every step-th one up to
+     * size, and size itself.
+     */
+    private static int[] sampleLines(int size, int level) {
+        final int step = 1 << level;
+        final int count = (size + step - 1) / step + 1;
+        final int[] lines = new int[count];
+        for (int i = 0; i < count - 1; i++) {
+            lines[i] = i * step;
+        }
+        lines[count - 1] = size;
+        return lines;
+    }
+
+    // Writes the cells that don't touch the border, or only counts their
+    // indices if out is null.
+    private static int writeBody(short[] out, int offset, int columns, int rows, int level) {
+        final int[] cols = sampleLines(columns, level);
+        final int[] rowLines = sampleLines(rows, level);
+        final int vertexColumns = columns + 1;
+        int count = 0;
+        for (int i = 1; i < rowLines.length - 2; i++) {
+            for (int j = 1; j < cols.length - 2; j++) {
+                if (out != null) {
+                    final int top = rowLines[i] * vertexColumns;
+                    final int bottom = rowLines[i + 1] * vertexColumns;
+                    writeTriangle(out, offset + count,
+                            top + cols[j], bottom + cols[j], top + cols[j + 1]);
+                    writeTriangle(out, offset + count + 3,
+                            top + cols[j + 1], bottom + cols[j], bottom + cols[j + 1]);
+                }
+                count += 6;
+            }
+        }
+        return count;
+    }
+
+    // Writes the border cells with the edges in edgeMask snapped to the
+    // next coarser level, or only counts their indices if out is null.
+    private static int writeRing(short[] out, int offset, int columns, int rows,
+                                 int level, int edgeMask) {
+        final int[] cols = sampleLines(columns, level);
+        final int[] rowLines = sampleLines(rows, level);
+        final int coarseStep = 1 << (level + 1);
+        final int[] corners = new int[4 * 2];
+        int count = 0;
+        for (int i = 0; i < rowLines.length - 1; i++) {
+            for (int j = 0; j < cols.length - 1; j++) {
+                if (i != 0 && i != rowLines.length - 2 && j != 0 && j != cols.length - 2) {
+                    continue;
+                }
+                // Top left, bottom left, top right, bottom right.
+                setCorner(corners, 0, rowLines[i], cols[j]);
+                setCorner(corners, 1, rowLines[i + 1], cols[j]);
+                setCorner(corners, 2, rowLines[i], cols[j + 1]);
+                setCorner(corners, 3, rowLines[i + 1], cols[j + 1]);
+                for (int k = 0; k < 4; k++) {
+                    snap(corners, k, columns, rows, coarseStep, edgeMask);
+                }
+                final boolean splitOtherWay = (i == 0 && j == 0)
+                        || (i == rowLines.length - 2 && j == cols.length - 2);
+                if (splitOtherWay) {
+                    // The usual diagonal here would join vertices on two
+                    // different edges, which can fold over when both are
+                    // snapped.
+                    count += writeSnappedTriangle(out, offset + count, corners, 0, 1, 3, columns);
+                    count += writeSnappedTriangle(out, offset + count, corners, 0, 3, 2, columns);
+                } else {
+                    count += writeSnappedTriangle(out, offset + count, corners, 0, 1, 2, columns);
+                    count += writeSnappedTriangle(out, offset + count, corners, 2, 1, 3, columns);
+                }
+            }
+        }
+        return count;
+    }
+
+    private static void setCorner(int[] corners, int corner, int row, int col) {
+        corners[corner * 2] = row;
+        corners[corner * 2 + 1] = col;
+    }
+
+    private static void snap(int[] corners, int corner, int columns, int rows,
+                             int coarseStep, int edgeMask) {
+        final int row = corners[corner * 2];
+        final int col = corners[corner * 2 + 1];
+        // The chunk's corners are on every level, so they never move.
+        final boolean innerColumn = col != 0 && col != columns;
+        final boolean innerRow = row != 0 && row != rows;
+        if (innerColumn && ((row == 0 && (edgeMask & EDGE_TOP) != 0)
+                || (row == rows && (edgeMask & EDGE_BOTTOM) != 0))) {
+            corners[corner * 2 + 1] = col / coarseStep * coarseStep;
+        } else if (innerRow && ((col == 0 && (edgeMask & EDGE_LEFT) != 0)
+                || (col == columns && (edgeMask & EDGE_RIGHT) != 0))) {
+            corners[corner * 2] = row / coarseStep * coarseStep;
+        }
+    }
+
+    private static int writeSnappedTriangle(short[] out, int offset, int[] corners,
+                                            int a, int b, int c, int columns) {
+        final int vertexColumns = columns + 1;
+        final int indexA = corners[a * 2] * vertexColumns + corners[a * 2 + 1];
+        final int indexB = corners[b * 2] * vertexColumns + corners[b * 2 + 1];
+        final int indexC = corners[c * 2] * vertexColumns + corners[c * 2 + 1];
+        if (indexA == indexB || indexB == indexC || indexA == indexC) {
+            return 0;
+        }
+        if (out != null) {
+            writeTriangle(out, offset, indexA, indexB, indexC);
+        }
+        return 3;
+    }
+
+    private static void writeTriangle(short[] out, int offset, int a, int b, int c) {
+        out[offset] = (short) a;
+        out[offset + 1] = (short) b;
+        out[offset + 2] = (short) c;
+    }
+}
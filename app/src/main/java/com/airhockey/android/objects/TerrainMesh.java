@@ -0,0 +1,88 @@
+package com.airhockey.android.objects;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The CPU-side data of a chunked terrain: the vertices of every chunk one
+ * after the other, the chunk table, and the triangle indices.
+ *
+ * Indices come in one of two forms. With shortIndices, every chunk is drawn
+ * with a pattern relative to its own first vertex, and chunks of the same
+ * size share the same pattern. With intIndices, every chunk has its own
+ * indices into the whole vertex array, for GPUs that support 32-bit
+ * indices. Either way, chunk i is drawn with indexCounts[i] indices
+ * starting at indexOffsets[i].
+ *
+ * A mesh read back from a TerrainMeshCache, or packed with
+ * TerrainMeshBuilder.quantize, has no arrays; its vertices and indices are
+ * in vertexData and indexData instead, ready for the GPU. Its vertices are
+ * in the quantized layout if quantizedVertices is set.
+ */
+public class TerrainMesh {
+    public final int width;
+    public final int height;
+    public final int chunkSize;
+    public final int chunkRows;
+    public final int chunkColumns;
+    public final TerrainChunk[] chunks;
+    public final float[] vertices;
+    public final short[] shortIndices;
+    public final int[] intIndices;
+    public final int[] indexOffsets;
+    public final int[] indexCounts;
+    public final ByteBuffer vertexData;
+    public final ByteBuffer indexData;
+    public final boolean quantizedVertices;
+    private final boolean intIndexed;
+
+    public TerrainMesh(int width, int height, int chunkSize,
+                       int chunkRows, int chunkColumns, TerrainChunk[] chunks,
+                       float[] vertices, short[] shortIndices, int[] intIndices,
+                       int[] indexOffsets, int[] indexCounts) {
+        this.width = width;
+        this.height = height;
+        this.chunkSize = chunkSize;
+        this.chunkRows = chunkRows;
+        this.chunkColumns = chunkColumns;
+        this.chunks = chunks;
+        this.vertices = vertices;
+        this.shortIndices = shortIndices;
+        this.intIndices = intIndices;
+        this.indexOffsets = indexOffsets;
+        this.indexCounts = indexCounts;
+        this.vertexData = null;
+        this.indexData = null;
+        this.quantizedVertices = false;
+        this.intIndexed = intIndices != null;
+    }
+
+    public TerrainMesh(int width, int height, int chunkSize,
+                       int chunkRows, int chunkColumns, TerrainChunk[] chunks,
+                       ByteBuffer vertexData, boolean quantizedVertices,
+                       ByteBuffer indexData, boolean intIndexed,
+                       int[] indexOffsets, int[] indexCounts) {
+        this.width = width;
+        this.height = height;
+        this.chunkSize = chunkSize;
+        this.chunkRows = chunkRows;
+        this.chunkColumns = chunkColumns;
+        this.chunks = chunks;
+        this.vertices = null;
+        this.shortIndices = null;
+        this.intIndices = null;
+        this.indexOffsets = indexOffsets;
+        this.indexCounts = indexCounts;
+        this.vertexData = vertexData;
+        this.indexData = indexData;
+        this.quantizedVertices = quantizedVertices;
+        this.intIndexed = intIndexed;
+    }
+
+    public boolean hasIntIndices() {
+        return intIndexed;
+    }
+
+    public TerrainChunk getChunk(int chunkRow, int chunkColumn) {
+        return chunks[chunkRow * chunkColumns + chunkColumn];
+    }
+}
@@ -0,0 +1,489 @@
+package com.airhockey.android.objects;
+
+import com.airhockey.android.Constants;
+import com.airhockey.android.util.Parallel;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Turns a grid of heights into interleaved terrain vertices: a position
+ * followed by a normal for every grid sample.
+ *
+ * Positions run from -0.5 to 0.5 along x (columns) and z (rows). Normals
+ * come from central differences between each sample's left/right and
+ * top/bottom neighbours, clamped at the edges. All of this works on
+ * primitive arrays and splits the rows into bands across all cores.
+ */
+public class TerrainMeshBuilder {
+    public static final int POSITION_COMPONENT_COUNT = 3;
+    public static final int NORMAL_COMPONENT_COUNT = 3;
+    public static final int TOTAL_COMPONENT_COUNT =
+            POSITION_COMPONENT_COUNT + NORMAL_COMPONENT_COUNT;
+
+    /**
+     * Quads along each side of a chunk. (64 + 1)^2 vertices per chunk keeps
+     * every chunk well inside 16-bit index range.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64;
+
+    /** The largest chunk whose vertices can still be reached by short indices. */
+    public static final int MAX_SHORT_CHUNK_SIZE = 255;
+
+    // The quantized layout: x, y, z and w as normalized shorts, then the
+    // octahedral-encoded normal as two normalized shorts. 12 bytes instead
+    // of 24. x and z are stored doubled, so the shader scales them by 0.5.
+    public static final int QUANTIZED_POSITION_COMPONENT_COUNT = 4;
+    public static final int QUANTIZED_NORMAL_COMPONENT_COUNT = 2;
+    public static final int QUANTIZED_COMPONENT_COUNT =
+            QUANTIZED_POSITION_COMPONENT_COUNT + QUANTIZED_NORMAL_COMPONENT_COUNT;
+    public static final int QUANTIZED_STRIDE =
+            QUANTIZED_COMPONENT_COUNT * Constants.BYTES_PER_SHORT;
+    public static final int QUANTIZED_NORMAL_OFFSET =
+            QUANTIZED_POSITION_COMPONENT_COUNT * Constants.BYTES_PER_SHORT;
+
+    private static final int MIN_ROWS_PER_TASK = 16;
+    private static final int MIN_VERTICES_PER_TASK = 4096;
+
+    /**
+     * @param heights width * height heights, row by row.
+     */
+    public static float[] buildVertices(final float[] heights, final int width,
+                                        final int height) {
+        final float[] vertices = new float[width * height * TOTAL_COMPONENT_COUNT];
+        final float[] xs = gridCoordinates(width);
+        final float[] zs = gridCoordinates(height);
+
+        Parallel.forRange(0, height, MIN_ROWS_PER_TASK, new Parallel.RangeTask() {
+            @Override
+            public void run(int start, int end) {
+                buildRows(heights, width, height, xs, zs, vertices,
+                        start, end, 0, width, start * width * TOTAL_COMPONENT_COUNT);
+            }
+        });
+        return vertices;
+    }
+
+    /**
+     * Splits the grid into chunks of up to chunkSize x chunkSize quads and
+     * builds the vertices of each chunk into its own range.
+     *
+     * @param intIndices true to build absolute 32-bit indices for each chunk,
+     *                   false to build shared 16-bit patterns.
+     */
+    public static TerrainMesh buildChunkedMesh(float[] heights, int width, int height,
+                                               int chunkSize, boolean intIndices) {
+        return buildChunkedMesh(heights, width, height, chunkSize, intIndices,
+                TerrainIndexBuilder.DEFAULT_ORDERING);
+    }
+
+    /**
+     * @param ordering one of the TerrainIndexBuilder.ORDER_ constants.
+     */
+    public static TerrainMesh buildChunkedMesh(final float[] heights, final int width,
+                                               final int height, final int chunkSize,
+                                               boolean intIndices, int ordering) {
+        if (chunkSize < 1 || chunkSize > MAX_SHORT_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be from 1 to "
+                    + MAX_SHORT_CHUNK_SIZE + ".");
+        }
+        final int quadColumns = width - 1;
+        final int quadRows = height - 1;
+        final int chunkColumns = (quadColumns + chunkSize - 1) / chunkSize;
+        final int chunkRows = (quadRows + chunkSize - 1) / chunkSize;
+
+        // Lay out the chunks, one after the other, row by row.
+        final int[] firstRows = new int[chunkRows * chunkColumns];
+        final int[] firstColumns = new int[firstRows.length];
+        final int[] rowCounts = new int[firstRows.length];
+        final int[] columnCounts = new int[firstRows.length];
+        final int[] vertexOffsets = new int[firstRows.length];
+        int vertexCount = 0;
+        for (int chunkRow = 0; chunkRow < chunkRows; chunkRow++) {
+            for (int chunkColumn = 0; chunkColumn < chunkColumns; chunkColumn++) {
+                final int i = chunkRow * chunkColumns + chunkColumn;
+                firstRows[i] = chunkRow * chunkSize;
+                firstColumns[i] = chunkColumn * chunkSize;
+                rowCounts[i] = Math.min(chunkSize, quadRows - firstRows[i]);
+                columnCounts[i] = Math.min(chunkSize, quadColumns - firstColumns[i]);
+                vertexOffsets[i] = vertexCount;
+                vertexCount += (rowCounts[i] + 1) * (columnCounts[i] + 1);
+            }
+        }
+
+        final float[] vertices = new float[vertexCount * TOTAL_COMPONENT_COUNT];
+        final float[] xs = gridCoordinates(width);
+        final float[] zs = gridCoordinates(height);
+        final TerrainChunk[] chunks = new TerrainChunk[firstRows.length];
+
+        Parallel.forRange(0, chunks.length, 1, new Parallel.RangeTask() {
+            @Override
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    final int endRow = firstRows[i] + rowCounts[i] + 1;
+                    final int endColumn = firstColumns[i] + columnCounts[i] + 1;
+                    final int offset = vertexOffsets[i] * TOTAL_COMPONENT_COUNT;
+                    buildRows(heights, width, height, xs, zs, vertices,
+                            firstRows[i], endRow, firstColumns[i], endColumn, offset);
+
+                    float minY = Float.MAX_VALUE;
+                    float maxY = -Float.MAX_VALUE;
+                    final int endOffset = offset
+                            + (rowCounts[i] + 1) * (columnCounts[i] + 1) * TOTAL_COMPONENT_COUNT;
+                    for (int y = offset + 1; y < endOffset; y += TOTAL_COMPONENT_COUNT) {
+                        minY = Math.min(minY, vertices[y]);
+                        maxY = Math.max(maxY, vertices[y]);
+                    }
+                    chunks[i] = new TerrainChunk(firstRows[i], firstColumns[i],
+                            rowCounts[i], columnCounts[i], vertexOffsets[i],
+                            xs[firstColumns[i] + 1], minY, zs[firstRows[i] + 1],
+                            xs[endColumn], maxY, zs[endRow]);
+                }
+            }
+        });
+
+        // Only the last row and column of chunks can be smaller than the
+        // rest, so there are at most four distinct index patterns.
+        final int[] patternColumns = new int[4];
+        final int[] patternRows = new int[4];
+        final int[][] patterns = new int[4][];
+        final int[] chunkPatterns = new int[chunks.length];
+        int patternCount = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            int pattern = 0;
+            while (pattern < patternCount && (patternColumns[pattern] != chunks[i].columns
+                    || patternRows[pattern] != chunks[i].rows)) {
+                pattern++;
+            }
+            if (pattern == patternCount) {
+                patternColumns[pattern] = chunks[i].columns;
+                patternRows[pattern] = chunks[i].rows;
+                patterns[pattern] = TerrainIndexBuilder.buildGridIndices(
+                        chunks[i].columns, chunks[i].rows, ordering);
+                patternCount++;
+            }
+            chunkPatterns[i] = pattern;
+        }
+
+        final int[] indexOffsets = new int[chunks.length];
+        final int[] indexCounts = new int[chunks.length];
+        if (intIndices) {
+            int indexCount = 0;
+            for (int i = 0; i < chunks.length; i++) {
+                indexOffsets[i] = indexCount;
+                indexCounts[i] = patterns[chunkPatterns[i]].length;
+                indexCount += indexCounts[i];
+            }
+            final int[] indices = new int[indexCount];
+            for (int i = 0; i < chunks.length; i++) {
+                final int[] pattern = patterns[chunkPatterns[i]];
+                for (int j = 0; j < pattern.length; j++) {
+                    indices[indexOffsets[i] + j] = pattern[j] + chunks[i].vertexOffset;
+                }
+            }
+            return new TerrainMesh(width, height, chunkSize, chunkRows, chunkColumns,
+                    chunks, vertices, null, indices, indexOffsets, indexCounts);
+        }
+
+        final int[] patternOffsets = new int[4];
+        int indexCount = 0;
+        for (int pattern = 0; pattern < patternCount; pattern++) {
+            patternOffsets[pattern] = indexCount;
+            indexCount += patterns[pattern].length;
+        }
+        final short[] indices = new short[indexCount];
+        for (int pattern = 0; pattern < patternCount; pattern++) {
+            for (int j = 0; j < patterns[pattern].length; j++) {
+                indices[patternOffsets[pattern] + j] = (short) patterns[pattern][j];
+            }
+        }
+        for (int i = 0; i < chunks.length; i++) {
+            indexOffsets[i] = patternOffsets[chunkPatterns[i]];
+            indexCounts[i] = patterns[chunkPatterns[i]].length;
+        }
+        return new TerrainMesh(width, height, chunkSize, chunkRows, chunkColumns,
+                chunks, vertices, indices, null, indexOffsets, indexCounts);
+    }
+
+    /**
+     * Returns a copy of mesh with its vertices in the quantized layout and
+     * its vertices and indices in native buffers, ready for the GPU.
+     * Heights must be from 0 to 1.
+     */
+    public static TerrainMesh quantize(TerrainMesh mesh) {
+        final float[] vertices = mesh.vertices;
+        final int vertexCount = vertices.length / TOTAL_COMPONENT_COUNT;
+        final short[] packed = new short[vertexCount * QUANTIZED_COMPONENT_COUNT];
+        Parallel.forRange(0, vertexCount, MIN_VERTICES_PER_TASK, new Parallel.RangeTask() {
+            @Override
+            public void run(int start, int end) {
+                for (int i = start; i < end; i++) {
+                    quantizeVertex(vertices, i * TOTAL_COMPONENT_COUNT,
+                            packed, i * QUANTIZED_COMPONENT_COUNT);
+                }
+            }
+        });
+
+        final ByteBuffer vertexData = ByteBuffer
+                .allocateDirect(packed.length * Constants.BYTES_PER_SHORT)
+                .order(ByteOrder.nativeOrder());
+        vertexData.asShortBuffer().put(packed);
+
+        return new TerrainMesh(mesh.width, mesh.height, mesh.chunkSize,
+                mesh.chunkRows, mesh.chunkColumns, mesh.chunks,
+                vertexData, true, toIndexData(mesh), mesh.hasIntIndices(),
+                mesh.indexOffsets, mesh.indexCounts);
+    }
+
+    /**
+     * Returns a copy of mesh with its float vertices and its indices in
+     * native buffers, so that they can be prepared away from the GL thread.
+     */
+    public static TerrainMesh toBuffers(TerrainMesh mesh) {
+        final ByteBuffer vertexData = ByteBuffer
+                .allocateDirect(mesh.vertices.length * Constants.BYTES_PER_FLOAT)
+                .order(ByteOrder.nativeOrder());
+        vertexData.asFloatBuffer().put(mesh.vertices);
+
+        return new TerrainMesh(mesh.width, mesh.height, mesh.chunkSize,
+                mesh.chunkRows, mesh.chunkColumns, mesh.chunks,
+                vertexData, false, toIndexData(mesh), mesh.hasIntIndices(),
+                mesh.indexOffsets, mesh.indexCounts);
+    }
+
+    /**
+     * Builds the vertices of the whole grid as a single chunk, straight
+     * into a native buffer in the float or the quantized layout. Unlike
+     * buildChunkedMesh this builds no indices and runs on the calling
+     * thread, for grids of one size that share an index buffer from
+     * buildIndexData, such as streamed tiles.
+     */
+    public static ByteBuffer buildVertexData(float[] heights, int width, int height,
+                                             boolean quantized) {
+        final float[] vertices = new float[width * height * TOTAL_COMPONENT_COUNT];
+        buildRows(heights, width, height, gridCoordinates(width), gridCoordinates(height),
+                vertices, 0, height, 0, width, 0);
+        if (!quantized) {
+            final ByteBuffer vertexData = ByteBuffer
+                    .allocateDirect(vertices.length * Constants.BYTES_PER_FLOAT)
+                    .order(ByteOrder.nativeOrder());
+            vertexData.asFloatBuffer().put(vertices);
+            return vertexData;
+        }
+        final int vertexCount = width * height;
+        final short[] packed = new short[vertexCount * QUANTIZED_COMPONENT_COUNT];
+        for (int i = 0; i < vertexCount; i++) {
+            quantizeVertex(vertices, i * TOTAL_COMPONENT_COUNT, packed,
+                    i * QUANTIZED_COMPONENT_COUNT);
+        }
+        final ByteBuffer vertexData = ByteBuffer
+                .allocateDirect(packed.length * Constants.BYTES_PER_SHORT)
+                .order(ByteOrder.nativeOrder());
+        vertexData.asShortBuffer().put(packed);
+        return vertexData;
+    }
+
+    /**
+     * Builds the 16-bit indices of a chunk of columns x rows quads, in the
+     * order buildChunkedMesh uses, into a native buffer.
+     */
+    public static ByteBuffer buildIndexData(int columns, int rows) {
+        if (columns < 1 || rows < 1 || columns > MAX_SHORT_CHUNK_SIZE
+                || rows > MAX_SHORT_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be from 1 to "
+                    + MAX_SHORT_CHUNK_SIZE + ".");
+        }
+        final int[] indices = TerrainIndexBuilder.buildGridIndices(columns, rows,
+                TerrainIndexBuilder.DEFAULT_ORDERING);
+        final ByteBuffer indexData = ByteBuffer
+                .allocateDirect(indices.length * Constants.BYTES_PER_SHORT)
+                .order(ByteOrder.nativeOrder());
+        for (int i = 0; i < indices.length; i++) {
+            indexData.putShort(i * Constants.BYTES_PER_SHORT, (short) indices[i]);
+        }
+        return indexData;
+    }
+
+    private static ByteBuffer toIndexData(TerrainMesh mesh) {
+        final ByteBuffer indexData;
+        if (mesh.hasIntIndices()) {
+            indexData = ByteBuffer
+                    .allocateDirect(mesh.intIndices.length * Constants.BYTES_PER_INT)
+                    .order(ByteOrder.nativeOrder());
+            indexData.asIntBuffer().put(mesh.intIndices);
+        } else {
+            indexData = ByteBuffer
+                    .allocateDirect(mesh.shortIndices.length * Constants.BYTES_PER_SHORT)
+                    .order(ByteOrder.nativeOrder());
+            indexData.asShortBuffer().put(mesh.shortIndices);
+        }
+        return indexData;
+    }
+
+    /**
+     * Rewrites the vertices affected by a change to the heights from
+     * startRow to endRow and startColumn to endColumn (exclusive): those
+     * samples and their neighbours, whose normals use them. Every copy of
+     * a vertex is updated, in whichever chunks hold it, in vertexData in
+     * the float or the quantized layout.
+     *
+     * For each chunk touched, the byte range of vertexData that changed is
+     * written to dirtyRanges as a start and an end.
+     *
+     * @return the number of ranges written.
+     */
+    public static int rebuildRegion(float[] heights, int width, int height,
+                                    TerrainChunk[] chunks, int startRow, int endRow,
+                                    int startColumn, int endColumn,
+                                    ByteBuffer vertexData, boolean quantized,
+                                    int[] dirtyRanges) {
+        startRow = Math.max(0, startRow - 1);
+        endRow = Math.min(height, endRow + 1);
+        startColumn = Math.max(0, startColumn - 1);
+        endColumn = Math.min(width, endColumn + 1);
+        final float[] xs = gridCoordinates(width);
+        final float[] zs = gridCoordinates(height);
+        final float[] rowVertices = new float[(endColumn - startColumn) * TOTAL_COMPONENT_COUNT];
+        final short[] packed = new short[QUANTIZED_COMPONENT_COUNT];
+        final int stride = quantized
+                ? QUANTIZED_STRIDE : TOTAL_COMPONENT_COUNT * Constants.BYTES_PER_FLOAT;
+
+        int rangeCount = 0;
+        for (TerrainChunk chunk : chunks) {
+            // The chunk's vertices run to firstRow + rows inclusive.
+            final int firstRow = Math.max(startRow, chunk.firstRow);
+            final int lastRow = Math.min(endRow, chunk.firstRow + chunk.rows + 1);
+            final int firstColumn = Math.max(startColumn, chunk.firstColumn);
+            final int lastColumn = Math.min(endColumn, chunk.firstColumn + chunk.columns + 1);
+            if (firstRow >= lastRow || firstColumn >= lastColumn) {
+                continue;
+            }
+
+            final int vertexColumns = chunk.columns + 1;
+            for (int row = firstRow; row < lastRow; row++) {
+                buildRows(heights, width, height, xs, zs, rowVertices,
+                        row, row + 1, firstColumn, lastColumn, 0);
+                int vertex = chunk.vertexOffset + (row - chunk.firstRow) * vertexColumns
+                        + (firstColumn - chunk.firstColumn);
+                for (int col = firstColumn; col < lastColumn; col++, vertex++) {
+                    final int source = (col - firstColumn) * TOTAL_COMPONENT_COUNT;
+                    final int target = vertex * stride;
+                    if (quantized) {
+                        quantizeVertex(rowVertices, source, packed, 0);
+                        for (int k = 0; k < QUANTIZED_COMPONENT_COUNT; k++) {
+                            vertexData.putShort(target + k * Constants.BYTES_PER_SHORT,
+                                    packed[k]);
+                        }
+                    } else {
+                        for (int k = 0; k < TOTAL_COMPONENT_COUNT; k++) {
+                            vertexData.putFloat(target + k * Constants.BYTES_PER_FLOAT,
+                                    rowVertices[source + k]);
+                        }
+                    }
+                }
+            }
+
+            final int firstVertex = chunk.vertexOffset
+                    + (firstRow - chunk.firstRow) * vertexColumns
+                    + (firstColumn - chunk.firstColumn);
+            final int lastVertex = chunk.vertexOffset
+                    + (lastRow - 1 - chunk.firstRow) * vertexColumns
+                    + (lastColumn - 1 - chunk.firstColumn);
+            dirtyRanges[rangeCount * 2] = firstVertex * stride;
+            dirtyRanges[rangeCount * 2 + 1] = (lastVertex + 1) * stride;
+            rangeCount++;
+        }
+        return rangeCount;
+    }
+
+    static void quantizeVertex(float[] vertices, int offset, short[] packed, int packedOffset) {
+        packed[packedOffset] = toNormalizedShort(vertices[offset] * 2f);
+        packed[packedOffset + 1] = toNormalizedShort(vertices[offset + 1]);
+        packed[packedOffset + 2] = toNormalizedShort(vertices[offset + 2] * 2f);
+        packed[packedOffset + 3] = Short.MAX_VALUE;
+
+        // Project the normal onto the octahedron |x| + |y| + |z| = 1 and
+        // unfold it around y, the up axis, so that terrain normals land
+        // near the middle. The lower half folds out over the corners.
+        final float nx = vertices[offset + 3];
+        final float ny = vertices[offset + 4];
+        final float nz = vertices[offset + 5];
+        final float length = Math.abs(nx) + Math.abs(ny) + Math.abs(nz);
+        float u = nx / length;
+        float v = nz / length;
+        if (ny < 0f) {
+            final float foldedU = (1f - Math.abs(v)) * (u >= 0f ? 1f : -1f);
+            final float foldedV = (1f - Math.abs(u)) * (v >= 0f ? 1f : -1f);
+            u = foldedU;
+            v = foldedV;
+        }
+        packed[packedOffset + 4] = toNormalizedShort(u);
+        packed[packedOffset + 5] = toNormalizedShort(v);
+    }
+
+    private static short toNormalizedShort(float value) {
+        return (short) Math.round(Math.max(-1f, Math.min(1f, value)) * Short.MAX_VALUE);
+    }
+
+    /**
+     * Grid coordinates from -0.5 to 0.5, including one step past each edge.
+     * Neighbours past the edge keep their own x or z but take the edge's
+     * height. Sample i is at index i + 1.
+     */
+    private static float[] gridCoordinates(int count) {
+        final float[] coordinates = new float[count + 2];
+        for (int i = -1; i <= count; i++) {
+            coordinates[i + 1] = ((float) i / (float) (count - 1)) - 0.5f;
+        }
+        return coordinates;
+    }
+
+    private static void buildRows(float[] heights, int width, int height,
+                                  float[] xs, float[] zs, float[] vertices,
+                                  int startRow, int endRow, int startColumn,
+                                  int endColumn, int offset) {
+        for (int row = startRow; row < endRow; row++) {
+            final int rowAbove = Math.max(row - 1, 0);
+            final int rowBelow = Math.min(row + 1, height - 1);
+            final float z = zs[row + 1];
+            final float topZ = zs[row];
+            final float bottomZ = zs[row + 2];
+
+            for (int col = startColumn; col < endColumn; col++) {
+                final int colLeft = Math.max(col - 1, 0);
+                final int colRight = Math.min(col + 1, width - 1);
+                final float x = xs[col + 1];
+                final float leftX = xs[col];
+                final float rightX = xs[col + 2];
+
+                final float y = heights[row * width + col];
+                final float leftY = heights[row * width + colLeft];
+                final float rightY = heights[row * width + colRight];
+                final float topY = heights[rowAbove * width + col];
+                final float bottomY = heights[rowBelow * width + col];
+
+                vertices[offset++] = x;
+                vertices[offset++] = y;
+                vertices[offset++] = z;
+
+                // Right to left crossed with top to bottom, normalized.
+                // Written out in full, in the same order as the Geometry
+                // versions, so the results match them bit for bit.
+                final float rlx = leftX - rightX;
+                final float rly = leftY - rightY;
+                final float rlz = z - z;
+                final float tbx = x - x;
+                final float tby = bottomY - topY;
+                final float tbz = bottomZ - topZ;
+                final float nx = (rly * tbz) - (rlz * tby);
+                final float ny = (rlz * tbx) - (rlx * tbz);
+                final float nz = (rlx * tby) - (rly * tbx);
+                final float scale = 1f / (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+
+                vertices[offset++] = nx * scale;
+                vertices[offset++] = ny * scale;
+                vertices[offset++] = nz * scale;
+            }
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.airhockey.android.objects;
+
+import android.util.Log;
+
+import com.airhockey.android.Constants;
+import com.airhockey.android.util.LoggerConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keeps built terrain meshes on disk, so that later starts and GL context
+ * losses can skip decoding the heightmap and building the mesh.
+ *
+ * Each entry is one file named after its key, a hash of the source image
+ * and everything that affects the mesh. Files are written in native byte
+ * order and read back with FileChannel.map, and the vertex and index
+ * sections are handed to the GPU straight from the mapping. Files from
+ * another version or byte order are ignored and rewritten.
+ *
+ * File layout, all 4-byte words:
+ * header (MAGIC, VERSION, key as two words, width, height, chunkSize,
+ * chunkRows, chunkColumns, flags, vertex byte count, index count), then
+ * per chunk its firstRow, firstColumn, rows, columns, vertexOffset and
+ * bounds, then indexOffsets, indexCounts, the heights, the vertices in
+ * either layout, and the indices padded to a whole word.
+ */
+public class TerrainMeshCache {
+    private static final String TAG = "TerrainMeshCache";
+
+    private static final int MAGIC = 0x544D4331; // "TMC1"
+    /** Bump whenever the file layout or the mesh it holds changes. */
+    public static final int VERSION = 2;
+
+    private static final int FLAG_INT_INDICES = 1;
+    private static final int FLAG_QUANTIZED_VERTICES = 2;
+
+    private static final int HEADER_WORDS = 12;
+    private static final int CHUNK_WORDS = 11;
+
+    private final File directory;
+
+    /**
+     * A mesh read from the cache, with the heights it was built from.
+     */
+    public static class Entry {
+        public final float[] heights;
+        public final TerrainMesh mesh;
+
+        public Entry(float[] heights, TerrainMesh mesh) {
+            this.heights = heights;
+            this.mesh = mesh;
+        }
+    }
+
+    public TerrainMeshCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Hashes the bytes of source together with parameters, which should
+     * include everything else the mesh depends on. Closes source.
+     */
+    public static long computeKey(InputStream source, int... parameters) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            final ByteBuffer extra = ByteBuffer.allocate((parameters.length + 1) * 4);
+            extra.putInt(VERSION);
+            for (int parameter : parameters) {
+                extra.putInt(parameter);
+            }
+            digest.update(extra.array());
+
+            final byte[] hash = digest.digest();
+            long key = 0;
+            for (int i = 0; i < 8; i++) {
+                key = (key << 8) | (hash[i] & 0xFF);
+            }
+            return key;
+        } catch (IOException e) {
+            throw new RuntimeException("Could not read heightmap source.", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("SHA-1 is not available.", e);
+        } finally {
+            try {
+                source.close();
+            } catch (IOException e) {
+                // Nothing more to do with it.
+            }
+        }
+    }
+
+    /**
+     * Returns the entry stored under key, or null if there is none or it
+     * can't be used.
+     */
+    public Entry load(long key) {
+        final File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            final RandomAccessFile input = new RandomAccessFile(file, "r");
+            final MappedByteBuffer mapped;
+            try {
+                // The mapping stays valid after the file is closed.
+                mapped = input.getChannel()
+                        .map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+            } finally {
+                input.close();
+            }
+            final Entry entry = read(mapped.order(ByteOrder.nativeOrder()), key);
+            if (entry == null && LoggerConfig.ON) {
+                Log.w(TAG, "Ignoring stale terrain cache file " + file);
+            }
+            return entry;
+        } catch (IOException e) {
+            if (LoggerConfig.ON) {
+                Log.w(TAG, "Could not read terrain cache file " + file, e);
+            }
+            return null;
+        }
+    }
+
+    private static Entry read(ByteBuffer buffer, long key) {
+        if (buffer.capacity() < HEADER_WORDS * 4
+                || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION
+                || buffer.getLong(8) != key) {
+            return null;
+        }
+        final int width = buffer.getInt(16);
+        final int height = buffer.getInt(20);
+        final int chunkSize = buffer.getInt(24);
+        final int chunkRows = buffer.getInt(28);
+        final int chunkColumns = buffer.getInt(32);
+        final int flags = buffer.getInt(36);
+        final boolean intIndices = (flags & FLAG_INT_INDICES) != 0;
+        final boolean quantizedVertices = (flags & FLAG_QUANTIZED_VERTICES) != 0;
+        final int vertexByteCount = buffer.getInt(40);
+        final int indexCount = buffer.getInt(44);
+        final int chunkCount = chunkRows * chunkColumns;
+        if (buffer.capacity() != getFileSize(width * height, chunkCount,
+                vertexByteCount, indexCount, intIndices)) {
+            return null;
+        }
+
+        int position = HEADER_WORDS * 4;
+        final TerrainChunk[] chunks = new TerrainChunk[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            chunks[i] = new TerrainChunk(buffer.getInt(position), buffer.getInt(position + 4),
+                    buffer.getInt(position + 8), buffer.getInt(position + 12),
+                    buffer.getInt(position + 16),
+                    buffer.getFloat(position + 20), buffer.getFloat(position + 24),
+                    buffer.getFloat(position + 28), buffer.getFloat(position + 32),
+                    buffer.getFloat(position + 36), buffer.getFloat(position + 40));
+            position += CHUNK_WORDS * 4;
+        }
+        final int[] indexOffsets = new int[chunkCount];
+        final int[] indexCounts = new int[chunkCount];
+        buffer.position(position);
+        buffer.asIntBuffer().get(indexOffsets);
+        position += chunkCount * 4;
+        buffer.position(position);
+        buffer.asIntBuffer().get(indexCounts);
+        position += chunkCount * 4;
+
+        final float[] heights = new float[width * height];
+        buffer.position(position);
+        buffer.asFloatBuffer().get(heights);
+        position += heights.length * 4;
+
+        final ByteBuffer vertexData = slice(buffer, position, vertexByteCount);
+        position += vertexByteCount;
+        final ByteBuffer indexData = slice(buffer, position,
+                indexCount * getIndexSize(intIndices));
+
+        return new Entry(heights, new TerrainMesh(width, height, chunkSize,
+                chunkRows, chunkColumns, chunks, vertexData, quantizedVertices,
+                indexData, intIndices, indexOffsets, indexCounts));
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        buffer.limit(position + length);
+        buffer.position(position);
+        final ByteBuffer slice = buffer.slice().order(ByteOrder.nativeOrder());
+        buffer.clear();
+        return slice;
+    }
+
+    /**
+     * Writes mesh, in either its array or its buffer form, and the heights
+     * it was built from under key. Failures are logged and otherwise ignored; the mesh
+     * will just be built again next time.
+     */
+    public void store(long key, float[] heights, TerrainMesh mesh) {
+        final boolean intIndices = mesh.hasIntIndices();
+        final int indexCount;
+        final int vertexByteCount;
+        if (mesh.vertexData != null) {
+            indexCount = mesh.indexData.remaining() / getIndexSize(intIndices);
+            vertexByteCount = mesh.vertexData.remaining();
+        } else {
+            indexCount = intIndices ? mesh.intIndices.length : mesh.shortIndices.length;
+            vertexByteCount = mesh.vertices.length * Constants.BYTES_PER_FLOAT;
+        }
+        final int size = getFileSize(heights.length, mesh.chunks.length,
+                vertexByteCount, indexCount, intIndices);
+
+        // Write to a temporary file first, so that a crash part way through
+        // never leaves a truncated entry behind.
+        final File file = getFile(key);
+        final File temporary = new File(directory, file.getName() + ".tmp");
+        try {
+            final RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+            try {
+                output.setLength(size);
+                final ByteBuffer buffer = output.getChannel()
+                        .map(FileChannel.MapMode.READ_WRITE, 0, size)
+                        .order(ByteOrder.nativeOrder());
+                write(buffer, key, heights, mesh, vertexByteCount, indexCount);
+            } finally {
+                output.close();
+            }
+            if (!temporary.renameTo(file)) {
+                throw new IOException("Could not rename " + temporary + " to " + file);
+            }
+        } catch (IOException e) {
+            temporary.delete();
+            if (LoggerConfig.ON) {
+                Log.w(TAG, "Could not write terrain cache file " + file, e);
+            }
+        }
+    }
+
+    private static void write(ByteBuffer buffer, long key, float[] heights,
+                              TerrainMesh mesh, int vertexByteCount, int indexCount) {
+        final int flags = (mesh.hasIntIndices() ? FLAG_INT_INDICES : 0)
+                | (mesh.quantizedVertices ? FLAG_QUANTIZED_VERTICES : 0);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(key)
+                .putInt(mesh.width).putInt(mesh.height).putInt(mesh.chunkSize)
+                .putInt(mesh.chunkRows).putInt(mesh.chunkColumns)
+                .putInt(flags).putInt(vertexByteCount).putInt(indexCount);
+        for (TerrainChunk chunk : mesh.chunks) {
+            buffer.putInt(chunk.firstRow).putInt(chunk.firstColumn)
+                    .putInt(chunk.rows).putInt(chunk.columns).putInt(chunk.vertexOffset)
+                    .putFloat(chunk.minX).putFloat(chunk.minY).putFloat(chunk.minZ)
+                    .putFloat(chunk.maxX).putFloat(chunk.maxY).putFloat(chunk.maxZ);
+        }
+        int position = buffer.position();
+        buffer.asIntBuffer().put(mesh.indexOffsets);
+        position += mesh.indexOffsets.length * 4;
+        buffer.position(position);
+        buffer.asIntBuffer().put(mesh.indexCounts);
+        position += mesh.indexCounts.length * 4;
+        buffer.position(position);
+        buffer.asFloatBuffer().put(heights);
+        position += heights.length * 4;
+        buffer.position(position);
+        if (mesh.vertexData != null) {
+            buffer.put(mesh.vertexData.duplicate());
+            buffer.put(mesh.indexData.duplicate());
+            return;
+        }
+        buffer.asFloatBuffer().put(mesh.vertices);
+        position += vertexByteCount;
+        buffer.position(position);
+        if (mesh.hasIntIndices()) {
+            buffer.asIntBuffer().put(mesh.intIndices);
+        } else {
+            buffer.asShortBuffer().put(mesh.shortIndices);
+        }
+    }
+
+    private static int getFileSize(int heightCount, int chunkCount, int vertexByteCount,
+                                   int indexCount, boolean intIndices) {
+        final int indexBytes = indexCount * getIndexSize(intIndices);
+        return (HEADER_WORDS + chunkCount * (CHUNK_WORDS + 2) + heightCount) * 4
+                + vertexByteCount + (indexBytes + 3) / 4 * 4;
+    }
+
+    private static int getIndexSize(boolean intIndices) {
+        return intIndices ? Constants.BYTES_PER_INT : Constants.BYTES_PER_SHORT;
+    }
+
+    private File getFile(long key) {
+        return new File(directory, "terrain-" + Long.toHexString(key) + ".bin");
+    }
+}
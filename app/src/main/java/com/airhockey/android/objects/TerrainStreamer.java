@@ -0,0 +1,475 @@
+package com.airhockey.android.objects;
+
+import android.util.Log;
+
+import com.airhockey.android.Constants;
+import com.airhockey.android.data.IndexBuffer;
+import com.airhockey.android.data.VertexBuffer;
+import com.airhockey.android.programs.HeightmapShaderProgram;
+import com.airhockey.android.util.Frustum;
+import com.airhockey.android.util.GlState;
+import com.airhockey.android.util.LoggerConfig;
+import com.airhockey.android.util.MatrixHelper;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import static android.opengl.GLES20.*;
+import static android.opengl.Matrix.*;
+
+/**
+ * Terrain made of square tiles that are loaded around the camera as it
+ * moves, so the world can be far larger than what fits in memory.
+ *
+ * Tiles within the load radius of the camera's tile are read from a
+ * TileSource and built into vertex data on background threads. Every tile
+ * has the same size, so they all share one index buffer.
+ * The GL thread only uploads finished tiles, as many as fit in a time
+ * budget each frame, so a burst of new tiles never stalls a frame.
+ * Uploaded tiles are kept in least recently used order, and the oldest are
+ * deleted once their vertex buffers go over a byte budget.
+ *
+ * Tile (column, row) covers x from column * tileWorldSize to
+ * (column + 1) * tileWorldSize, and likewise z for rows. Neighbouring tiles
+ * share their edge samples, so there are no gaps between them. Normals
+ * along tile edges are one-sided, the same as at the edge of a Heightmap.
+ *
+ * The streamer must be created, updated and drawn on the GL thread.
+ */
+public class TerrainStreamer {
+    private static final String TAG = "TerrainStreamer";
+
+    /**
+     * Supplies the heights of each tile. Called on background threads, so
+     * implementations must be safe to call from several at once.
+     */
+    public interface TileSource {
+        /**
+         * Opens the heights of one tile: samples x samples heights from 0
+         * to 1, whose edges are shared with the neighbouring tiles.
+         */
+        HeightSource openTile(int column, int row, int samples) throws IOException;
+    }
+
+    /**
+     * Creates and deletes the GPU buffers, so that the bookkeeping can be
+     * tested without a GL context.
+     */
+    interface BufferUploader {
+        VertexBuffer uploadVertices(ByteBuffer vertexData);
+
+        IndexBuffer uploadIndices(ByteBuffer indexData);
+
+        void delete(VertexBuffer vertexBuffer);
+
+        void delete(IndexBuffer indexBuffer);
+    }
+
+    private static final BufferUploader GL_UPLOADER = new BufferUploader() {
+        @Override
+        public VertexBuffer uploadVertices(ByteBuffer vertexData) {
+            return new VertexBuffer(vertexData);
+        }
+
+        @Override
+        public IndexBuffer uploadIndices(ByteBuffer indexData) {
+            return new IndexBuffer(indexData);
+        }
+
+        @Override
+        public void delete(VertexBuffer vertexBuffer) {
+            vertexBuffer.delete();
+        }
+
+        @Override
+        public void delete(IndexBuffer indexBuffer) {
+            indexBuffer.delete();
+        }
+    };
+
+    private static class Tile {
+        final int column;
+        final int row;
+        final long key;
+
+        // Written by the worker before the tile is queued as ready.
+        volatile ByteBuffer vertexData;
+        volatile float minY;
+        volatile float maxY;
+        volatile boolean failed;
+        // Set on the GL thread when the tile is no longer wanted, so that a
+        // build that hasn't started yet is skipped.
+        volatile boolean cancelled;
+
+        // GL thread only.
+        VertexBuffer vertexBuffer;
+        int byteCount;
+        int lastUsedFrame;
+
+        Tile(int column, int row) {
+            this.column = column;
+            this.row = row;
+            this.key = getKey(column, row);
+        }
+    }
+
+    private final TileSource source;
+    private final int tileSize;
+    private final float tileWorldSize;
+    private final float heightScale;
+    private final int loadRadius;
+    private final long byteBudget;
+    private final boolean quantizedVertices;
+    private final ExecutorService workers;
+    private final BufferUploader uploader;
+    private final IndexBuffer indexBuffer;
+    private final int indexCount;
+
+    // Offsets from the camera's tile to every tile within the load radius,
+    // nearest first, as column and row pairs.
+    private final int[] loadOffsets;
+
+    // Uploaded tiles, least recently used first.
+    private final LinkedHashMap<Long, Tile> residentTiles =
+            new LinkedHashMap<Long, Tile>(16, 0.75f, true);
+    // Tiles handed to the workers and not uploaded yet.
+    private final HashMap<Long, Tile> pendingTiles = new HashMap<Long, Tile>();
+    private final ConcurrentLinkedQueue<Tile> readyTiles = new ConcurrentLinkedQueue<Tile>();
+    private final ArrayList<Tile> drawList = new ArrayList<Tile>();
+    private long residentBytes;
+    private int frame;
+    private int cameraColumn;
+    private int cameraRow;
+
+    private final Frustum frustum = new Frustum();
+    private final float[] modelMatrix = new float[16];
+    private final float[] modelViewMatrix = new float[16];
+    private final float[] it_modelViewMatrix = new float[16];
+    private final float[] modelViewProjectionMatrix = new float[16];
+    private final float[] viewProjectionMatrix = new float[16];
+
+    /**
+     * @param tileSize          quads along each side of a tile, up to
+     *                          TerrainMeshBuilder.MAX_SHORT_CHUNK_SIZE.
+     * @param tileWorldSize     the width of a tile in world units.
+     * @param heightScale       the world height of a height of 1.
+     * @param loadRadius        tiles are loaded up to this many tiles away
+     *                          from the camera's tile, in each direction.
+     * @param byteBudget        how much GPU memory uploaded tiles may use.
+     * @param quantizedVertices true to use the quantized vertex layout,
+     *                          which must be drawn with a matching program.
+     * @param workerCount       how many background threads build tiles.
+     */
+    public TerrainStreamer(TileSource source, int tileSize, float tileWorldSize,
+                           float heightScale, int loadRadius, long byteBudget,
+                           boolean quantizedVertices, int workerCount) {
+        this(source, tileSize, tileWorldSize, heightScale, loadRadius, byteBudget,
+                quantizedVertices, createWorkers(workerCount), GL_UPLOADER);
+    }
+
+    TerrainStreamer(TileSource source, int tileSize, float tileWorldSize,
+                    float heightScale, int loadRadius, long byteBudget,
+                    boolean quantizedVertices, ExecutorService workers,
+                    BufferUploader uploader) {
+        if (tileSize < 1 || tileSize > TerrainMeshBuilder.MAX_SHORT_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Tile size must be from 1 to "
+                    + TerrainMeshBuilder.MAX_SHORT_CHUNK_SIZE + ".");
+        }
+        this.source = source;
+        this.tileSize = tileSize;
+        this.tileWorldSize = tileWorldSize;
+        this.heightScale = heightScale;
+        this.loadRadius = loadRadius;
+        this.byteBudget = byteBudget;
+        this.quantizedVertices = quantizedVertices;
+        this.loadOffsets = buildLoadOffsets(loadRadius);
+        this.workers = workers;
+        this.uploader = uploader;
+
+        final ByteBuffer indexData = TerrainMeshBuilder.buildIndexData(tileSize, tileSize);
+        indexCount = indexData.capacity() / Constants.BYTES_PER_SHORT;
+        indexBuffer = uploader.uploadIndices(indexData);
+    }
+
+    private static ExecutorService createWorkers(int workerCount) {
+        return Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+            private int count;
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "TerrainStreamer-" + count++);
+                thread.setDaemon(true);
+                // Stay out of the way of the GL and UI threads.
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    private static int[] buildLoadOffsets(final int loadRadius) {
+        final int side = loadRadius * 2 + 1;
+        final Integer[] order = new Integer[side * side];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return distanceSquared(a) - distanceSquared(b);
+            }
+
+            private int distanceSquared(int i) {
+                final int column = i % side - loadRadius;
+                final int row = i / side - loadRadius;
+                return column * column + row * row;
+            }
+        });
+        final int[] offsets = new int[order.length * 2];
+        for (int i = 0; i < order.length; i++) {
+            offsets[i * 2] = order[i] % side - loadRadius;
+            offsets[i * 2 + 1] = order[i] / side - loadRadius;
+        }
+        return offsets;
+    }
+
+    private static long getKey(int column, int row) {
+        return ((long) column << 32) | (row & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Requests the tiles around the camera, drops requests for tiles it
+     * has moved away from, uploads finished tiles for up to
+     * uploadBudgetNanos, and evicts old tiles that are over the budget.
+     */
+    public void update(float eyeX, float eyeZ, long uploadBudgetNanos) {
+        frame++;
+        cameraColumn = (int) Math.floor(eyeX / tileWorldSize);
+        cameraRow = (int) Math.floor(eyeZ / tileWorldSize);
+
+        for (int i = 0; i < loadOffsets.length; i += 2) {
+            final int column = cameraColumn + loadOffsets[i];
+            final int row = cameraRow + loadOffsets[i + 1];
+            final long key = getKey(column, row);
+            final Tile resident = residentTiles.get(key);
+            if (resident != null) {
+                resident.lastUsedFrame = frame;
+            } else if (!pendingTiles.containsKey(key)) {
+                final Tile tile = new Tile(column, row);
+                pendingTiles.put(key, tile);
+                workers.execute(new BuildTask(tile));
+            }
+        }
+
+        // Forget tiles that are no longer wanted, and cancel their builds so
+        // that they don't hold up the tiles the camera needs now.
+        final Iterator<Tile> pending = pendingTiles.values().iterator();
+        while (pending.hasNext()) {
+            final Tile tile = pending.next();
+            if (!isInRange(tile)) {
+                tile.cancelled = true;
+                pending.remove();
+            }
+        }
+
+        final long startTime = System.nanoTime();
+        Tile tile;
+        while (System.nanoTime() - startTime < uploadBudgetNanos
+                && (tile = readyTiles.poll()) != null) {
+            if (pendingTiles.get(tile.key) != tile || tile.failed) {
+                // Dropped while it was being built, or it couldn't be; a
+                // failed tile stays pending until the camera moves away.
+                continue;
+            }
+            upload(tile);
+        }
+
+        evict();
+    }
+
+    private boolean isInRange(Tile tile) {
+        return Math.abs(tile.column - cameraColumn) <= loadRadius
+                && Math.abs(tile.row - cameraRow) <= loadRadius;
+    }
+
+    private void upload(Tile tile) {
+        tile.vertexBuffer = uploader.uploadVertices(tile.vertexData);
+        tile.byteCount = tile.vertexData.capacity();
+        tile.lastUsedFrame = frame;
+        // The GPU has its own copy now.
+        tile.vertexData = null;
+
+        pendingTiles.remove(tile.key);
+        residentTiles.put(tile.key, tile);
+        residentBytes += tile.byteCount;
+    }
+
+    private void evict() {
+        final Iterator<Tile> iterator = residentTiles.values().iterator();
+        while (residentBytes > byteBudget && iterator.hasNext()) {
+            final Tile tile = iterator.next();
+            if (tile.lastUsedFrame == frame) {
+                // Everything from here on is in range, so the budget is too
+                // small for the load radius. Keep them rather than thrash.
+                break;
+            }
+            iterator.remove();
+            deleteBuffers(tile);
+        }
+    }
+
+    private void deleteBuffers(Tile tile) {
+        uploader.delete(tile.vertexBuffer);
+        residentBytes -= tile.byteCount;
+    }
+
+    /**
+     * Draws the uploaded tiles that may be in view. The program must be in
+     * use with its lights already set; only the matrices are set here.
+     *
+     * @return the number of tiles drawn.
+     */
+    public int draw(HeightmapShaderProgram program, float[] viewMatrix,
+                    float[] projectionMatrix) {
+        multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+        frustum.update(viewProjectionMatrix);
+
+        drawList.clear();
+        for (Map.Entry<Long, Tile> entry : residentTiles.entrySet()) {
+            final Tile tile = entry.getValue();
+            final float minX = tile.column * tileWorldSize;
+            final float minZ = tile.row * tileWorldSize;
+            if (frustum.intersectsBox(minX, tile.minY * heightScale, minZ,
+                    minX + tileWorldSize, tile.maxY * heightScale, minZ + tileWorldSize)) {
+                drawList.add(tile);
+            }
+        }
+
+        final int positionAttributeLocation = program.getPositionAttributeLocation();
+        final int normalAttributeLocation = program.getNormalAttributeLocation();
+        GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer.getBufferId());
+        for (int i = 0; i < drawList.size(); i++) {
+            final Tile tile = drawList.get(i);
+            // Tile vertices run from -0.5 to 0.5 around the tile's centre.
+            setIdentityM(modelMatrix, 0);
+            translateM(modelMatrix, 0, (tile.column + 0.5f) * tileWorldSize, 0f,
+                    (tile.row + 0.5f) * tileWorldSize);
+            scaleM(modelMatrix, 0, tileWorldSize, heightScale, tileWorldSize);
+            MatrixHelper.multiplyAffineMM(modelViewMatrix, 0, viewMatrix, 0, modelMatrix, 0);
+            MatrixHelper.normalMatrixM(it_modelViewMatrix, 0, modelViewMatrix, 0);
+            multiplyMM(modelViewProjectionMatrix, 0, projectionMatrix, 0, modelViewMatrix, 0);
+            program.setMatrixUniforms(modelViewMatrix, it_modelViewMatrix,
+                    modelViewProjectionMatrix);
+
+            Heightmap.bindVertices(tile.vertexBuffer, 0, quantizedVertices,
+                    positionAttributeLocation, normalAttributeLocation);
+            glDrawElements(GL_TRIANGLES, indexCount, GL_UNSIGNED_SHORT, 0);
+        }
+        return drawList.size();
+    }
+
+    public int getResidentTileCount() {
+        return residentTiles.size();
+    }
+
+    /**
+     * Returns the bytes of vertex data uploaded, not counting the shared
+     * index buffer.
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    boolean isResident(int column, int row) {
+        return residentTiles.containsKey(getKey(column, row));
+    }
+
+    /**
+     * Stops the background threads. Call when the GL context is lost, since
+     * the tiles' buffers went with it.
+     */
+    public void shutdown() {
+        workers.shutdownNow();
+        readyTiles.clear();
+    }
+
+    /**
+     * Deletes every uploaded tile and stops the background threads, for
+     * when the streamer is dropped while its GL context lives on.
+     */
+    public void release() {
+        for (Tile tile : residentTiles.values()) {
+            deleteBuffers(tile);
+        }
+        residentTiles.clear();
+        for (Tile tile : pendingTiles.values()) {
+            tile.cancelled = true;
+        }
+        pendingTiles.clear();
+        uploader.delete(indexBuffer);
+        shutdown();
+    }
+
+    private class BuildTask implements Runnable {
+        private final Tile tile;
+
+        BuildTask(Tile tile) {
+            this.tile = tile;
+        }
+
+        @Override
+        public void run() {
+            if (tile.cancelled) {
+                return;
+            }
+            try {
+                final int samples = tileSize + 1;
+                final float[] heights = new float[samples * samples];
+                final HeightSource heightSource = source.openTile(tile.column, tile.row, samples);
+                try {
+                    if (heightSource.getWidth() != samples || heightSource.getHeight() != samples) {
+                        throw new IOException("Tile " + tile.column + ", " + tile.row + " is "
+                                + heightSource.getWidth() + "x" + heightSource.getHeight()
+                                + ", not " + samples + "x" + samples);
+                    }
+                    heightSource.readRows(heights, 0, samples);
+                } finally {
+                    heightSource.close();
+                }
+
+                float minY = Float.MAX_VALUE;
+                float maxY = -Float.MAX_VALUE;
+                for (float height : heights) {
+                    minY = Math.min(minY, height);
+                    maxY = Math.max(maxY, height);
+                }
+                tile.minY = minY;
+                tile.maxY = maxY;
+                tile.vertexData = TerrainMeshBuilder.buildVertexData(
+                        heights, samples, samples, quantizedVertices);
+            } catch (IOException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+            readyTiles.add(tile);
+        }
+
+        private void fail(Exception e) {
+            tile.failed = true;
+            if (LoggerConfig.ON) {
+                Log.w(TAG, "Could not build tile " + tile.column + ", " + tile.row, e);
+            }
+        }
+    }
+}
@@ -22,8 +22,17 @@ public class HeightmapShaderProgram extends ShaderProgram {
     private final int aNormalLocation;
 
     public HeightmapShaderProgram(Context context){
+        this(context, false);
+    }
+
+    /**
+     * @param quantizedVertices true to read the quantized terrain layout
+     *                          (see TerrainMeshBuilder) instead of floats.
+     */
+    public HeightmapShaderProgram(Context context, boolean quantizedVertices) {
         super(context, R.raw.heightmap_vertex_shader,
-                R.raw.heightmap_fragment_shader);
+                R.raw.heightmap_fragment_shader,
+                quantizedVertices ? "#define QUANTIZED_VERTICES\n" : "");
         aPositionLocation = glGetAttribLocation(program, A_POSITION);
         uMatrixLocation = glGetUniformLocation(program, U_MATRIX);
         uVectorToLightLocation = glGetUniformLocation(program, U_VECTOR_TO_LIGHT);
@@ -42,13 +51,20 @@ public class HeightmapShaderProgram extends ShaderProgram {
                             float[] mvpMatrix, float[] vectorToDirectionalLight,
                             float[] pointLightPositions, float[] pointLightColors)
     {
-        glUniformMatrix4fv(uMVMatrixLocation, 1, false, mvMatrix, 0);
-        glUniformMatrix4fv(uIT_MVMatrixLocation, 1, false, it_mvMatrix, 0);
-        glUniformMatrix4fv(uMVPMatrixLocation, 1, false, mvpMatrix, 0);
+        setMatrixUniforms(mvMatrix, it_mvMatrix, mvpMatrix);
         glUniform3fv(uVectorToLightLocation, 1, vectorToDirectionalLight, 0);
         glUniform4fv(uPointLightPositionsLocation, 3, pointLightPositions, 0);
         glUniform3fv(uPointLightColorsLocation, 3, pointLightColors, 0);
     }
+    /**
+     * Sets only the matrices, for drawing several models under the same
+     * lights.
+     */
+    public void setMatrixUniforms(float[] mvMatrix, float[] it_mvMatrix, float[] mvpMatrix) {
+        glUniformMatrix4fv(uMVMatrixLocation, 1, false, mvMatrix, 0);
+        glUniformMatrix4fv(uIT_MVMatrixLocation, 1, false, it_mvMatrix, 0);
+        glUniformMatrix4fv(uMVPMatrixLocation, 1, false, mvpMatrix, 0);
+    }
     /*public void setUniforms(float[] matrix, Geometry.Vector vectorToLight) {
         glUniformMatrix4fv(uMatrixLocation, 1, false, matrix, 0);
         glUniform3f(uVectorToLightLocation,
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.graphics.Shader;
 import static android.opengl.GLES20.*;
 import com.airhockey.android.R;
+import com.airhockey.android.util.GlState;
 
 /**
  * Created by pixuredlinux3 on 6/20/16.
@@ -12,6 +13,9 @@ public class ParticleShaderProgram extends ShaderProgram {
     // Uniform locations
     private final int uMatrixLocation;
     private final int uTimeLocation;
+    private final int uParticleLifetimeLocation;
+    private final int uBallisticLocation;
+    private final int uDirectionScaleLocation;
     private final int uTextureUnitLocation;
 
     // Attribute locations
@@ -26,6 +30,9 @@ public class ParticleShaderProgram extends ShaderProgram {
         // Retrieve uniform locations for the shader program.
         uMatrixLocation = glGetUniformLocation(program, U_MATRIX);
         uTimeLocation = glGetUniformLocation(program, U_TIME);
+        uParticleLifetimeLocation = glGetUniformLocation(program, U_PARTICLE_LIFETIME);
+        uBallisticLocation = glGetUniformLocation(program, U_BALLISTIC);
+        uDirectionScaleLocation = glGetUniformLocation(program, U_DIRECTION_SCALE);
         uTextureUnitLocation = glGetUniformLocation(program, U_TEXTURE_UNIT);
 
         // Retrieve attribute locations for the shader program.
@@ -36,16 +43,31 @@ public class ParticleShaderProgram extends ShaderProgram {
                 glGetAttribLocation(program, A_PARTICLE_START_TIME);
     }
 
-    public void setUniforms(float[] matrix, float elapsedTime, int textureId) {
+    /**
+     * @param simulatedOnCpu true if the position attribute already holds the
+     *                       current particle position.
+     */
+    public void setUniforms(float[] matrix, float elapsedTime, float particleLifetime,
+                            boolean simulatedOnCpu, int textureId) {
         glUniformMatrix4fv(uMatrixLocation, 1, false, matrix, 0);
         glUniform1f(uTimeLocation, elapsedTime);
+        glUniform1f(uParticleLifetimeLocation, particleLifetime);
+        glUniform1f(uBallisticLocation, simulatedOnCpu ? 0f : 1f);
 
         // bind the textures
-        glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, textureId);
+        GlState.activeTexture(GL_TEXTURE0);
+        GlState.bindTexture(GL_TEXTURE_2D, textureId);
         glUniform1i(uTextureUnitLocation, 0);
     }
 
+    /**
+     * Sets what the direction attribute is multiplied by, for vertex
+     * layouts that store directions as normalized integers.
+     */
+    public void setDirectionScale(float directionScale) {
+        glUniform1f(uDirectionScaleLocation, directionScale);
+    }
+
     public int getPositionAttributeLocation(){
         return aPositionLocation;
     }
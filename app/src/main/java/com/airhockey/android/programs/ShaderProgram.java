@@ -2,6 +2,7 @@ package com.airhockey.android.programs;
 
 import android.content.Context;
 
+import com.airhockey.android.util.GlState;
 import com.airhockey.android.util.ShaderHelper;
 import com.airhockey.android.util.TextResourceReader;
 
@@ -17,6 +18,9 @@ public class ShaderProgram {
     protected static final String U_TEXTURE_UNIT = "u_TextureUnit";
     protected static final String U_COLOR = "u_Color";
     protected static final String U_TIME = "u_Time";
+    protected static final String U_PARTICLE_LIFETIME = "u_ParticleLifetime";
+    protected static final String U_BALLISTIC = "u_Ballistic";
+    protected static final String U_DIRECTION_SCALE = "u_DirectionScale";
     protected static final String U_VECTOR_TO_LIGHT = "u_VectorToLight";
 
     protected static final String U_MV_MATRIX = "u_MVMatrix";
@@ -40,14 +44,25 @@ public class ShaderProgram {
 
     protected ShaderProgram(Context context, int vertexShaderResourceId,
                             int fragmentShaderResourceId) {
+        this(context, vertexShaderResourceId, fragmentShaderResourceId, "");
+    }
+
+    /**
+     * @param defines source put in front of both shaders, usually #define
+     *                lines that select variants of them.
+     */
+    protected ShaderProgram(Context context, int vertexShaderResourceId,
+                            int fragmentShaderResourceId, String defines) {
 
     // Compile the shaders and link the program.
         program = ShaderHelper.buildProgram(
-                TextResourceReader.readTextFileFromResource(context, vertexShaderResourceId),
-                TextResourceReader.readTextFileFromResource(context, fragmentShaderResourceId));
+                defines + TextResourceReader.readTextFileFromResource(
+                        context, vertexShaderResourceId),
+                defines + TextResourceReader.readTextFileFromResource(
+                        context, fragmentShaderResourceId));
     }
     public void useProgram() {
     // Set the current OpenGL shader program to this program.
-        glUseProgram(program);
+        GlState.useProgram(program);
     }
 }
@@ -3,6 +3,7 @@ package com.airhockey.android.programs;
 import android.content.Context;
 
 import com.airhockey.android.R;
+import com.airhockey.android.util.GlState;
 
 import static android.opengl.GLES20.*;
 
@@ -25,8 +26,8 @@ public class SkyboxShaderProgram extends ShaderProgram {
     public void setUniforms(float[] matrix, int textureId) {
         glUniformMatrix4fv(uMatrixLocation, 1, false, matrix, 0);
 
-        glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_CUBE_MAP, textureId);
+        GlState.activeTexture(GL_TEXTURE0);
+        GlState.bindTexture(GL_TEXTURE_CUBE_MAP, textureId);
         glUniform1i(uTextureUnitLocation, 0);
     }
     public int getPositionAttributeLocation() {
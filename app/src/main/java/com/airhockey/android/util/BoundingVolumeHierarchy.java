@@ -0,0 +1,485 @@
+package com.airhockey.android.util;
+
+import java.util.Arrays;
+
+/**
+ * A tree of axis-aligned boxes over a set of objects, so that picking and
+ * frustum culling only look at the objects near the ray or the view
+ * instead of every one.
+ *
+ * Objects are boxes stored as minX, minY, minZ, maxX, maxY, maxZ, the same
+ * layout Frustum.cullBoxes takes; setSphere writes the box around a
+ * bounding sphere. The tree reads the boxes array in place. When objects
+ * move, update their boxes and call refit, which only recomputes the node
+ * bounds; after many large moves the node layout itself may get poor, and
+ * rebuild starts over.
+ *
+ * The tree is built top down, splitting each node where the surface area
+ * heuristic is lowest among a few evenly spaced candidates along each
+ * axis. Every node's objects are a contiguous run of the object order, so
+ * a node that lies wholly inside the frustum is accepted without visiting
+ * its children.
+ *
+ * Queries reuse a stack owned by the tree, so a tree must only be used by
+ * one thread at a time.
+ */
+public class BoundingVolumeHierarchy {
+    public static final float NO_HIT = Float.POSITIVE_INFINITY;
+
+    private static final int MAX_LEAF_SIZE = 4;
+    private static final int BIN_COUNT = 8;
+    private static final int BOX = Frustum.BOX_COMPONENT_COUNT;
+
+    private final float[] boxes;
+    private final int count;
+
+    // Objects in tree order.
+    private final int[] objects;
+    private final float[] nodeBounds;
+    // The first of the two children of each node, or -1 for a leaf.
+    private final int[] nodeLeft;
+    private final int[] nodeFirstObject;
+    private final int[] nodeObjectCount;
+    private int nodeCount;
+
+    private final int[] stack;
+    private final float[] binBounds = new float[BIN_COUNT * BOX];
+    private final int[] binCounts = new int[BIN_COUNT];
+    // The cost of the right side of a split before each bin.
+    private final float[] binCosts = new float[BIN_COUNT];
+    private float nearestDistance = NO_HIT;
+
+    /**
+     * Builds a tree over the first count boxes in boxes, which it keeps.
+     */
+    public BoundingVolumeHierarchy(float[] boxes, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("Need at least one object.");
+        }
+        this.boxes = boxes;
+        this.count = count;
+        objects = new int[count];
+        final int maxNodeCount = count * 2 - 1;
+        nodeBounds = new float[maxNodeCount * BOX];
+        nodeLeft = new int[maxNodeCount];
+        nodeFirstObject = new int[maxNodeCount];
+        nodeObjectCount = new int[maxNodeCount];
+        // A path from the root holds at most one pending sibling per level.
+        stack = new int[count + 1];
+        rebuild();
+    }
+
+    /**
+     * Writes the box around the sphere at (x, y, z) as object index of
+     * boxes.
+     */
+    public static void setSphere(float[] boxes, int index, float x, float y, float z,
+                                 float radius) {
+        final int offset = index * BOX;
+        boxes[offset] = x - radius;
+        boxes[offset + 1] = y - radius;
+        boxes[offset + 2] = z - radius;
+        boxes[offset + 3] = x + radius;
+        boxes[offset + 4] = y + radius;
+        boxes[offset + 5] = z + radius;
+    }
+
+    public int getObjectCount() {
+        return count;
+    }
+
+    /**
+     * Rebuilds the tree from the current boxes.
+     */
+    public void rebuild() {
+        for (int i = 0; i < count; i++) {
+            objects[i] = i;
+        }
+        nodeCount = 1;
+        build(0, 0, count);
+    }
+
+    /**
+     * Recomputes the bounds of every node from the current boxes, keeping
+     * the tree's layout.
+     */
+    public void refit() {
+        // Children always come after their parent.
+        for (int node = nodeCount - 1; node >= 0; node--) {
+            final int left = nodeLeft[node];
+            if (left < 0) {
+                setObjectBounds(nodeBounds, node * BOX, nodeFirstObject[node],
+                        nodeFirstObject[node] + nodeObjectCount[node]);
+            } else {
+                final int offset = node * BOX;
+                final int leftOffset = left * BOX;
+                final int rightOffset = leftOffset + BOX;
+                for (int i = 0; i < 3; i++) {
+                    nodeBounds[offset + i] = Math.min(nodeBounds[leftOffset + i],
+                            nodeBounds[rightOffset + i]);
+                    nodeBounds[offset + 3 + i] = Math.max(nodeBounds[leftOffset + 3 + i],
+                            nodeBounds[rightOffset + 3 + i]);
+                }
+            }
+        }
+    }
+
+    private void build(int node, int start, int end) {
+        final int offset = node * BOX;
+        setObjectBounds(nodeBounds, offset, start, end);
+        nodeFirstObject[node] = start;
+        nodeObjectCount[node] = end - start;
+        nodeLeft[node] = -1;
+        if (end - start <= MAX_LEAF_SIZE) {
+            return;
+        }
+
+        final int middle = split(start, end);
+        final int left = nodeCount;
+        nodeCount += 2;
+        nodeLeft[node] = left;
+        build(left, start, middle);
+        build(left + 1, middle, end);
+    }
+
+    /**
+     * Reorders objects start to end into two runs and returns where the
+     * second starts.
+     */
+    private int split(int start, int end) {
+        // The box around the centers; coordinates are doubled, which doesn't
+        // change where the splits fall.
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int i = start; i < end; i++) {
+            final int offset = objects[i] * BOX;
+            final float x = boxes[offset] + boxes[offset + 3];
+            final float y = boxes[offset + 1] + boxes[offset + 4];
+            final float z = boxes[offset + 2] + boxes[offset + 5];
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            minZ = Math.min(minZ, z);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+            maxZ = Math.max(maxZ, z);
+        }
+
+        int bestAxis = -1;
+        int bestBin = 0;
+        float bestCost = Float.MAX_VALUE;
+        for (int axis = 0; axis < 3; axis++) {
+            final float min = axis == 0 ? minX : axis == 1 ? minY : minZ;
+            final float extent = (axis == 0 ? maxX : axis == 1 ? maxY : maxZ) - min;
+            if (extent <= 0f) {
+                continue;
+            }
+            fillBins(start, end, axis, min, extent);
+
+            // Sweep from the right to find the cost of each right side,
+            // then from the left to add the left sides.
+            float rMinX = Float.MAX_VALUE, rMinY = Float.MAX_VALUE, rMinZ = Float.MAX_VALUE;
+            float rMaxX = -Float.MAX_VALUE, rMaxY = -Float.MAX_VALUE, rMaxZ = -Float.MAX_VALUE;
+            int rightCount = 0;
+            for (int bin = BIN_COUNT - 1; bin > 0; bin--) {
+                final int offset = bin * BOX;
+                rMinX = Math.min(rMinX, binBounds[offset]);
+                rMinY = Math.min(rMinY, binBounds[offset + 1]);
+                rMinZ = Math.min(rMinZ, binBounds[offset + 2]);
+                rMaxX = Math.max(rMaxX, binBounds[offset + 3]);
+                rMaxY = Math.max(rMaxY, binBounds[offset + 4]);
+                rMaxZ = Math.max(rMaxZ, binBounds[offset + 5]);
+                rightCount += binCounts[bin];
+                binCosts[bin] = rightCount == 0 ? 0f
+                        : rightCount * halfArea(rMaxX - rMinX, rMaxY - rMinY, rMaxZ - rMinZ);
+            }
+            float lMinX = Float.MAX_VALUE, lMinY = Float.MAX_VALUE, lMinZ = Float.MAX_VALUE;
+            float lMaxX = -Float.MAX_VALUE, lMaxY = -Float.MAX_VALUE, lMaxZ = -Float.MAX_VALUE;
+            int leftCount = 0;
+            for (int bin = 0; bin < BIN_COUNT - 1; bin++) {
+                final int offset = bin * BOX;
+                lMinX = Math.min(lMinX, binBounds[offset]);
+                lMinY = Math.min(lMinY, binBounds[offset + 1]);
+                lMinZ = Math.min(lMinZ, binBounds[offset + 2]);
+                lMaxX = Math.max(lMaxX, binBounds[offset + 3]);
+                lMaxY = Math.max(lMaxY, binBounds[offset + 4]);
+                lMaxZ = Math.max(lMaxZ, binBounds[offset + 5]);
+                leftCount += binCounts[bin];
+                if (leftCount == 0 || leftCount == end - start) {
+                    continue;
+                }
+                final float cost = leftCount
+                        * halfArea(lMaxX - lMinX, lMaxY - lMinY, lMaxZ - lMinZ)
+                        + binCosts[bin + 1];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestBin = bin;
+                }
+            }
+        }
+
+        if (bestAxis < 0) {
+            // Every center is in the same place: any split is as good.
+            return (start + end) >>> 1;
+        }
+        final float min = bestAxis == 0 ? minX : bestAxis == 1 ? minY : minZ;
+        final float extent = (bestAxis == 0 ? maxX : bestAxis == 1 ? maxY : maxZ) - min;
+        int i = start;
+        int j = end - 1;
+        while (i <= j) {
+            if (getBin(objects[i], bestAxis, min, extent) <= bestBin) {
+                i++;
+            } else {
+                final int swap = objects[i];
+                objects[i] = objects[j];
+                objects[j--] = swap;
+            }
+        }
+        return i;
+    }
+
+    private void fillBins(int start, int end, int axis, float min, float extent) {
+        Arrays.fill(binCounts, 0);
+        for (int bin = 0; bin < BIN_COUNT; bin++) {
+            final int offset = bin * BOX;
+            for (int i = 0; i < 3; i++) {
+                binBounds[offset + i] = Float.MAX_VALUE;
+                binBounds[offset + 3 + i] = -Float.MAX_VALUE;
+            }
+        }
+        for (int i = start; i < end; i++) {
+            final int bin = getBin(objects[i], axis, min, extent);
+            binCounts[bin]++;
+            final int offset = bin * BOX;
+            final int boxOffset = objects[i] * BOX;
+            for (int k = 0; k < 3; k++) {
+                binBounds[offset + k] = Math.min(binBounds[offset + k], boxes[boxOffset + k]);
+                binBounds[offset + 3 + k] = Math.max(binBounds[offset + 3 + k],
+                        boxes[boxOffset + 3 + k]);
+            }
+        }
+    }
+
+    private int getBin(int object, int axis, float min, float extent) {
+        final int offset = object * BOX + axis;
+        final float center = boxes[offset] + boxes[offset + 3];
+        return Math.min(BIN_COUNT - 1, (int) ((center - min) * BIN_COUNT / extent));
+    }
+
+    // Half the surface area of a box, in proportion to the chance that a
+    // random ray hits it.
+    private static float halfArea(float x, float y, float z) {
+        return x * y + y * z + z * x;
+    }
+
+    private void setObjectBounds(float[] bounds, int boundsOffset, int start, int end) {
+        for (int i = 0; i < 3; i++) {
+            bounds[boundsOffset + i] = Float.MAX_VALUE;
+            bounds[boundsOffset + 3 + i] = -Float.MAX_VALUE;
+        }
+        for (int object = start; object < end; object++) {
+            final int offset = objects[object] * BOX;
+            for (int i = 0; i < 3; i++) {
+                bounds[boundsOffset + i] = Math.min(bounds[boundsOffset + i], boxes[offset + i]);
+                bounds[boundsOffset + 3 + i] = Math.max(bounds[boundsOffset + 3 + i],
+                        boxes[offset + 3 + i]);
+            }
+        }
+    }
+
+    /**
+     * Writes whether each object may be visible into visible, as
+     * Frustum.cullBoxes does.
+     *
+     * @return the number of objects that may be visible.
+     */
+    public int cull(Frustum frustum, boolean[] visible) {
+        Arrays.fill(visible, 0, count, false);
+        int visibleCount = 0;
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            final int node = stack[--stackSize];
+            final int offset = node * BOX;
+            final float minX = nodeBounds[offset];
+            final float minY = nodeBounds[offset + 1];
+            final float minZ = nodeBounds[offset + 2];
+            final float maxX = nodeBounds[offset + 3];
+            final float maxY = nodeBounds[offset + 4];
+            final float maxZ = nodeBounds[offset + 5];
+            if (!frustum.intersectsBox(minX, minY, minZ, maxX, maxY, maxZ)) {
+                continue;
+            }
+            final int first = nodeFirstObject[node];
+            final int end = first + nodeObjectCount[node];
+            if (frustum.containsBox(minX, minY, minZ, maxX, maxY, maxZ)) {
+                for (int i = first; i < end; i++) {
+                    visible[objects[i]] = true;
+                }
+                visibleCount += end - first;
+            } else if (nodeLeft[node] >= 0) {
+                stack[stackSize++] = nodeLeft[node] + 1;
+                stack[stackSize++] = nodeLeft[node];
+            } else {
+                for (int i = first; i < end; i++) {
+                    final int boxOffset = objects[i] * BOX;
+                    if (frustum.intersectsBox(boxes[boxOffset], boxes[boxOffset + 1],
+                            boxes[boxOffset + 2], boxes[boxOffset + 3], boxes[boxOffset + 4],
+                            boxes[boxOffset + 5])) {
+                        visible[objects[i]] = true;
+                        visibleCount++;
+                    }
+                }
+            }
+        }
+        return visibleCount;
+    }
+
+    /**
+     * Returns the object whose box ray enters first, or -1 if it misses
+     * them all. Only hits in front of the ray's point count, and distances
+     * are in units of the ray's vector; see getNearestDistance.
+     */
+    public int findNearest(Geometry.Ray ray) {
+        return findNearest(ray.point.x, ray.point.y, ray.point.z,
+                ray.vector.x, ray.vector.y, ray.vector.z);
+    }
+
+    /**
+     * As findNearest(Geometry.Ray), for a ray laid out as in VectorMath.
+     */
+    public int findNearest(float[] ray, int rayOffset) {
+        return findNearest(ray[rayOffset], ray[rayOffset + 1], ray[rayOffset + 2],
+                ray[rayOffset + 3], ray[rayOffset + 4], ray[rayOffset + 5]);
+    }
+
+    /**
+     * Returns the distance to the hit found by the last call to
+     * findNearest, or NO_HIT.
+     */
+    public float getNearestDistance() {
+        return nearestDistance;
+    }
+
+    private int findNearest(float ox, float oy, float oz, float dx, float dy, float dz) {
+        final float inverseX = 1f / nonZero(dx);
+        final float inverseY = 1f / nonZero(dy);
+        final float inverseZ = 1f / nonZero(dz);
+        int nearest = -1;
+        float nearestDistance = NO_HIT;
+
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            final int node = stack[--stackSize];
+            if (intersectBox(nodeBounds, node * BOX, ox, oy, oz, inverseX, inverseY, inverseZ)
+                    >= nearestDistance) {
+                continue;
+            }
+            final int left = nodeLeft[node];
+            if (left >= 0) {
+                // Visit the nearer child first, so that the further one can
+                // more often be skipped.
+                final float leftDistance = intersectBox(nodeBounds, left * BOX,
+                        ox, oy, oz, inverseX, inverseY, inverseZ);
+                final float rightDistance = intersectBox(nodeBounds, (left + 1) * BOX,
+                        ox, oy, oz, inverseX, inverseY, inverseZ);
+                if (leftDistance <= rightDistance) {
+                    stack[stackSize++] = left + 1;
+                    stack[stackSize++] = left;
+                } else {
+                    stack[stackSize++] = left;
+                    stack[stackSize++] = left + 1;
+                }
+                continue;
+            }
+            final int end = nodeFirstObject[node] + nodeObjectCount[node];
+            for (int i = nodeFirstObject[node]; i < end; i++) {
+                final float distance = intersectBox(boxes, objects[i] * BOX,
+                        ox, oy, oz, inverseX, inverseY, inverseZ);
+                if (distance < nearestDistance) {
+                    nearestDistance = distance;
+                    nearest = objects[i];
+                }
+            }
+        }
+        this.nearestDistance = nearestDistance;
+        return nearest;
+    }
+
+    /**
+     * Writes the index and distance of every object whose box ray hits
+     * into hitIndices and hitDistances, in no particular order, and returns
+     * how many there were.
+     */
+    public int intersectRay(Geometry.Ray ray, int[] hitIndices, float[] hitDistances) {
+        return intersectRay(ray.point.x, ray.point.y, ray.point.z,
+                ray.vector.x, ray.vector.y, ray.vector.z, hitIndices, hitDistances);
+    }
+
+    /**
+     * As intersectRay(Geometry.Ray, int[], float[]), for a ray laid out as
+     * in VectorMath.
+     */
+    public int intersectRay(float[] ray, int rayOffset, int[] hitIndices,
+                            float[] hitDistances) {
+        return intersectRay(ray[rayOffset], ray[rayOffset + 1], ray[rayOffset + 2],
+                ray[rayOffset + 3], ray[rayOffset + 4], ray[rayOffset + 5],
+                hitIndices, hitDistances);
+    }
+
+    private int intersectRay(float ox, float oy, float oz, float dx, float dy, float dz,
+                             int[] hitIndices, float[] hitDistances) {
+        final float inverseX = 1f / nonZero(dx);
+        final float inverseY = 1f / nonZero(dy);
+        final float inverseZ = 1f / nonZero(dz);
+        int hitCount = 0;
+
+        int stackSize = 0;
+        stack[stackSize++] = 0;
+        while (stackSize > 0) {
+            final int node = stack[--stackSize];
+            if (intersectBox(nodeBounds, node * BOX, ox, oy, oz, inverseX, inverseY, inverseZ)
+                    == NO_HIT) {
+                continue;
+            }
+            final int left = nodeLeft[node];
+            if (left >= 0) {
+                stack[stackSize++] = left + 1;
+                stack[stackSize++] = left;
+                continue;
+            }
+            final int end = nodeFirstObject[node] + nodeObjectCount[node];
+            for (int i = nodeFirstObject[node]; i < end; i++) {
+                final float distance = intersectBox(boxes, objects[i] * BOX,
+                        ox, oy, oz, inverseX, inverseY, inverseZ);
+                if (distance != NO_HIT) {
+                    hitIndices[hitCount] = objects[i];
+                    hitDistances[hitCount] = distance;
+                    hitCount++;
+                }
+            }
+        }
+        return hitCount;
+    }
+
+    // The slab test of RayBatch.intersectBoxes for a single box.
+    private static float intersectBox(float[] bounds, int offset, float ox, float oy, float oz,
+                                      float inverseX, float inverseY, float inverseZ) {
+        final float x1 = (bounds[offset] - ox) * inverseX;
+        final float x2 = (bounds[offset + 3] - ox) * inverseX;
+        final float y1 = (bounds[offset + 1] - oy) * inverseY;
+        final float y2 = (bounds[offset + 4] - oy) * inverseY;
+        final float z1 = (bounds[offset + 2] - oz) * inverseZ;
+        final float z2 = (bounds[offset + 5] - oz) * inverseZ;
+        final float enter = Math.max(Math.max(Math.min(x1, x2), Math.min(y1, y2)),
+                Math.max(Math.min(z1, z2), 0f));
+        final float exit = Math.min(Math.min(Math.max(x1, x2), Math.max(y1, y2)),
+                Math.max(z1, z2));
+        return enter <= exit ? enter : NO_HIT;
+    }
+
+    private static float nonZero(float value) {
+        return value != 0f ? value : Float.MIN_NORMAL;
+    }
+}
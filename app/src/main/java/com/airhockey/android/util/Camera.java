@@ -0,0 +1,205 @@
+package com.airhockey.android.util;
+
+import static android.opengl.Matrix.*;
+
+/**
+ * A camera that orbits the origin, with its matrices cached.
+ *
+ * Setters only mark what changed; the view, projection and combined
+ * matrices are recomputed the next time one is asked for, so any number of
+ * touch events between two frames cost one update, and frames where
+ * nothing moved cost none. getVersion changes whenever the matrices do,
+ * so that other caches built from them, such as ModelTransform or lights
+ * in eye space, can tell when to update.
+ *
+ * The returned arrays are owned by the camera and must not be written to.
+ */
+public class Camera {
+    private final float offsetX, offsetY, offsetZ;
+
+    private final float[] projectionMatrix = new float[16];
+    private final float[] viewMatrix = new float[16];
+    // The view without the offset, for drawing things at infinity.
+    private final float[] rotationMatrix = new float[16];
+    private final float[] viewProjectionMatrix = new float[16];
+    private final float[] rotationProjectionMatrix = new float[16];
+    private final float[] eyePosition = new float[4];
+    private final float[] tempMatrix = new float[16];
+    private final float[] orientation = new float[4];
+    private final float[] yaw = new float[4];
+
+    private float xRotation, yRotation;
+    private boolean viewDirty = true;
+    private boolean projectionDirty = true;
+    private int version;
+
+    /**
+     * @param offsetX the translation applied after the rotation, which
+     *                puts the eye away from the origin.
+     */
+    public Camera(float offsetX, float offsetY, float offsetZ) {
+        this.offsetX = offsetX;
+        this.offsetY = offsetY;
+        this.offsetZ = offsetZ;
+        setIdentityM(projectionMatrix, 0);
+    }
+
+    public void setPerspective(float yFovInDegrees, float aspect, float near, float far) {
+        MatrixHelper.perspectiveM(projectionMatrix, yFovInDegrees, aspect, near, far);
+        projectionDirty = true;
+    }
+
+    /**
+     * Turns the camera xRotation degrees around the y axis and yRotation
+     * degrees around the x axis.
+     */
+    public void setRotation(float xRotation, float yRotation) {
+        if (xRotation != this.xRotation || yRotation != this.yRotation) {
+            this.xRotation = xRotation;
+            this.yRotation = yRotation;
+            viewDirty = true;
+        }
+    }
+
+    private void update() {
+        if (!viewDirty && !projectionDirty) {
+            return;
+        }
+        if (viewDirty) {
+            // Around x, then around y, as two calls to rotateM would be.
+            MatrixHelper.setRotateQuaternion(orientation, 0, -yRotation, 1f, 0f, 0f);
+            MatrixHelper.setRotateQuaternion(yaw, 0, -xRotation, 0f, 1f, 0f);
+            MatrixHelper.multiplyQuaternion(orientation, 0, orientation, 0, yaw, 0);
+            MatrixHelper.setRotateQuaternionM(rotationMatrix, 0, orientation, 0);
+
+            // The offset, rotated, as translateM would apply it.
+            System.arraycopy(rotationMatrix, 0, viewMatrix, 0, 12);
+            for (int row = 0; row < 3; row++) {
+                viewMatrix[12 + row] = rotationMatrix[row] * offsetX
+                        + rotationMatrix[4 + row] * offsetY + rotationMatrix[8 + row] * offsetZ;
+            }
+            viewMatrix[15] = 1f;
+
+            // The eye sits at the origin of eye space.
+            MatrixHelper.invertRigidM(tempMatrix, 0, viewMatrix, 0);
+            System.arraycopy(tempMatrix, 12, eyePosition, 0, 4);
+        }
+        multiplyMM(viewProjectionMatrix, 0, projectionMatrix, 0, viewMatrix, 0);
+        multiplyMM(rotationProjectionMatrix, 0, projectionMatrix, 0, rotationMatrix, 0);
+        viewDirty = false;
+        projectionDirty = false;
+        version++;
+    }
+
+    /**
+     * Returns a number that changes every time the matrices do.
+     */
+    public int getVersion() {
+        update();
+        return version;
+    }
+
+    public float[] getProjectionMatrix() {
+        update();
+        return projectionMatrix;
+    }
+
+    public float[] getViewMatrix() {
+        update();
+        return viewMatrix;
+    }
+
+    public float[] getViewProjectionMatrix() {
+        update();
+        return viewProjectionMatrix;
+    }
+
+    /**
+     * Returns the view without the offset, for a skybox, times the
+     * projection.
+     */
+    public float[] getRotationProjectionMatrix() {
+        update();
+        return rotationProjectionMatrix;
+    }
+
+    /**
+     * Returns the eye's position in world space as x, y, z, 1.
+     */
+    public float[] getEyePosition() {
+        update();
+        return eyePosition;
+    }
+
+    /**
+     * The matrices for drawing one model with a camera, recomputed only when
+     * the camera or the model matrix has changed.
+     */
+    public static class ModelTransform {
+        private final Camera camera;
+        private final boolean withNormalMatrix;
+        private final float[] modelMatrix = new float[16];
+        private final float[] modelViewMatrix = new float[16];
+        private final float[] normalMatrix = new float[16];
+        private final float[] modelViewProjectionMatrix = new float[16];
+        private int cameraVersion;
+        private boolean dirty = true;
+
+        /**
+         * @param withNormalMatrix false to skip the inverse transpose, for
+         *                         models drawn without lighting.
+         */
+        public ModelTransform(Camera camera, boolean withNormalMatrix) {
+            this.camera = camera;
+            this.withNormalMatrix = withNormalMatrix;
+            setIdentityM(modelMatrix, 0);
+        }
+
+        /**
+         * Copies the model matrix from m, starting at offset. It must be
+         * affine.
+         */
+        public void setModelMatrix(float[] m, int offset) {
+            System.arraycopy(m, offset, modelMatrix, 0, 16);
+            dirty = true;
+        }
+
+        private void update() {
+            final int version = camera.getVersion();
+            if (!dirty && version == cameraVersion) {
+                return;
+            }
+            MatrixHelper.multiplyAffineMM(modelViewMatrix, 0,
+                    camera.getViewMatrix(), 0, modelMatrix, 0);
+            if (withNormalMatrix) {
+                MatrixHelper.normalMatrixM(normalMatrix, 0, modelViewMatrix, 0);
+            }
+            multiplyMM(modelViewProjectionMatrix, 0,
+                    camera.getProjectionMatrix(), 0, modelViewMatrix, 0);
+            cameraVersion = version;
+            dirty = false;
+        }
+
+        public float[] getModelViewMatrix() {
+            update();
+            return modelViewMatrix;
+        }
+
+        /**
+         * Returns the inverse transpose of the model view matrix. Only for
+         * transforms created with a normal matrix.
+         */
+        public float[] getNormalMatrix() {
+            if (!withNormalMatrix) {
+                throw new IllegalStateException("This transform has no normal matrix.");
+            }
+            update();
+            return normalMatrix;
+        }
+
+        public float[] getModelViewProjectionMatrix() {
+            update();
+            return modelViewProjectionMatrix;
+        }
+    }
+}
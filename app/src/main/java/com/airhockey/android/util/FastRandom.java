@@ -0,0 +1,62 @@
+package com.airhockey.android.util;
+
+/**
+ * A small, non-synchronized xoroshiro128+ generator seeded through
+ * SplitMix64. Unlike java.util.Random there is no AtomicLong update per
+ * call, so it is cheap enough to call several times per particle. Instances
+ * must not be shared between threads.
+ */
+public class FastRandom {
+    private long s0;
+    private long s1;
+
+    public FastRandom() {
+        this(System.nanoTime());
+    }
+
+    public FastRandom(long seed) {
+        setSeed(seed);
+    }
+
+    public void setSeed(long seed) {
+        // Expand the seed with SplitMix64 so that similar seeds still give
+        // unrelated streams, and so that the state is never all zero.
+        long z = seed;
+        z += 0x9E3779B97F4A7C15L;
+        s0 = mix(z);
+        z += 0x9E3779B97F4A7C15L;
+        s1 = mix(z);
+        if ((s0 | s1) == 0) {
+            s1 = 1;
+        }
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    public long nextLong() {
+        final long a = s0;
+        long b = s1;
+        final long result = a + b;
+
+        b ^= a;
+        s0 = Long.rotateLeft(a, 24) ^ b ^ (b << 16);
+        s1 = Long.rotateLeft(b, 37);
+        return result;
+    }
+
+    public int nextInt() {
+        return (int) (nextLong() >>> 32);
+    }
+
+    /**
+     * Returns a uniformly distributed float in [0, 1).
+     */
+    public float nextFloat() {
+        // The high bits of xoroshiro128+ are the best ones.
+        return (nextLong() >>> 40) * 0x1.0p-24f;
+    }
+}
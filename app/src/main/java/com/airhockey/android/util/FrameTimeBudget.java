@@ -0,0 +1,63 @@
+package com.airhockey.android.util;
+
+/**
+ * Watches how long frames take and turns that into a load scale between a
+ * minimum and 1. When the smoothed frame time goes over the target the
+ * scale drops quickly, and when there is headroom again it climbs back
+ * slowly, so that optional work such as particle emission can be cut back
+ * before the whole frame rate collapses.
+ */
+public class FrameTimeBudget {
+    // How much each new frame moves the smoothed frame time.
+    private static final float SMOOTHING = 0.1f;
+    // Frames slower than target * OVER_BUDGET shed load.
+    private static final float OVER_BUDGET = 1.2f;
+    // Frames faster than target * UNDER_BUDGET take load back.
+    private static final float UNDER_BUDGET = 1.05f;
+    private static final float DECREASE_FACTOR = 0.9f;
+    private static final float INCREASE_STEP = 0.01f;
+    // Ignore pauses longer than this, such as returning from the background.
+    private static final float MAX_FRAME_TIME = 0.25f;
+
+    private final float targetFrameTime;
+    private final float minScale;
+    private float averageFrameTime;
+    private float scale = 1f;
+
+    /**
+     * @param targetFrameTime the frame time to hold, in seconds.
+     * @param minScale        the scale never drops below this.
+     */
+    public FrameTimeBudget(float targetFrameTime, float minScale) {
+        this.targetFrameTime = targetFrameTime;
+        this.minScale = minScale;
+        this.averageFrameTime = targetFrameTime;
+    }
+
+    /**
+     * Records how long the last frame took, in seconds.
+     */
+    public void onFrame(float frameTime) {
+        if (frameTime <= 0f || frameTime > MAX_FRAME_TIME) {
+            return;
+        }
+        averageFrameTime += (frameTime - averageFrameTime) * SMOOTHING;
+
+        if (averageFrameTime > targetFrameTime * OVER_BUDGET) {
+            scale = Math.max(minScale, scale * DECREASE_FACTOR);
+            // Give the lower load a chance to show up in the average before
+            // cutting again.
+            averageFrameTime = targetFrameTime * OVER_BUDGET;
+        } else if (averageFrameTime < targetFrameTime * UNDER_BUDGET) {
+            scale = Math.min(1f, scale + INCREASE_STEP);
+        }
+    }
+
+    public float getScale() {
+        return scale;
+    }
+
+    public float getAverageFrameTime() {
+        return averageFrameTime;
+    }
+}
@@ -0,0 +1,139 @@
+package com.airhockey.android.util;
+
+/**
+ * The six clipping planes of a view frustum, for skipping objects that
+ * can't be seen.
+ *
+ * The planes are pulled straight out of a combined projection matrix
+ * (Gribb and Hartmann). Given a view-projection matrix they are in world
+ * space; given a model-view-projection matrix they are in that model's
+ * space, so its bounds can be tested without transforming them.
+ */
+public class Frustum {
+    private static final int PLANE_COUNT = 6;
+
+    /** Floats per box in the arrays passed to cullBoxes. */
+    public static final int BOX_COMPONENT_COUNT = 6;
+    /** Floats per sphere in the arrays passed to cullSpheres. */
+    public static final int SPHERE_COMPONENT_COUNT = 4;
+
+    // a, b, c and d of each plane, normalized so that a point's distance
+    // from the plane is a * x + b * y + c * z + d. Inside is positive.
+    private final float[] planes = new float[PLANE_COUNT * 4];
+
+    /**
+     * Extracts the planes from a column-major matrix, such as one built with
+     * android.opengl.Matrix.
+     */
+    public void update(float[] m) {
+        // Each plane is the fourth row of the matrix plus or minus one of
+        // the others: left, right, bottom, top, near, far.
+        for (int i = 0; i < 3; i++) {
+            setPlane(i * 2, m[3] + m[i], m[7] + m[4 + i], m[11] + m[8 + i], m[15] + m[12 + i]);
+            setPlane(i * 2 + 1, m[3] - m[i], m[7] - m[4 + i], m[11] - m[8 + i], m[15] - m[12 + i]);
+        }
+    }
+
+    private void setPlane(int plane, float a, float b, float c, float d) {
+        final float scale = 1f / (float) Math.sqrt(a * a + b * b + c * c);
+        planes[plane * 4] = a * scale;
+        planes[plane * 4 + 1] = b * scale;
+        planes[plane * 4 + 2] = c * scale;
+        planes[plane * 4 + 3] = d * scale;
+    }
+
+    /**
+     * Returns false if the axis-aligned box is certainly outside the
+     * frustum. Boxes near a corner of the frustum may be reported as
+     * visible when they are not.
+     */
+    public boolean intersectsBox(float minX, float minY, float minZ,
+                                 float maxX, float maxY, float maxZ) {
+        for (int i = 0; i < PLANE_COUNT * 4; i += 4) {
+            final float a = planes[i];
+            final float b = planes[i + 1];
+            final float c = planes[i + 2];
+            // The corner furthest along the plane's normal.
+            final float distance = a * (a >= 0f ? maxX : minX)
+                    + b * (b >= 0f ? maxY : minY)
+                    + c * (c >= 0f ? maxZ : minZ)
+                    + planes[i + 3];
+            if (distance < 0f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the axis-aligned box is entirely inside the frustum.
+     */
+    public boolean containsBox(float minX, float minY, float minZ,
+                               float maxX, float maxY, float maxZ) {
+        for (int i = 0; i < PLANE_COUNT * 4; i += 4) {
+            final float a = planes[i];
+            final float b = planes[i + 1];
+            final float c = planes[i + 2];
+            // The corner furthest against the plane's normal.
+            final float distance = a * (a >= 0f ? minX : maxX)
+                    + b * (b >= 0f ? minY : maxY)
+                    + c * (c >= 0f ? minZ : maxZ)
+                    + planes[i + 3];
+            if (distance < 0f) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns false if the sphere is certainly outside the frustum.
+     */
+    public boolean intersectsSphere(float x, float y, float z, float radius) {
+        for (int i = 0; i < PLANE_COUNT * 4; i += 4) {
+            if (planes[i] * x + planes[i + 1] * y + planes[i + 2] * z + planes[i + 3]
+                    < -radius) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tests count boxes stored as minX, minY, minZ, maxX, maxY, maxZ, and
+     * writes whether each may be visible into visible.
+     *
+     * @return the number of boxes that may be visible.
+     */
+    public int cullBoxes(float[] boxes, int count, boolean[] visible) {
+        int visibleCount = 0;
+        for (int box = 0; box < count; box++) {
+            final int offset = box * BOX_COMPONENT_COUNT;
+            visible[box] = intersectsBox(boxes[offset], boxes[offset + 1], boxes[offset + 2],
+                    boxes[offset + 3], boxes[offset + 4], boxes[offset + 5]);
+            if (visible[box]) {
+                visibleCount++;
+            }
+        }
+        return visibleCount;
+    }
+
+    /**
+     * Tests count spheres stored as x, y, z, radius, and writes whether
+     * each may be visible into visible.
+     *
+     * @return the number of spheres that may be visible.
+     */
+    public int cullSpheres(float[] spheres, int count, boolean[] visible) {
+        int visibleCount = 0;
+        for (int sphere = 0; sphere < count; sphere++) {
+            final int offset = sphere * SPHERE_COMPONENT_COUNT;
+            visible[sphere] = intersectsSphere(spheres[offset], spheres[offset + 1],
+                    spheres[offset + 2], spheres[offset + 3]);
+            if (visible[sphere]) {
+                visibleCount++;
+            }
+        }
+        return visibleCount;
+    }
+}
@@ -0,0 +1,340 @@
+package com.airhockey.android.util;
+
+import java.nio.Buffer;
+import java.util.Arrays;
+
+import static android.opengl.GLES20.*;
+
+/**
+ * Remembers the OpenGL state set through it and drops calls that would set
+ * it to what it already is. Each call into the driver costs CPU time on
+ * older devices even when nothing changes, so buffers, programs and
+ * textures are bound through here instead of with GLES20 directly.
+ *
+ * Because bindings are left in place rather than undone after each use,
+ * code that needs a binding to be 0, such as drawing from client-side
+ * arrays, has to say so with bindBuffer(target, 0).
+ *
+ * The counts of issued and filtered calls are kept per frame, between two
+ * calls to beginFrame. Only call from the GL thread, and call reset
+ * whenever a new context is created, since the state starts over with it.
+ */
+public class GlState {
+    // Stands for state that hasn't been set through here since the reset.
+    private static final int UNKNOWN = -1;
+    // Enough for the texture units and attributes the shaders use; calls
+    // beyond these are passed through untracked.
+    private static final int MAX_TEXTURE_UNITS = 8;
+    private static final int MAX_ATTRIBUTES = 16;
+    // What is remembered for each vertex attribute.
+    private static final int ATTRIBUTE_BUFFER = 0;
+    private static final int ATTRIBUTE_SIZE = 1;
+    private static final int ATTRIBUTE_TYPE = 2;
+    private static final int ATTRIBUTE_NORMALIZED = 3;
+    private static final int ATTRIBUTE_STRIDE = 4;
+    private static final int ATTRIBUTE_OFFSET = 5;
+    private static final int ATTRIBUTE_ENABLED = 6;
+    private static final int ATTRIBUTE_COMPONENT_COUNT = 7;
+
+    private static int program;
+    private static int arrayBuffer;
+    private static int elementArrayBuffer;
+    private static int activeTextureUnit;
+    // Two targets per unit: GL_TEXTURE_2D, then GL_TEXTURE_CUBE_MAP.
+    private static final int[] textures = new int[MAX_TEXTURE_UNITS * 2];
+    private static int blend, depthTest, cullFace;
+    private static int blendSource, blendDestination;
+    private static int depthMask;
+    private static int depthFunc;
+    private static final int[] attributes = new int[MAX_ATTRIBUTES * ATTRIBUTE_COMPONENT_COUNT];
+    // Passes single names to the glDelete calls without allocating.
+    private static final int[] scratch = new int[1];
+
+    private static int issuedCalls, filteredCalls;
+    private static int lastFrameIssuedCalls, lastFrameFilteredCalls;
+
+    static {
+        reset();
+    }
+
+    /**
+     * Forgets everything, so the next call of each kind is issued. Call when
+     * the context has been created or changed behind the cache's back.
+     */
+    public static void reset() {
+        program = UNKNOWN;
+        arrayBuffer = UNKNOWN;
+        elementArrayBuffer = UNKNOWN;
+        activeTextureUnit = UNKNOWN;
+        Arrays.fill(textures, UNKNOWN);
+        blend = UNKNOWN;
+        depthTest = UNKNOWN;
+        cullFace = UNKNOWN;
+        blendSource = UNKNOWN;
+        blendDestination = UNKNOWN;
+        depthMask = UNKNOWN;
+        depthFunc = UNKNOWN;
+        Arrays.fill(attributes, UNKNOWN);
+    }
+
+    /**
+     * Starts counting calls for a new frame. The counts of the frame that
+     * just ended are kept for getIssuedCallCount and getFilteredCallCount.
+     */
+    public static void beginFrame() {
+        lastFrameIssuedCalls = issuedCalls;
+        lastFrameFilteredCalls = filteredCalls;
+        issuedCalls = 0;
+        filteredCalls = 0;
+    }
+
+    /**
+     * Returns how many calls went to the driver in the last whole frame.
+     */
+    public static int getIssuedCallCount() {
+        return lastFrameIssuedCalls;
+    }
+
+    /**
+     * Returns how many calls were dropped as redundant in the last whole
+     * frame.
+     */
+    public static int getFilteredCallCount() {
+        return lastFrameFilteredCalls;
+    }
+
+    // Counts the call and returns whether it needs to be issued.
+    private static boolean changes(int current, int value) {
+        if (current == value) {
+            filteredCalls++;
+            return false;
+        }
+        issuedCalls++;
+        return true;
+    }
+
+    public static void useProgram(int program) {
+        if (changes(GlState.program, program)) {
+            glUseProgram(program);
+            GlState.program = program;
+        }
+    }
+
+    /**
+     * Binds buffer to GL_ARRAY_BUFFER or GL_ELEMENT_ARRAY_BUFFER.
+     */
+    public static void bindBuffer(int target, int buffer) {
+        if (target == GL_ARRAY_BUFFER) {
+            if (changes(arrayBuffer, buffer)) {
+                glBindBuffer(target, buffer);
+                arrayBuffer = buffer;
+            }
+        } else if (target == GL_ELEMENT_ARRAY_BUFFER) {
+            if (changes(elementArrayBuffer, buffer)) {
+                glBindBuffer(target, buffer);
+                elementArrayBuffer = buffer;
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown buffer target " + target);
+        }
+    }
+
+    /**
+     * Deletes buffer and forgets it wherever it was bound, since its name
+     * may be handed out again.
+     */
+    public static void deleteBuffer(int buffer) {
+        scratch[0] = buffer;
+        glDeleteBuffers(1, scratch, 0);
+        issuedCalls++;
+        // Deleting a bound buffer binds 0 in its place.
+        if (arrayBuffer == buffer) {
+            arrayBuffer = 0;
+        }
+        if (elementArrayBuffer == buffer) {
+            elementArrayBuffer = 0;
+        }
+        // Attributes keep pointing at the deleted buffer, but a new buffer
+        // with the same name mustn't look like it's already set up.
+        for (int i = 0; i < attributes.length; i += ATTRIBUTE_COMPONENT_COUNT) {
+            if (attributes[i + ATTRIBUTE_BUFFER] == buffer) {
+                attributes[i + ATTRIBUTE_BUFFER] = UNKNOWN;
+            }
+        }
+    }
+
+    /**
+     * @param unit GL_TEXTURE0 and so on.
+     */
+    public static void activeTexture(int unit) {
+        if (changes(activeTextureUnit, unit)) {
+            glActiveTexture(unit);
+            activeTextureUnit = unit;
+        }
+    }
+
+    /**
+     * Binds texture to target on the active unit. Only GL_TEXTURE_2D and
+     * GL_TEXTURE_CUBE_MAP on the first MAX_TEXTURE_UNITS units are tracked.
+     */
+    public static void bindTexture(int target, int texture) {
+        final int index = getTextureIndex(target);
+        if (index == UNKNOWN) {
+            issuedCalls++;
+            glBindTexture(target, texture);
+        } else if (changes(textures[index], texture)) {
+            glBindTexture(target, texture);
+            textures[index] = texture;
+        }
+    }
+
+    private static int getTextureIndex(int target) {
+        final int unit = activeTextureUnit == UNKNOWN ? UNKNOWN : activeTextureUnit - GL_TEXTURE0;
+        if (unit < 0 || unit >= MAX_TEXTURE_UNITS) {
+            return UNKNOWN;
+        }
+        if (target == GL_TEXTURE_2D) {
+            return unit * 2;
+        } else if (target == GL_TEXTURE_CUBE_MAP) {
+            return unit * 2 + 1;
+        } else {
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * Deletes texture and forgets it on every unit it was bound to.
+     */
+    public static void deleteTexture(int texture) {
+        scratch[0] = texture;
+        glDeleteTextures(1, scratch, 0);
+        issuedCalls++;
+        for (int i = 0; i < textures.length; i++) {
+            if (textures[i] == texture) {
+                textures[i] = 0;
+            }
+        }
+    }
+
+    public static void enable(int capability) {
+        setCapability(capability, true);
+    }
+
+    public static void disable(int capability) {
+        setCapability(capability, false);
+    }
+
+    // GL_BLEND, GL_DEPTH_TEST and GL_CULL_FACE are tracked; anything else
+    // is always issued.
+    private static void setCapability(int capability, boolean enabled) {
+        final int value = enabled ? 1 : 0;
+        final int current;
+        if (capability == GL_BLEND) {
+            current = blend;
+            blend = value;
+        } else if (capability == GL_DEPTH_TEST) {
+            current = depthTest;
+            depthTest = value;
+        } else if (capability == GL_CULL_FACE) {
+            current = cullFace;
+            cullFace = value;
+        } else {
+            current = UNKNOWN;
+        }
+        if (changes(current, value)) {
+            if (enabled) {
+                glEnable(capability);
+            } else {
+                glDisable(capability);
+            }
+        }
+    }
+
+    public static void blendFunc(int source, int destination) {
+        if (blendSource == source && blendDestination == destination) {
+            filteredCalls++;
+            return;
+        }
+        issuedCalls++;
+        glBlendFunc(source, destination);
+        blendSource = source;
+        blendDestination = destination;
+    }
+
+    public static void depthMask(boolean flag) {
+        if (changes(depthMask, flag ? 1 : 0)) {
+            glDepthMask(flag);
+            depthMask = flag ? 1 : 0;
+        }
+    }
+
+    public static void depthFunc(int func) {
+        if (changes(depthFunc, func)) {
+            glDepthFunc(func);
+            depthFunc = func;
+        }
+    }
+
+    /**
+     * Points the attribute at location at the buffer bound to
+     * GL_ARRAY_BUFFER, starting offset bytes in, and enables it.
+     */
+    public static void vertexAttribPointer(int location, int size, int type,
+                                           boolean normalized, int stride, int offset) {
+        if (location < 0 || location >= MAX_ATTRIBUTES || arrayBuffer == UNKNOWN) {
+            issuedCalls += 2;
+            glVertexAttribPointer(location, size, type, normalized, stride, offset);
+            glEnableVertexAttribArray(location);
+            return;
+        }
+        final int index = location * ATTRIBUTE_COMPONENT_COUNT;
+        final int normalizedValue = normalized ? 1 : 0;
+        if (attributes[index + ATTRIBUTE_BUFFER] == arrayBuffer
+                && attributes[index + ATTRIBUTE_SIZE] == size
+                && attributes[index + ATTRIBUTE_TYPE] == type
+                && attributes[index + ATTRIBUTE_NORMALIZED] == normalizedValue
+                && attributes[index + ATTRIBUTE_STRIDE] == stride
+                && attributes[index + ATTRIBUTE_OFFSET] == offset) {
+            filteredCalls++;
+        } else {
+            issuedCalls++;
+            glVertexAttribPointer(location, size, type, normalized, stride, offset);
+            attributes[index + ATTRIBUTE_BUFFER] = arrayBuffer;
+            attributes[index + ATTRIBUTE_SIZE] = size;
+            attributes[index + ATTRIBUTE_TYPE] = type;
+            attributes[index + ATTRIBUTE_NORMALIZED] = normalizedValue;
+            attributes[index + ATTRIBUTE_STRIDE] = stride;
+            attributes[index + ATTRIBUTE_OFFSET] = offset;
+        }
+        enableVertexAttribArray(location);
+    }
+
+    /**
+     * Points the attribute at location at client-side data, and enables
+     * it. GL_ARRAY_BUFFER is bound to 0 first, as client-side data needs.
+     * These are always issued, since the data's address isn't known here.
+     */
+    public static void vertexAttribPointer(int location, int size, int type,
+                                           boolean normalized, int stride, Buffer data) {
+        bindBuffer(GL_ARRAY_BUFFER, 0);
+        issuedCalls++;
+        glVertexAttribPointer(location, size, type, normalized, stride, data);
+        if (location >= 0 && location < MAX_ATTRIBUTES) {
+            attributes[location * ATTRIBUTE_COMPONENT_COUNT + ATTRIBUTE_BUFFER] = UNKNOWN;
+        }
+        enableVertexAttribArray(location);
+    }
+
+    public static void enableVertexAttribArray(int location) {
+        if (location < 0 || location >= MAX_ATTRIBUTES) {
+            issuedCalls++;
+            glEnableVertexAttribArray(location);
+            return;
+        }
+        final int index = location * ATTRIBUTE_COMPONENT_COUNT + ATTRIBUTE_ENABLED;
+        if (changes(attributes[index], 1)) {
+            glEnableVertexAttribArray(location);
+            attributes[index] = 1;
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package com.airhockey.android.util;
+
+/**
+ * A regular grid of heights that can be sampled at any x, z position.
+ *
+ * The grid covers x and z from -sizeX / 2 to sizeX / 2 and -sizeZ / 2 to
+ * sizeZ / 2, the same way Heightmap lays out its vertices, and the stored
+ * heights are multiplied by sizeY. Rows run along z and columns along x.
+ *
+ * Rays are intersected with the same two triangles per cell that Heightmap
+ * draws. A quadtree of maximum heights, each node covering 2x2 nodes of the
+ * level below, lets a ray skip every node it passes over without testing
+ * the triangles inside, so a query touches only the cells along the ray
+ * near the hit.
+ *
+ * Queries reuse scratch arrays held by the height field, so a height field
+ * should only be queried from one thread at a time. Scaled copies have
+ * their own.
+ */
+public class HeightField {
+    /** Returned by intersectRay when the ray misses the terrain. */
+    public static final float NO_INTERSECTION = -1f;
+
+    private final float[] heights;
+    private final int columns;
+    private final int rows;
+    private final float sizeX, sizeY, sizeZ;
+
+    // maxHeights[level] holds, for each node of that level, the highest
+    // unscaled height in its cells, row by row. Level 0 has one node per
+    // cell; the last level has a single node. Shared by scaled copies.
+    private final float[][] maxHeights;
+    private final int[] levelColumns;
+
+    // Scratch space for intersectRay, so that queries don't allocate. Each
+    // stack entry is a node's level, column and row, and every node opened
+    // replaces itself with at most four children.
+    private final int[] stack;
+    private final float[] range = new float[2];
+    private final float[] childNear = new float[4];
+    private final int[] childOrder = new int[4];
+
+    public HeightField(float[] heights, int columns, int rows) {
+        this(heights, columns, rows, 1f, 1f, 1f);
+    }
+
+    public HeightField(float[] heights, int columns, int rows,
+                       float sizeX, float sizeY, float sizeZ) {
+        this(heights, columns, rows, sizeX, sizeY, sizeZ, null, null);
+    }
+
+    private HeightField(float[] heights, int columns, int rows,
+                        float sizeX, float sizeY, float sizeZ,
+                        float[][] maxHeights, int[] levelColumns) {
+        if (heights.length < columns * rows) {
+            throw new IllegalArgumentException("Not enough heights for a "
+                    + columns + "x" + rows + " grid.");
+        }
+        if (columns < 2 || rows < 2) {
+            throw new IllegalArgumentException("A height field needs at least 2x2 heights.");
+        }
+        this.heights = heights;
+        this.columns = columns;
+        this.rows = rows;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        if (maxHeights == null) {
+            levelColumns = buildLevelColumns(columns - 1, rows - 1);
+            maxHeights = buildMaxHeights(heights, columns, rows, levelColumns);
+        }
+        this.maxHeights = maxHeights;
+        this.levelColumns = levelColumns;
+        this.stack = new int[((maxHeights.length - 1) * 3 + 1) * 3];
+    }
+
+    /**
+     * Returns a height field over the same data, stretched to match a
+     * heightmap drawn with the given scale.
+     */
+    public HeightField scaled(float scaleX, float scaleY, float scaleZ) {
+        return new HeightField(heights, columns, rows,
+                sizeX * scaleX, sizeY * scaleY, sizeZ * scaleZ, maxHeights, levelColumns);
+    }
+
+    private static int[] buildLevelColumns(int cellColumns, int cellRows) {
+        int levels = 1;
+        for (int size = Math.max(cellColumns, cellRows); size > 1; size = (size + 1) / 2) {
+            levels++;
+        }
+        // Rows per level follow from the cell rows the same way.
+        final int[] levelColumns = new int[levels];
+        for (int level = 0; level < levels; level++) {
+            levelColumns[level] = cellColumns;
+            cellColumns = (cellColumns + 1) / 2;
+        }
+        return levelColumns;
+    }
+
+    private static float[][] buildMaxHeights(float[] heights, int columns, int rows,
+                                             int[] levelColumns) {
+        final float[][] maxHeights = new float[levelColumns.length][];
+        int levelRows = rows - 1;
+        final float[] cells = new float[levelColumns[0] * levelRows];
+        for (int row = 0; row < levelRows; row++) {
+            for (int col = 0; col < levelColumns[0]; col++) {
+                cells[row * levelColumns[0] + col] = getCellMax(heights, columns, row, col);
+            }
+        }
+        maxHeights[0] = cells;
+
+        for (int level = 1; level < levelColumns.length; level++) {
+            final int childColumns = levelColumns[level - 1];
+            final int childRows = levelRows;
+            final float[] children = maxHeights[level - 1];
+            levelRows = (levelRows + 1) / 2;
+            final float[] nodes = new float[levelColumns[level] * levelRows];
+            for (int row = 0; row < levelRows; row++) {
+                for (int col = 0; col < levelColumns[level]; col++) {
+                    nodes[row * levelColumns[level] + col] =
+                            getNodeMax(children, childColumns, childRows, row, col);
+                }
+            }
+            maxHeights[level] = nodes;
+        }
+        return maxHeights;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    private static float getCellMax(float[] heights, int columns, int row, int col) {
+        final int index = row * columns + col;
+        return Math.max(Math.max(heights[index], heights[index + 1]),
+                Math.max(heights[index + columns], heights[index + columns + 1]));
+    }
+
+    // The highest of the up to four children of a node.
+    private static float getNodeMax(float[] children, int childColumns, int childRows,
+                                    int row, int col) {
+        final int childRow = row * 2;
+        final int childCol = col * 2;
+        final int lastRow = Math.min(childRow + 1, childRows - 1);
+        final int lastCol = Math.min(childCol + 1, childColumns - 1);
+        return Math.max(
+                Math.max(children[childRow * childColumns + childCol],
+                        children[childRow * childColumns + lastCol]),
+                Math.max(children[lastRow * childColumns + childCol],
+                        children[lastRow * childColumns + lastCol]));
+    }
+
+    /**
+     * Brings the ray casting data up to date after the heights from
+     * startRow to endRow and startColumn to endColumn (exclusive) were
+     * changed in the array this field was created with.
+     */
+    public void updateRegion(int startRow, int endRow, int startColumn, int endColumn) {
+        // The cells that use the changed samples.
+        int firstRow = Math.max(0, startRow - 1);
+        int lastRow = Math.min(rows - 2, endRow - 1);
+        int firstColumn = Math.max(0, startColumn - 1);
+        int lastColumn = Math.min(columns - 2, endColumn - 1);
+        final float[] cells = maxHeights[0];
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstColumn; col <= lastColumn; col++) {
+                cells[row * levelColumns[0] + col] = getCellMax(heights, columns, row, col);
+            }
+        }
+
+        int childRows = rows - 1;
+        for (int level = 1; level < maxHeights.length; level++) {
+            final int childColumns = levelColumns[level - 1];
+            final float[] children = maxHeights[level - 1];
+            final float[] nodes = maxHeights[level];
+            firstRow /= 2;
+            lastRow /= 2;
+            firstColumn /= 2;
+            lastColumn /= 2;
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int col = firstColumn; col <= lastColumn; col++) {
+                    nodes[row * levelColumns[level] + col] =
+                            getNodeMax(children, childColumns, childRows, row, col);
+                }
+            }
+            childRows = (childRows + 1) / 2;
+        }
+    }
+
+    /**
+     * Returns the scaled height stored at the given grid sample.
+     */
+    public float getSample(int row, int col) {
+        return heights[row * columns + col] * sizeY;
+    }
+
+    /**
+     * Returns the bilinearly interpolated height at x, z. Positions outside
+     * the grid are clamped to its edge.
+     */
+    public float heightAt(float x, float z) {
+        float u = (x / sizeX + 0.5f) * (columns - 1);
+        float v = (z / sizeZ + 0.5f) * (rows - 1);
+        u = Math.max(0f, Math.min(columns - 1, u));
+        v = Math.max(0f, Math.min(rows - 1, v));
+
+        final int col = Math.min((int) u, columns - 2);
+        final int row = Math.min((int) v, rows - 2);
+        final float fu = u - col;
+        final float fv = v - row;
+
+        final int index = row * columns + col;
+        final float top = heights[index] + (heights[index + 1] - heights[index]) * fu;
+        final float bottom = heights[index + columns]
+                + (heights[index + columns + 1] - heights[index + columns]) * fu;
+        return (top + (bottom - top) * fv) * sizeY;
+    }
+
+    /**
+     * Returns the point where ray first hits the terrain, or null if it
+     * doesn't within the grid. Only hits in front of the ray's point count.
+     */
+    public Geometry.Point intersectionPoint(Geometry.Ray ray) {
+        final float t = intersectRay(ray.point.x, ray.point.y, ray.point.z,
+                ray.vector.x, ray.vector.y, ray.vector.z);
+        if (t == NO_INTERSECTION) {
+            return null;
+        }
+        return ray.point.translate(ray.vector.scale(t));
+    }
+
+    /**
+     * Returns how many lengths of the direction vector from the origin the
+     * ray first hits the terrain, or NO_INTERSECTION.
+     */
+    public float intersectRay(float originX, float originY, float originZ,
+                              float directionX, float directionY, float directionZ) {
+        // Work in grid space, where cells are unit squares and heights are
+        // unscaled. The mapping is affine, so distances along the ray stay
+        // the same.
+        final float ox = (originX / sizeX + 0.5f) * (columns - 1);
+        final float oy = originY / sizeY;
+        final float oz = (originZ / sizeZ + 0.5f) * (rows - 1);
+        final float dx = directionX / sizeX * (columns - 1);
+        final float dy = directionY / sizeY;
+        final float dz = directionZ / sizeZ * (rows - 1);
+        final float inverseX = 1f / dx;
+        final float inverseZ = 1f / dz;
+
+        final int topLevel = maxHeights.length - 1;
+        final int[] stack = this.stack;
+        final float[] range = this.range;
+        final float[] childNear = this.childNear;
+        final int[] childOrder = this.childOrder;
+        int stackSize = 0;
+        stack[stackSize++] = topLevel;
+        stack[stackSize++] = 0;
+        stack[stackSize++] = 0;
+
+        float nearest = Float.POSITIVE_INFINITY;
+        while (stackSize > 0) {
+            final int row = stack[--stackSize];
+            final int col = stack[--stackSize];
+            final int level = stack[--stackSize];
+            if (!clipToNode(level, col, row, ox, oz, dx, dz, inverseX, inverseZ, range)
+                    || range[0] >= nearest) {
+                continue;
+            }
+            // Skip the node if the ray stays above everything in it.
+            final float lowestY = Math.min(oy + dy * range[0], oy + dy * range[1]);
+            if (lowestY > maxHeights[level][row * levelColumns[level] + col]) {
+                continue;
+            }
+
+            if (level == 0) {
+                final float t = intersectCell(col, row, ox, oy, oz, dx, dy, dz);
+                if (t >= 0f && t < nearest) {
+                    nearest = t;
+                }
+                continue;
+            }
+
+            // Push the children so that the nearest is opened first. Their
+            // ranges along the ray don't overlap, so once one of them hits,
+            // the rest are skipped by the nearest test above.
+            final int childLevel = level - 1;
+            final int childColumns = levelColumns[childLevel];
+            final int childRows = getLevelRows(childLevel);
+            int childCount = 0;
+            for (int i = 0; i < 4; i++) {
+                final int childCol = col * 2 + (i & 1);
+                final int childRow = row * 2 + (i >> 1);
+                if (childCol >= childColumns || childRow >= childRows
+                        || !clipToNode(childLevel, childCol, childRow,
+                        ox, oz, dx, dz, inverseX, inverseZ, range)) {
+                    continue;
+                }
+                int j = childCount++;
+                while (j > 0 && childNear[j - 1] < range[0]) {
+                    childNear[j] = childNear[j - 1];
+                    childOrder[j] = childOrder[j - 1];
+                    j--;
+                }
+                childNear[j] = range[0];
+                childOrder[j] = i;
+            }
+            for (int j = 0; j < childCount; j++) {
+                stack[stackSize++] = childLevel;
+                stack[stackSize++] = col * 2 + (childOrder[j] & 1);
+                stack[stackSize++] = row * 2 + (childOrder[j] >> 1);
+            }
+        }
+        return nearest == Float.POSITIVE_INFINITY ? NO_INTERSECTION : nearest;
+    }
+
+    private int getLevelRows(int level) {
+        int levelRows = rows - 1;
+        for (int i = 0; i < level; i++) {
+            levelRows = (levelRows + 1) / 2;
+        }
+        return levelRows;
+    }
+
+    // Clips the ray, from t = 0 on, to the node's square in x and z, and
+    // writes the range of t inside it. Returns false if there is none.
+    private boolean clipToNode(int level, int col, int row, float ox, float oz,
+                               float dx, float dz, float inverseX, float inverseZ,
+                               float[] range) {
+        final int size = 1 << level;
+        final float minX = col * size;
+        final float maxX = Math.min(minX + size, columns - 1);
+        final float minZ = row * size;
+        final float maxZ = Math.min(minZ + size, rows - 1);
+        float near = 0f;
+        float far = Float.POSITIVE_INFINITY;
+
+        if (dx == 0f) {
+            if (ox < minX || ox > maxX) {
+                return false;
+            }
+        } else {
+            final float t1 = (minX - ox) * inverseX;
+            final float t2 = (maxX - ox) * inverseX;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+        if (dz == 0f) {
+            if (oz < minZ || oz > maxZ) {
+                return false;
+            }
+        } else {
+            final float t1 = (minZ - oz) * inverseZ;
+            final float t2 = (maxZ - oz) * inverseZ;
+            near = Math.max(near, Math.min(t1, t2));
+            far = Math.min(far, Math.max(t1, t2));
+        }
+        range[0] = near;
+        range[1] = far;
+        return near <= far;
+    }
+
+    // Returns where the ray hits either triangle of the cell, in the same
+    // split as the terrain's index buffers, or a negative number.
+    private float intersectCell(int col, int row, float ox, float oy, float oz,
+                                float dx, float dy, float dz) {
+        final int index = row * columns + col;
+        final float topLeft = heights[index];
+        final float topRight = heights[index + 1];
+        final float bottomLeft = heights[index + columns];
+        final float bottomRight = heights[index + columns + 1];
+
+        float t = intersectTriangle(ox - col, oy, oz - row, dx, dy, dz,
+                0f, topLeft, 0f, 0f, bottomLeft, 1f, 1f, topRight, 0f);
+        final float second = intersectTriangle(ox - col, oy, oz - row, dx, dy, dz,
+                1f, topRight, 0f, 0f, bottomLeft, 1f, 1f, bottomRight, 1f);
+        if (second >= 0f && (t < 0f || second < t)) {
+            t = second;
+        }
+        return t;
+    }
+
+    // Moller-Trumbore, from both sides. Returns t or a negative number.
+    private static float intersectTriangle(float ox, float oy, float oz,
+                                           float dx, float dy, float dz,
+                                           float ax, float ay, float az,
+                                           float bx, float by, float bz,
+                                           float cx, float cy, float cz) {
+        final float e1x = bx - ax, e1y = by - ay, e1z = bz - az;
+        final float e2x = cx - ax, e2y = cy - ay, e2z = cz - az;
+        final float px = dy * e2z - dz * e2y;
+        final float py = dz * e2x - dx * e2z;
+        final float pz = dx * e2y - dy * e2x;
+        final float determinant = e1x * px + e1y * py + e1z * pz;
+        if (Math.abs(determinant) < 1e-12f) {
+            return -1f;
+        }
+        final float inverse = 1f / determinant;
+        final float sx = ox - ax, sy = oy - ay, sz = oz - az;
+        final float u = (sx * px + sy * py + sz * pz) * inverse;
+        if (u < 0f || u > 1f) {
+            return -1f;
+        }
+        final float qx = sy * e1z - sz * e1y;
+        final float qy = sz * e1x - sx * e1z;
+        final float qz = sx * e1y - sy * e1x;
+        final float v = (dx * qx + dy * qy + dz * qz) * inverse;
+        if (v < 0f || u + v > 1f) {
+            return -1f;
+        }
+        return (e2x * qx + e2y * qy + e2z * qz) * inverse;
+    }
+}
@@ -2,6 +2,14 @@ package com.airhockey.android.util;
 
 /**
  * Created by Jonathan on 6/16/2016.
+ *
+ * Besides the projection, this has cheaper versions of the
+ * android.opengl.Matrix routines for the matrices we build most often.
+ * Model and view matrices are affine, with a bottom row of 0, 0, 0, 1, and
+ * views are rigid, only rotating and translating. Knowing that skips most
+ * of the work of a general multiply or inverse. Matrices are column-major,
+ * as in android.opengl.Matrix, and results must not overlap the inputs
+ * unless a method says otherwise.
  */
 public class MatrixHelper {
     public static void perspectiveM(float[] m, float yFovInDegrees, float aspect,
@@ -27,4 +35,184 @@ public class MatrixHelper {
         m[14] = -((2f * f * n) / (f - n));
         m[15] = 0f;
     }
+
+    /**
+     * result = lhs * rhs, for two affine matrices. Like
+     * Matrix.multiplyMM, but the bottom rows are taken to be 0, 0, 0, 1.
+     */
+    public static void multiplyAffineMM(float[] result, int resultOffset,
+                                        float[] lhs, int lhsOffset,
+                                        float[] rhs, int rhsOffset) {
+        for (int column = 0; column < 4; column++) {
+            final int rhsColumn = rhsOffset + column * 4;
+            final float x = rhs[rhsColumn];
+            final float y = rhs[rhsColumn + 1];
+            final float z = rhs[rhsColumn + 2];
+            final int resultColumn = resultOffset + column * 4;
+            for (int row = 0; row < 3; row++) {
+                result[resultColumn + row] = lhs[lhsOffset + row] * x
+                        + lhs[lhsOffset + 4 + row] * y
+                        + lhs[lhsOffset + 8 + row] * z;
+            }
+            result[resultColumn + 3] = 0f;
+        }
+        // Only the last column picks up lhs's translation.
+        for (int row = 0; row < 3; row++) {
+            result[resultOffset + 12 + row] += lhs[lhsOffset + 12 + row];
+        }
+        result[resultOffset + 15] = 1f;
+    }
+
+    /**
+     * Inverts a matrix that only rotates and translates, by transposing the
+     * rotation and rotating the translation back. Matches Matrix.invertM
+     * for such matrices.
+     */
+    public static void invertRigidM(float[] result, int resultOffset, float[] m, int mOffset) {
+        final float tx = m[mOffset + 12];
+        final float ty = m[mOffset + 13];
+        final float tz = m[mOffset + 14];
+        for (int i = 0; i < 3; i++) {
+            final int column = mOffset + i * 4;
+            result[resultOffset + i] = m[column];
+            result[resultOffset + 4 + i] = m[column + 1];
+            result[resultOffset + 8 + i] = m[column + 2];
+            result[resultOffset + 12 + i] = -(m[column] * tx + m[column + 1] * ty
+                    + m[column + 2] * tz);
+        }
+        result[resultOffset + 3] = 0f;
+        result[resultOffset + 7] = 0f;
+        result[resultOffset + 11] = 0f;
+        result[resultOffset + 15] = 1f;
+    }
+
+    /**
+     * Writes the matrix that transforms normals for the affine matrix m: the
+     * inverse transpose of its upper 3x3, which also handles non-uniform
+     * scale. Matches invertM followed by transposeM, except that the bottom
+     * row, which only affects w, is left as 0, 0, 0, 1; normals have a w of
+     * 0.
+     */
+    public static void normalMatrixM(float[] result, int resultOffset, float[] m, int mOffset) {
+        // The columns of the inverse transpose are the cross products of
+        // pairs of columns, divided by the determinant.
+        final float ax = m[mOffset], ay = m[mOffset + 1], az = m[mOffset + 2];
+        final float bx = m[mOffset + 4], by = m[mOffset + 5], bz = m[mOffset + 6];
+        final float cx = m[mOffset + 8], cy = m[mOffset + 9], cz = m[mOffset + 10];
+        final float bcx = by * cz - bz * cy;
+        final float bcy = bz * cx - bx * cz;
+        final float bcz = bx * cy - by * cx;
+        final float inverseDeterminant = 1f / (ax * bcx + ay * bcy + az * bcz);
+
+        result[resultOffset] = bcx * inverseDeterminant;
+        result[resultOffset + 1] = bcy * inverseDeterminant;
+        result[resultOffset + 2] = bcz * inverseDeterminant;
+        result[resultOffset + 3] = 0f;
+        result[resultOffset + 4] = (cy * az - cz * ay) * inverseDeterminant;
+        result[resultOffset + 5] = (cz * ax - cx * az) * inverseDeterminant;
+        result[resultOffset + 6] = (cx * ay - cy * ax) * inverseDeterminant;
+        result[resultOffset + 7] = 0f;
+        result[resultOffset + 8] = (ay * bz - az * by) * inverseDeterminant;
+        result[resultOffset + 9] = (az * bx - ax * bz) * inverseDeterminant;
+        result[resultOffset + 10] = (ax * by - ay * bx) * inverseDeterminant;
+        result[resultOffset + 11] = 0f;
+        result[resultOffset + 12] = 0f;
+        result[resultOffset + 13] = 0f;
+        result[resultOffset + 14] = 0f;
+        result[resultOffset + 15] = 1f;
+    }
+
+    /**
+     * Writes the quaternion x, y, z, w for a rotation of a degrees around
+     * the axis (x, y, z), which needn't be normalized, as Matrix.setRotateM
+     * takes it.
+     */
+    public static void setRotateQuaternion(float[] q, int qOffset, float a,
+                                           float x, float y, float z) {
+        final double halfAngle = Math.toRadians(a) / 2.0;
+        final float scale = (float) (Math.sin(halfAngle) / Math.sqrt(x * x + y * y + z * z));
+        q[qOffset] = x * scale;
+        q[qOffset + 1] = y * scale;
+        q[qOffset + 2] = z * scale;
+        q[qOffset + 3] = (float) Math.cos(halfAngle);
+    }
+
+    /**
+     * result = lhs * rhs: the rotation rhs followed by lhs. result may be
+     * one of the inputs.
+     */
+    public static void multiplyQuaternion(float[] result, int resultOffset,
+                                          float[] lhs, int lhsOffset,
+                                          float[] rhs, int rhsOffset) {
+        final float x1 = lhs[lhsOffset], y1 = lhs[lhsOffset + 1];
+        final float z1 = lhs[lhsOffset + 2], w1 = lhs[lhsOffset + 3];
+        final float x2 = rhs[rhsOffset], y2 = rhs[rhsOffset + 1];
+        final float z2 = rhs[rhsOffset + 2], w2 = rhs[rhsOffset + 3];
+        result[resultOffset] = w1 * x2 + x1 * w2 + y1 * z2 - z1 * y2;
+        result[resultOffset + 1] = w1 * y2 - x1 * z2 + y1 * w2 + z1 * x2;
+        result[resultOffset + 2] = w1 * z2 + x1 * y2 - y1 * x2 + z1 * w2;
+        result[resultOffset + 3] = w1 * w2 - x1 * x2 - y1 * y2 - z1 * z2;
+    }
+
+    /**
+     * Writes the rotation matrix of the unit quaternion at q, as
+     * Matrix.setRotateM would for the same rotation, without its trig.
+     */
+    public static void setRotateQuaternionM(float[] rm, int rmOffset, float[] q, int qOffset) {
+        final float x = q[qOffset];
+        final float y = q[qOffset + 1];
+        final float z = q[qOffset + 2];
+        final float w = q[qOffset + 3];
+        final float xx = x * x, yy = y * y, zz = z * z;
+        final float xy = x * y, xz = x * z, yz = y * z;
+        final float wx = w * x, wy = w * y, wz = w * z;
+
+        rm[rmOffset] = 1f - 2f * (yy + zz);
+        rm[rmOffset + 1] = 2f * (xy + wz);
+        rm[rmOffset + 2] = 2f * (xz - wy);
+        rm[rmOffset + 3] = 0f;
+        rm[rmOffset + 4] = 2f * (xy - wz);
+        rm[rmOffset + 5] = 1f - 2f * (xx + zz);
+        rm[rmOffset + 6] = 2f * (yz + wx);
+        rm[rmOffset + 7] = 0f;
+        rm[rmOffset + 8] = 2f * (xz + wy);
+        rm[rmOffset + 9] = 2f * (yz - wx);
+        rm[rmOffset + 10] = 1f - 2f * (xx + yy);
+        rm[rmOffset + 11] = 0f;
+        rm[rmOffset + 12] = 0f;
+        rm[rmOffset + 13] = 0f;
+        rm[rmOffset + 14] = 0f;
+        rm[rmOffset + 15] = 1f;
+    }
+
+    /**
+     * Rotates the vector at v by the Euler angles x, y and z, in degrees,
+     * and writes it to result, which may be v. This is the rotation that
+     * Matrix.setRotateEulerM2 builds (Rz(-z) * Ry(-y) * Rx(-x)) applied
+     * with multiplyMV, without building the matrix. The older
+     * setRotateEulerM mixes up two of its terms, so isn't a pure rotation.
+     */
+    public static void rotateEulerV(float[] result, int resultOffset, float[] v, int vOffset,
+                                    float x, float y, float z) {
+        x *= (float) (Math.PI / 180.0);
+        y *= (float) (Math.PI / 180.0);
+        z *= (float) (Math.PI / 180.0);
+        final float cx = (float) Math.cos(x);
+        final float sx = (float) Math.sin(x);
+        final float cy = (float) Math.cos(y);
+        final float sy = (float) Math.sin(y);
+        final float cz = (float) Math.cos(z);
+        final float sz = (float) Math.sin(z);
+        final float cxsy = cx * sy;
+        final float sxsy = sx * sy;
+
+        final float vx = v[vOffset];
+        final float vy = v[vOffset + 1];
+        final float vz = v[vOffset + 2];
+        result[resultOffset] = cy * cz * vx + (sxsy * cz + cx * sz) * vy
+                + (-cxsy * cz + sx * sz) * vz;
+        result[resultOffset + 1] = -cy * sz * vx + (-sxsy * sz + cx * cz) * vy
+                + (cxsy * sz + sx * cz) * vz;
+        result[resultOffset + 2] = sy * vx - sx * cy * vy + cx * cy * vz;
+    }
 }
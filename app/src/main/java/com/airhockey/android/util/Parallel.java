@@ -0,0 +1,116 @@
+package com.airhockey.android.util;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Splits loops over an index range into chunks and runs them across all
+ * cores. The calling thread works on the first chunk itself and returns
+ * once every chunk is done.
+ *
+ * We use a plain fixed thread pool rather than ForkJoinPool, which is only
+ * available from API 21.
+ */
+public class Parallel {
+    public interface RangeTask {
+        /**
+         * Processes the indices from start (inclusive) to end (exclusive).
+         */
+        void run(int start, int end);
+    }
+
+    private static final int THREAD_COUNT = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService executor;
+
+    public static int getThreadCount() {
+        return THREAD_COUNT;
+    }
+
+    /**
+     * Runs task over [start, end), using no chunk smaller than minChunkSize
+     * so that small loops stay on the calling thread.
+     */
+    public static void forRange(int start, int end, int minChunkSize, RangeTask task) {
+        final int length = end - start;
+        final int chunkCount = Math.min(THREAD_COUNT, length / Math.max(1, minChunkSize));
+        if (chunkCount <= 1) {
+            task.run(start, end);
+            return;
+        }
+
+        final int chunkSize = (length + chunkCount - 1) / chunkCount;
+        final Future<?>[] futures = new Future<?>[chunkCount - 1];
+        for (int i = 1; i < chunkCount; i++) {
+            final int chunkStart = start + i * chunkSize;
+            final int chunkEnd = Math.min(end, chunkStart + chunkSize);
+            futures[i - 1] = getExecutor().submit(new ChunkRunnable(task, chunkStart, chunkEnd));
+        }
+        task.run(start, start + chunkSize);
+
+        for (Future<?> future : futures) {
+            waitFor(future);
+        }
+    }
+
+    private static void waitFor(Future<?> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(THREAD_COUNT, new ThreadFactory() {
+                private int count;
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "Parallel-" + count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    private static class ChunkRunnable implements Runnable {
+        private final RangeTask task;
+        private final int start;
+        private final int end;
+
+        ChunkRunnable(RangeTask task, int start, int end) {
+            this.task = task;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            task.run(start, end);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.airhockey.android.util;
+
+/**
+ * Tests one ray against many spheres or axis-aligned boxes at once, for
+ * picking among thousands of objects without allocating.
+ *
+ * Objects are stored as structure-of-arrays: one array per component, so
+ * each kernel is a straight loop over consecutive floats, with no early
+ * exits and nothing the JIT can't inline, which it can unroll and
+ * vectorize.
+ * The kernels write a distance for every object, NO_HIT for a miss, and
+ * collectHits or findNearest then pick out the hits.
+ *
+ * Rays are laid out as in VectorMath: a point, then a vector. Distances are
+ * in units of the ray's vector, so the hit point is point + distance *
+ * vector. Only hits in front of the point count; a ray that starts inside
+ * an object hits it at a distance of 0.
+ */
+public class RayBatch {
+    public static final float NO_HIT = Float.POSITIVE_INFINITY;
+
+    private RayBatch() {
+    }
+
+    /**
+     * Writes the distance along ray to the first of count spheres, centered
+     * on (centerX[i], centerY[i], centerZ[i]) with radius radii[i], into
+     * distances[i].
+     */
+    public static void intersectSpheres(float[] ray, int rayOffset,
+                                        float[] centerX, float[] centerY, float[] centerZ,
+                                        float[] radii, int count, float[] distances) {
+        final float ox = ray[rayOffset];
+        final float oy = ray[rayOffset + 1];
+        final float oz = ray[rayOffset + 2];
+        final float dx = ray[rayOffset + 3];
+        final float dy = ray[rayOffset + 4];
+        final float dz = ray[rayOffset + 5];
+        final float a = dx * dx + dy * dy + dz * dz;
+        final float inverseA = 1f / a;
+
+        for (int i = 0; i < count; i++) {
+            // Solve |o + t * d - c|^2 = r^2 for t, with b halved.
+            final float ocx = ox - centerX[i];
+            final float ocy = oy - centerY[i];
+            final float ocz = oz - centerZ[i];
+            final float b = ocx * dx + ocy * dy + ocz * dz;
+            final float c = ocx * ocx + ocy * ocy + ocz * ocz - radii[i] * radii[i];
+            // NaN when the ray misses, which fails the test below.
+            final float root = (float) Math.sqrt(b * b - a * c);
+            final float far = (root - b) * inverseA;
+            final float near = (-root - b) * inverseA;
+            distances[i] = far >= 0f ? Math.max(near, 0f) : NO_HIT;
+        }
+    }
+
+    /**
+     * Writes the distance along ray to the first of count boxes, from
+     * (minX[i], minY[i], minZ[i]) to (maxX[i], maxY[i], maxZ[i]), into
+     * distances[i].
+     */
+    public static void intersectBoxes(float[] ray, int rayOffset,
+                                      float[] minX, float[] minY, float[] minZ,
+                                      float[] maxX, float[] maxY, float[] maxZ,
+                                      int count, float[] distances) {
+        final float ox = ray[rayOffset];
+        final float oy = ray[rayOffset + 1];
+        final float oz = ray[rayOffset + 2];
+        // A component of 0 would give 0 * infinity = NaN on the slab's
+        // plane; a tiny one gives huge but ordered distances instead.
+        final float inverseX = 1f / nonZero(ray[rayOffset + 3]);
+        final float inverseY = 1f / nonZero(ray[rayOffset + 4]);
+        final float inverseZ = 1f / nonZero(ray[rayOffset + 5]);
+
+        for (int i = 0; i < count; i++) {
+            // Where the ray enters and leaves each pair of slabs.
+            final float x1 = (minX[i] - ox) * inverseX;
+            final float x2 = (maxX[i] - ox) * inverseX;
+            final float y1 = (minY[i] - oy) * inverseY;
+            final float y2 = (maxY[i] - oy) * inverseY;
+            final float z1 = (minZ[i] - oz) * inverseZ;
+            final float z2 = (maxZ[i] - oz) * inverseZ;
+            final float enter = Math.max(Math.max(Math.min(x1, x2), Math.min(y1, y2)),
+                    Math.max(Math.min(z1, z2), 0f));
+            final float exit = Math.min(Math.min(Math.max(x1, x2), Math.max(y1, y2)),
+                    Math.max(z1, z2));
+            distances[i] = enter <= exit ? enter : NO_HIT;
+        }
+    }
+
+    private static float nonZero(float value) {
+        return value != 0f ? value : Float.MIN_NORMAL;
+    }
+
+    /**
+     * Copies the index and distance of every hit among the first count
+     * distances no further than maxDistance into hitIndices and
+     * hitDistances, in index order, and returns how many there were.
+     * maxDistance may be Float.POSITIVE_INFINITY for no limit.
+     */
+    public static int collectHits(float[] distances, int count, float maxDistance,
+                                  int[] hitIndices, float[] hitDistances) {
+        int hitCount = 0;
+        for (int i = 0; i < count; i++) {
+            if (distances[i] != NO_HIT && distances[i] <= maxDistance) {
+                hitIndices[hitCount] = i;
+                hitDistances[hitCount] = distances[i];
+                hitCount++;
+            }
+        }
+        return hitCount;
+    }
+
+    /**
+     * Returns the index of the nearest hit among the first count distances,
+     * or -1 if nothing was hit.
+     */
+    public static int findNearest(float[] distances, int count) {
+        int nearest = -1;
+        float nearestDistance = NO_HIT;
+        for (int i = 0; i < count; i++) {
+            if (distances[i] < nearestDistance) {
+                nearestDistance = distances[i];
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+}
@@ -0,0 +1,88 @@
+package com.airhockey.android.util;
+
+/**
+ * Seeded two-dimensional simplex noise, after Stefan Gustavson's
+ * "Simplex noise demystified". Values are roughly in -1 to 1 and vary
+ * smoothly over about one unit.
+ *
+ * The permutation table is shuffled from the seed, so the same seed always
+ * gives the same noise. Instances never change after construction and may
+ * be shared between threads.
+ */
+public class SimplexNoise {
+    // Skew and unskew factors for two dimensions: (sqrt(3) - 1) / 2 and
+    // (3 - sqrt(3)) / 6.
+    private static final float F2 = 0.36602540378f;
+    private static final float G2 = 0.21132486540f;
+
+    private static final float[] GRADIENT_X = {1f, -1f, 1f, -1f, 1f, -1f, 0f, 0f};
+    private static final float[] GRADIENT_Y = {1f, 1f, -1f, -1f, 0f, 0f, 1f, -1f};
+
+    // Scales the sum of the three corners to about -1 to 1.
+    private static final float SCALE = 70f;
+
+    // Two copies of a permutation of 0 to 255, so that lookups of a lookup
+    // don't need to wrap.
+    private final short[] permutation = new short[512];
+
+    public SimplexNoise(long seed) {
+        for (int i = 0; i < 256; i++) {
+            permutation[i] = (short) i;
+        }
+        final FastRandom random = new FastRandom(seed);
+        for (int i = 255; i > 0; i--) {
+            final int j = (int) ((random.nextLong() >>> 1) % (i + 1));
+            final short swap = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = swap;
+        }
+        System.arraycopy(permutation, 0, permutation, 256, 256);
+    }
+
+    public float noise(float x, float y) {
+        // Find the simplex cell: skew to a square grid, then work out which
+        // of the cell's two triangles holds the point.
+        final float s = (x + y) * F2;
+        final int i = fastFloor(x + s);
+        final int j = fastFloor(y + s);
+        final float t = (i + j) * G2;
+        final float x0 = x - (i - t);
+        final float y0 = y - (j - t);
+
+        final int i1;
+        final int j1;
+        if (x0 > y0) {
+            i1 = 1;
+            j1 = 0;
+        } else {
+            i1 = 0;
+            j1 = 1;
+        }
+        final float x1 = x0 - i1 + G2;
+        final float y1 = y0 - j1 + G2;
+        final float x2 = x0 - 1f + 2f * G2;
+        final float y2 = y0 - 1f + 2f * G2;
+
+        final int ii = i & 255;
+        final int jj = j & 255;
+        final float n0 = corner(permutation[ii + permutation[jj]], x0, y0);
+        final float n1 = corner(permutation[ii + i1 + permutation[jj + j1]], x1, y1);
+        final float n2 = corner(permutation[ii + 1 + permutation[jj + 1]], x2, y2);
+        return SCALE * (n0 + n1 + n2);
+    }
+
+    private static float corner(int hash, float x, float y) {
+        float t = 0.5f - x * x - y * y;
+        if (t < 0f) {
+            return 0f;
+        }
+        t *= t;
+        final int gradient = hash & 7;
+        return t * t * (GRADIENT_X[gradient] * x + GRADIENT_Y[gradient] * y);
+    }
+
+    private static int fastFloor(float value) {
+        final int truncated = (int) value;
+        return value < truncated ? truncated - 1 : truncated;
+    }
+}
@@ -33,12 +33,12 @@ public class TextureHelper {
             if (LoggerConfig.ON) {
                 Log.w(TAG, "Resource ID " + resourceId + " could not be decoded.");
             }
-            glDeleteTextures(1, textureObjectIds, 0);
+            GlState.deleteTexture(textureObjectIds[0]);
             return 0;
         }
 
         // tell OpenGL that future texture calls should be applied to this texture object
-        glBindTexture(GL_TEXTURE_2D, textureObjectIds[0]);
+        GlState.bindTexture(GL_TEXTURE_2D, textureObjectIds[0]);
         // set filters
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
         glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
@@ -51,8 +51,9 @@ public class TextureHelper {
 
         glGenerateMipmap(GL_TEXTURE_2D);
 
-        glBindTexture(GL_TEXTURE_2D, 0); /*unbind from the texture so that we don’t accidentally make
-                                           further changes to this texture with other texture calls*/
+        /*unbind from the texture so that we don’t accidentally make
+          further changes to this texture with other texture calls*/
+        GlState.bindTexture(GL_TEXTURE_2D, 0);
 
         return textureObjectIds[0];
     }
@@ -82,12 +83,12 @@ public class TextureHelper {
                     Log.w(TAG, "Resource ID " + cubeResources[i]
                             + " could not be decoded.");
                 }
-                glDeleteTextures(1, textureObjectIds, 0);
+                GlState.deleteTexture(textureObjectIds[0]);
                 return 0;
             }
         }
         Log.d("Before Error", "");
-        glBindTexture(GL_TEXTURE_CUBE_MAP, textureObjectIds[0]);
+        GlState.bindTexture(GL_TEXTURE_CUBE_MAP, textureObjectIds[0]);
 
         glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
         glTexParameteri(GL_TEXTURE_CUBE_MAP, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
@@ -100,7 +101,7 @@ public class TextureHelper {
         texImage2D(GL_TEXTURE_CUBE_MAP_NEGATIVE_Z, 0, cubeBitmaps[4], 0);
         texImage2D(GL_TEXTURE_CUBE_MAP_POSITIVE_Z, 0, cubeBitmaps[5], 0);
 
-        glBindTexture(GL_TEXTURE_2D, 0);
+        GlState.bindTexture(GL_TEXTURE_CUBE_MAP, 0);
         for (Bitmap bitmap : cubeBitmaps) {
             bitmap.recycle();
         }
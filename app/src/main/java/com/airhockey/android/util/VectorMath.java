@@ -0,0 +1,154 @@
+package com.airhockey.android.util;
+
+/**
+ * The operations of Geometry on plain float arrays, for code that runs
+ * often enough that allocating a Point or Vector per step matters.
+ *
+ * Vectors and points are three consecutive floats at an offset. Rays are
+ * a point followed by a vector, planes a point followed by a normal, and
+ * spheres a center followed by a radius. Results are written to an out
+ * array, which may be one of the inputs. Each method does the same float
+ * operations in the same order as its Geometry counterpart, so the results
+ * are identical.
+ */
+public class VectorMath {
+    /** Floats per vector or point. */
+    public static final int VECTOR_COMPONENT_COUNT = 3;
+    /** Floats per ray: a point, then a vector. */
+    public static final int RAY_COMPONENT_COUNT = 6;
+    /** Floats per plane: a point, then a normal. */
+    public static final int PLANE_COMPONENT_COUNT = 6;
+    /** Floats per sphere: a center, then a radius. */
+    public static final int SPHERE_COMPONENT_COUNT = 4;
+
+    private VectorMath() {
+    }
+
+    public static void set(float[] out, int outOffset, float x, float y, float z) {
+        out[outOffset] = x;
+        out[outOffset + 1] = y;
+        out[outOffset + 2] = z;
+    }
+
+    /** Point.translate: out = point + vector. */
+    public static void translate(float[] out, int outOffset, float[] point, int pointOffset,
+                                 float[] vector, int vectorOffset) {
+        out[outOffset] = point[pointOffset] + vector[vectorOffset];
+        out[outOffset + 1] = point[pointOffset + 1] + vector[vectorOffset + 1];
+        out[outOffset + 2] = point[pointOffset + 2] + vector[vectorOffset + 2];
+    }
+
+    /** Point.translateY. */
+    public static void translateY(float[] out, int outOffset, float[] point, int pointOffset,
+                                  float distance) {
+        out[outOffset] = point[pointOffset];
+        out[outOffset + 1] = point[pointOffset + 1] + distance;
+        out[outOffset + 2] = point[pointOffset + 2];
+    }
+
+    /** Geometry.vectorBetween: out = to - from. */
+    public static void vectorBetween(float[] out, int outOffset, float[] from, int fromOffset,
+                                     float[] to, int toOffset) {
+        out[outOffset] = to[toOffset] - from[fromOffset];
+        out[outOffset + 1] = to[toOffset + 1] - from[fromOffset + 1];
+        out[outOffset + 2] = to[toOffset + 2] - from[fromOffset + 2];
+    }
+
+    public static float length(float[] vector, int offset) {
+        final float x = vector[offset];
+        final float y = vector[offset + 1];
+        final float z = vector[offset + 2];
+        return (float) Math.sqrt(x * x + y * y + z * z);
+    }
+
+    public static float dotProduct(float[] lhs, int lhsOffset, float[] rhs, int rhsOffset) {
+        return lhs[lhsOffset] * rhs[rhsOffset]
+                + lhs[lhsOffset + 1] * rhs[rhsOffset + 1]
+                + lhs[lhsOffset + 2] * rhs[rhsOffset + 2];
+    }
+
+    /** out = lhs x rhs. */
+    public static void crossProduct(float[] out, int outOffset, float[] lhs, int lhsOffset,
+                                    float[] rhs, int rhsOffset) {
+        final float x = lhs[lhsOffset];
+        final float y = lhs[lhsOffset + 1];
+        final float z = lhs[lhsOffset + 2];
+        final float otherX = rhs[rhsOffset];
+        final float otherY = rhs[rhsOffset + 1];
+        final float otherZ = rhs[rhsOffset + 2];
+        out[outOffset] = (y * otherZ) - (z * otherY);
+        out[outOffset + 1] = (z * otherX) - (x * otherZ);
+        out[outOffset + 2] = (x * otherY) - (y * otherX);
+    }
+
+    public static void scale(float[] out, int outOffset, float[] vector, int vectorOffset,
+                             float f) {
+        out[outOffset] = vector[vectorOffset] * f;
+        out[outOffset + 1] = vector[vectorOffset + 1] * f;
+        out[outOffset + 2] = vector[vectorOffset + 2] * f;
+    }
+
+    public static void normalize(float[] out, int outOffset, float[] vector, int vectorOffset) {
+        scale(out, outOffset, vector, vectorOffset, 1f / length(vector, vectorOffset));
+    }
+
+    /**
+     * Geometry.intersectionPoint: writes where the line through ray meets
+     * plane. The result is not finite if they are parallel.
+     */
+    public static void intersectionPoint(float[] out, int outOffset, float[] ray, int rayOffset,
+                                         float[] plane, int planeOffset) {
+        final float rayX = ray[rayOffset];
+        final float rayY = ray[rayOffset + 1];
+        final float rayZ = ray[rayOffset + 2];
+        final float rayToPlaneX = plane[planeOffset] - rayX;
+        final float rayToPlaneY = plane[planeOffset + 1] - rayY;
+        final float rayToPlaneZ = plane[planeOffset + 2] - rayZ;
+        final float normalX = plane[planeOffset + 3];
+        final float normalY = plane[planeOffset + 4];
+        final float normalZ = plane[planeOffset + 5];
+        final float scaleFactor =
+                (rayToPlaneX * normalX + rayToPlaneY * normalY + rayToPlaneZ * normalZ)
+                / dotProduct(ray, rayOffset + 3, plane, planeOffset + 3);
+        out[outOffset] = rayX + ray[rayOffset + 3] * scaleFactor;
+        out[outOffset + 1] = rayY + ray[rayOffset + 4] * scaleFactor;
+        out[outOffset + 2] = rayZ + ray[rayOffset + 5] * scaleFactor;
+    }
+
+    /** Geometry.intersects: true if the line through ray passes through sphere. */
+    public static boolean intersects(float[] sphere, int sphereOffset, float[] ray,
+                                     int rayOffset) {
+        return distanceBetween(sphere, sphereOffset, ray, rayOffset) < sphere[sphereOffset + 3];
+    }
+
+    /** Geometry.distanceBetween: the distance from point to the line through ray. */
+    public static float distanceBetween(float[] point, int pointOffset, float[] ray,
+                                        int rayOffset) {
+        final float x = point[pointOffset];
+        final float y = point[pointOffset + 1];
+        final float z = point[pointOffset + 2];
+        final float rayX = ray[rayOffset];
+        final float rayY = ray[rayOffset + 1];
+        final float rayZ = ray[rayOffset + 2];
+        final float vectorX = ray[rayOffset + 3];
+        final float vectorY = ray[rayOffset + 4];
+        final float vectorZ = ray[rayOffset + 5];
+
+        final float p1X = x - rayX;
+        final float p1Y = y - rayY;
+        final float p1Z = z - rayZ;
+        final float p2X = x - (rayX + vectorX);
+        final float p2Y = y - (rayY + vectorY);
+        final float p2Z = z - (rayZ + vectorZ);
+
+        // Twice the area of the triangle between the point and two points
+        // on the ray, divided by its base, as in Geometry.
+        final float crossX = (p1Y * p2Z) - (p1Z * p2Y);
+        final float crossY = (p1Z * p2X) - (p1X * p2Z);
+        final float crossZ = (p1X * p2Y) - (p1Y * p2X);
+        final float areaOfTriangleTimesTwo =
+                (float) Math.sqrt(crossX * crossX + crossY * crossY + crossZ * crossZ);
+        final float lengthOfBase = length(ray, rayOffset + 3);
+        return areaOfTriangleTimesTwo / lengthOfBase;
+    }
+}
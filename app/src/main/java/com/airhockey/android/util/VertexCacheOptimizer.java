@@ -0,0 +1,208 @@
+package com.airhockey.android.util;
+
+import java.util.Arrays;
+
+/**
+ * Reorders triangle lists for the GPU's post-transform vertex cache, and
+ * measures how well an ordering uses it.
+ *
+ * The reordering is Tom Forsyth's linear-speed vertex cache optimisation:
+ * triangles are emitted greedily, always picking the one whose vertices
+ * score best on a simulated LRU cache and on how few triangles still use
+ * them. It works for any mesh; regular grids can do as well with
+ * TerrainIndexBuilder's column-blocked ordering at a fraction of the cost.
+ */
+public class VertexCacheOptimizer {
+    /**
+     * A conservative post-transform cache size for the FIFO simulation.
+     * Mobile GPUs range from about 16 to 32 entries.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 16;
+
+    // The cache simulated while optimizing, and the scoring constants from
+    // Forsyth's article.
+    private static final int LRU_CACHE_SIZE = 32;
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float LAST_TRIANGLE_SCORE = 0.75f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+
+    /**
+     * Returns the average cache miss ratio of a triangle list: vertices
+     * transformed per triangle drawn, on a FIFO cache of cacheSize entries.
+     * 0.5 is the best a large grid can do and 3 is the worst any list can.
+     */
+    public static float averageCacheMissRatio(int[] indices, int cacheSize) {
+        return averageCacheMissRatio(indices, 0, indices.length, cacheSize);
+    }
+
+    public static float averageCacheMissRatio(int[] indices, int offset, int count,
+                                              int cacheSize) {
+        if (count < 3) {
+            return 0f;
+        }
+        final int[] fifo = new int[cacheSize];
+        Arrays.fill(fifo, -1);
+        int next = 0;
+        int misses = 0;
+        for (int i = offset; i < offset + count; i++) {
+            final int index = indices[i];
+            boolean hit = false;
+            for (int j = 0; j < cacheSize; j++) {
+                if (fifo[j] == index) {
+                    hit = true;
+                    break;
+                }
+            }
+            if (!hit) {
+                fifo[next] = index;
+                next = (next + 1) % cacheSize;
+                misses++;
+            }
+        }
+        return (float) misses / (float) (count / 3);
+    }
+
+    /**
+     * Returns the triangles of indices in a cache-friendly order. Every
+     * index must be less than vertexCount.
+     */
+    public static int[] optimize(int[] indices, int vertexCount) {
+        final int triangleCount = indices.length / 3;
+
+        // Triangles using each vertex, packed into one array.
+        final int[] remaining = new int[vertexCount];
+        for (int i = 0; i < triangleCount * 3; i++) {
+            remaining[indices[i]]++;
+        }
+        final int[] firstTriangle = new int[vertexCount + 1];
+        for (int v = 0; v < vertexCount; v++) {
+            firstTriangle[v + 1] = firstTriangle[v] + remaining[v];
+        }
+        final int[] vertexTriangles = new int[triangleCount * 3];
+        final int[] filled = new int[vertexCount];
+        for (int t = 0; t < triangleCount; t++) {
+            for (int k = 0; k < 3; k++) {
+                final int v = indices[t * 3 + k];
+                vertexTriangles[firstTriangle[v] + filled[v]++] = t;
+            }
+        }
+
+        final int[] cachePosition = new int[vertexCount];
+        Arrays.fill(cachePosition, -1);
+        final float[] vertexScore = new float[vertexCount];
+        for (int v = 0; v < vertexCount; v++) {
+            vertexScore[v] = scoreVertex(-1, remaining[v]);
+        }
+        final float[] triangleScore = new float[triangleCount];
+        final boolean[] added = new boolean[triangleCount];
+        for (int t = 0; t < triangleCount; t++) {
+            triangleScore[t] = vertexScore[indices[t * 3]]
+                    + vertexScore[indices[t * 3 + 1]]
+                    + vertexScore[indices[t * 3 + 2]];
+        }
+
+        final int[] output = new int[triangleCount * 3];
+        int[] cache = new int[LRU_CACHE_SIZE + 3];
+        int[] newCache = new int[LRU_CACHE_SIZE + 3];
+        int cacheCount = 0;
+        int scanStart = 0;
+        int bestTriangle = -1;
+
+        for (int emitted = 0; emitted < triangleCount; emitted++) {
+            if (bestTriangle < 0) {
+                // Nothing in the cache is connected to anything left, so
+                // start again from the next unused triangle.
+                while (added[scanStart]) {
+                    scanStart++;
+                }
+                bestTriangle = scanStart;
+            }
+
+            final int t = bestTriangle;
+            added[t] = true;
+            int newCount = 0;
+            for (int k = 0; k < 3; k++) {
+                final int v = indices[t * 3 + k];
+                output[emitted * 3 + k] = v;
+                newCache[newCount++] = v;
+
+                // Take the triangle off the vertex's list of remaining ones.
+                final int first = firstTriangle[v];
+                final int last = first + remaining[v] - 1;
+                for (int j = first; j <= last; j++) {
+                    if (vertexTriangles[j] == t) {
+                        vertexTriangles[j] = vertexTriangles[last];
+                        vertexTriangles[last] = t;
+                        break;
+                    }
+                }
+                remaining[v]--;
+            }
+
+            // The triangle's vertices move to the front of the cache.
+            for (int i = 0; i < cacheCount; i++) {
+                final int v = cache[i];
+                if (v != newCache[0] && v != newCache[1] && v != newCache[2]) {
+                    newCache[newCount++] = v;
+                }
+            }
+            final int[] swap = cache;
+            cache = newCache;
+            newCache = swap;
+            cacheCount = newCount;
+
+            // Rescore everything in the cache, including anything that just
+            // fell out of it, along with the triangles that use it.
+            for (int i = 0; i < cacheCount; i++) {
+                final int v = cache[i];
+                cachePosition[v] = i < LRU_CACHE_SIZE ? i : -1;
+                final float score = scoreVertex(cachePosition[v], remaining[v]);
+                final float delta = score - vertexScore[v];
+                vertexScore[v] = score;
+                for (int j = firstTriangle[v]; j < firstTriangle[v] + remaining[v]; j++) {
+                    triangleScore[vertexTriangles[j]] += delta;
+                }
+            }
+            if (cacheCount > LRU_CACHE_SIZE) {
+                cacheCount = LRU_CACHE_SIZE;
+            }
+
+            bestTriangle = -1;
+            float bestScore = -1f;
+            for (int i = 0; i < cacheCount; i++) {
+                final int v = cache[i];
+                for (int j = firstTriangle[v]; j < firstTriangle[v] + remaining[v]; j++) {
+                    final int candidate = vertexTriangles[j];
+                    if (triangleScore[candidate] > bestScore) {
+                        bestScore = triangleScore[candidate];
+                        bestTriangle = candidate;
+                    }
+                }
+            }
+        }
+        return output;
+    }
+
+    private static float scoreVertex(int cachePosition, int remainingTriangles) {
+        if (remainingTriangles == 0) {
+            return -1f;
+        }
+        float score = 0f;
+        if (cachePosition >= 0) {
+            if (cachePosition < 3) {
+                // Used by the last triangle; a fixed score so that we don't
+                // favour one triangle of a strip over the next.
+                score = LAST_TRIANGLE_SCORE;
+            } else {
+                final float scaler = 1f / (LRU_CACHE_SIZE - 3);
+                score = (float) Math.pow(1f - (cachePosition - 3) * scaler,
+                        CACHE_DECAY_POWER);
+            }
+        }
+        // Favour vertices with few triangles left, to finish them off.
+        score += VALENCE_BOOST_SCALE
+                * (float) Math.pow(remainingTriangles, -VALENCE_BOOST_POWER);
+        return score;
+    }
+}
@@ -0,0 +1,70 @@
+package com.airhockey.android.objects;
+
+import com.airhockey.android.util.FastRandom;
+import com.airhockey.android.util.Geometry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConeDirectionSamplerTest {
+    private static final int SAMPLES = 10000;
+
+    @Test
+    public void samplesStayInsideCone() throws Exception {
+        final Geometry.Vector direction = new Geometry.Vector(0f, 0.5f, 0f);
+        final ConeDirectionSampler sampler =
+                new ConeDirectionSampler(direction, 10f, 1f, new FastRandom(42));
+        final float[] out = new float[3];
+        final double cosHalfAngle = Math.cos(Math.toRadians(5.0));
+
+        for (int i = 0; i < SAMPLES; i++) {
+            sampler.sample(out, 0);
+            final float length = (float) Math.sqrt(
+                    out[0] * out[0] + out[1] * out[1] + out[2] * out[2]);
+            assertTrue(length >= 0.5f * 0.9999f);
+            assertTrue(length <= 1.0f * 1.0001f);
+            assertTrue(out[1] / length >= cosHalfAngle - 1e-5);
+        }
+    }
+
+    @Test
+    public void samplesStayInsideBounds() throws Exception {
+        final Geometry.Vector direction = new Geometry.Vector(1f, 2f, -3f);
+        final ConeDirectionSampler sampler =
+                new ConeDirectionSampler(direction, 40f, 0.5f, new FastRandom(3));
+        final float[] bounds = new float[6];
+        sampler.getBounds(bounds, 0);
+        final float[] out = new float[3];
+
+        for (int i = 0; i < SAMPLES; i++) {
+            sampler.sample(out, 0);
+            for (int axis = 0; axis < 3; axis++) {
+                assertTrue(out[axis] >= bounds[axis] - 1e-5f);
+                assertTrue(out[axis] <= bounds[axis + 3] + 1e-5f);
+            }
+        }
+    }
+
+    @Test
+    public void sameSeedGivesSameSamples() throws Exception {
+        final Geometry.Vector direction = new Geometry.Vector(1f, 2f, -3f);
+        final ConeDirectionSampler first =
+                new ConeDirectionSampler(direction, 20f, 0.5f, new FastRandom(7));
+        final ConeDirectionSampler second =
+                new ConeDirectionSampler(direction, 20f, 0.5f, new FastRandom(7));
+        final float[] a = new float[3];
+        final float[] b = new float[3];
+
+        for (int i = 0; i < 100; i++) {
+            first.sample(a, 0);
+            second.sample(b, 0);
+            assertArrayEquals(a, b, 0f);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroDirectionIsRejected() throws Exception {
+        new ConeDirectionSampler(new Geometry.Vector(0f, 0f, 0f), 10f, 0f, new FastRandom(1));
+    }
+}
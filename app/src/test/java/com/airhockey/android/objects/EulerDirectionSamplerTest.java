@@ -0,0 +1,55 @@
+package com.airhockey.android.objects;
+
+import com.airhockey.android.util.FastRandom;
+import com.airhockey.android.util.Geometry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class EulerDirectionSamplerTest {
+    private static final int SAMPLES = 10000;
+
+    @Test
+    public void samplesStayInsideBounds() throws Exception {
+        final float[] bounds = new float[6];
+        final float[] out = new float[3];
+        final Geometry.Vector[] directions = {
+                new Geometry.Vector(0f, 0.5f, 0f), new Geometry.Vector(1f, 2f, -3f)};
+        for (Geometry.Vector direction : directions) {
+            for (float variance : new float[]{5f, 40f, 180f}) {
+                final EulerDirectionSampler sampler =
+                        new EulerDirectionSampler(direction, variance, 0.5f, new FastRandom(3));
+                sampler.getBounds(bounds, 0);
+                final float speed = direction.length();
+
+                for (int i = 0; i < SAMPLES; i++) {
+                    sampler.sample(out, 0);
+                    final float length = (float) Math.sqrt(
+                            out[0] * out[0] + out[1] * out[1] + out[2] * out[2]);
+                    assertTrue(length >= speed * 0.9999f);
+                    assertTrue(length <= speed * 1.5f * 1.0001f);
+                    for (int axis = 0; axis < 3; axis++) {
+                        assertTrue(out[axis] >= bounds[axis] - 1e-5f);
+                        assertTrue(out[axis] <= bounds[axis + 3] + 1e-5f);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void noVarianceKeepsDirection() throws Exception {
+        final Geometry.Vector direction = new Geometry.Vector(1f, 2f, -3f);
+        final EulerDirectionSampler sampler =
+                new EulerDirectionSampler(direction, 0f, 0f, new FastRandom(5));
+        final float[] out = new float[3];
+        sampler.sample(out, 0);
+        assertArrayEquals(new float[]{1f, 2f, -3f}, out, 1e-6f);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroDirectionIsRejected() throws Exception {
+        new EulerDirectionSampler(new Geometry.Vector(0f, 0f, 0f), 10f, 0f, new FastRandom(1));
+    }
+}
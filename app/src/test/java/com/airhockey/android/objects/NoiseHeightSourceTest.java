@@ -0,0 +1,70 @@
+package com.airhockey.android.objects;
+
+import com.airhockey.android.util.SimplexNoise;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class NoiseHeightSourceTest {
+    @Test
+    public void sameSeedGivesSameHeightsWhateverTheBands() throws Exception {
+        final int width = 97;
+        final int height = 70;
+        final float[] whole = read(new NoiseHeightSource(3L, width, height, 40f), 0, height);
+
+        final NoiseHeightSource source = new NoiseHeightSource(3L, width, height, 40f);
+        final float[] banded = new float[width * height];
+        source.readRows(banded, 0, 1);
+        source.readRows(banded, width, 45);
+        source.readRows(banded, 46 * width, height - 46);
+        assertArrayEquals(whole, banded, 0f);
+
+        float min = 1f;
+        float max = 0f;
+        for (float value : whole) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        assertTrue(min >= 0f && max <= 1f);
+        // Hills and valleys, not a flat plain.
+        assertTrue(max - min > 0.4f);
+
+        final float[] otherSeed = read(new NoiseHeightSource(4L, width, height, 40f), 0, height);
+        assertFalse(Arrays.equals(whole, otherSeed));
+    }
+
+    @Test
+    public void serialMatchesParallel() throws Exception {
+        final int width = 65;
+        final int height = 80;
+        final float[] parallel = read(new NoiseHeightSource(new SimplexNoise(5L), width, height,
+                -30, 12, 25f, 4, 0.5f, true), 0, height);
+        final float[] serial = read(new NoiseHeightSource(new SimplexNoise(5L), width, height,
+                -30, 12, 25f, 4, 0.5f, false), 0, height);
+        assertArrayEquals(parallel, serial, 0f);
+    }
+
+    @Test
+    public void neighbouringTilesShareEdges() throws Exception {
+        final NoiseTileSource tiles = new NoiseTileSource(9L, 30f);
+        final int samples = 33;
+        final float[] tile = read(tiles.openTile(-1, 2, samples), 0, samples);
+        final float[] right = read(tiles.openTile(0, 2, samples), 0, samples);
+        final float[] below = read(tiles.openTile(-1, 3, samples), 0, samples);
+
+        for (int i = 0; i < samples; i++) {
+            assertEquals(tile[i * samples + samples - 1], right[i * samples], 0f);
+            assertEquals(tile[(samples - 1) * samples + i], below[i], 0f);
+        }
+    }
+
+    private static float[] read(HeightSource source, int offset, int rowCount) throws Exception {
+        final float[] heights = new float[offset + rowCount * source.getWidth()];
+        source.readRows(heights, offset, rowCount);
+        source.close();
+        return heights;
+    }
+}
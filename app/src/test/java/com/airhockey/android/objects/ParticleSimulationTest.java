@@ -0,0 +1,81 @@
+package com.airhockey.android.objects;
+
+import com.airhockey.android.util.HeightField;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ParticleSimulationTest {
+    private static final float STEP = 1f / 60f;
+
+    @Test
+    public void freeFallMatchesShaderGravity() throws Exception {
+        final ParticleSimulation simulation = new ParticleSimulation(1, null);
+        simulation.setParticle(0, 0f, 0f, 0f, 0.5f, 1f, 0f);
+
+        for (int i = 0; i < 120; i++) {
+            simulation.step(0, 1, STEP);
+        }
+
+        // The vertex shader computes y = vy * t - t * t / 8.
+        final float t = 2f;
+        assertEquals(0.5f * t, simulation.getPositionX(0), 1e-4f);
+        assertEquals(t - t * t / 8f, simulation.getPositionY(0), 0.01f);
+    }
+
+    @Test
+    public void particlesStayAboveTerrain() throws Exception {
+        final HeightField flat = new HeightField(new float[]{1f, 1f, 1f, 1f}, 2, 2)
+                .scaled(100f, 10f, 100f);
+        final ParticleSimulation simulation = new ParticleSimulation(3, flat);
+        simulation.setParticle(0, 0f, 11f, 0f, 0f, -5f, 0f);
+        simulation.setParticle(1, 10f, 10f, -20f, 1f, 0f, 1f);
+        simulation.setParticle(2, -30f, 20f, 40f, 0f, 0f, 0f);
+
+        for (int i = 0; i < 600; i++) {
+            simulation.step(0, 3, STEP);
+            for (int p = 0; p < 3; p++) {
+                assertTrue(simulation.getPositionY(p) >= 10f);
+            }
+        }
+        assertTrue(simulation.getVelocityY(0) < 1f);
+    }
+
+    @Test
+    public void parallelStepMatchesSerialStep() throws Exception {
+        final int count = 50000;
+        final HeightField terrain = new HeightField(
+                new float[]{0f, 0.2f, 0.4f, 0.1f, 0.5f, 0.3f, 0.2f, 0.0f, 0.6f}, 3, 3)
+                .scaled(100f, 10f, 100f);
+        final ParticleSimulation whole = new ParticleSimulation(count, terrain);
+        final ParticleSimulation pieces = new ParticleSimulation(count, terrain);
+        for (int i = 0; i < count; i++) {
+            final float x = (i % 100) - 50f;
+            final float z = (i / 500) - 50f;
+            whole.setParticle(i, x, 5f, z, 0.1f, 1f, -0.2f);
+            pieces.setParticle(i, x, 5f, z, 0.1f, 1f, -0.2f);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            whole.step(0, count, STEP);
+            // Small ranges stay on the calling thread.
+            for (int start = 0; start < count; start += 1000) {
+                pieces.step(start, start + 1000, STEP);
+            }
+        }
+
+        assertArrayEquals(whole.getInterleavedPositions(),
+                pieces.getInterleavedPositions(), 0f);
+    }
+
+    @Test
+    public void heightFieldInterpolatesBetweenSamples() throws Exception {
+        final HeightField field = new HeightField(new float[]{0f, 1f, 2f, 3f}, 2, 2);
+        assertEquals(0f, field.heightAt(-0.5f, -0.5f), 0f);
+        assertEquals(3f, field.heightAt(0.5f, 0.5f), 0f);
+        assertEquals(1.5f, field.heightAt(0f, 0f), 1e-6f);
+        // Clamped outside the grid.
+        assertEquals(1f, field.heightAt(5f, -5f), 0f);
+    }
+}
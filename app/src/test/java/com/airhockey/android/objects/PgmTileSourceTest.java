@@ -0,0 +1,75 @@
+package com.airhockey.android.objects;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+public class PgmTileSourceTest {
+    @Test
+    public void readsTileIncludingItsEdges() throws Exception {
+        final File directory = createTemporaryDirectory();
+        // Negative coordinates, as tiles west and north of the origin have.
+        final int[] samples = {
+                1000, 0, 65535,
+                7, 500, 9,
+                65535, 2, 30000};
+        writePgm(new File(directory, "-1_2.pgm"), 3, samples);
+
+        final HeightSource source = new PgmTileSource(directory).openTile(-1, 2, 3);
+        assertEquals(3, source.getWidth());
+        assertEquals(3, source.getHeight());
+        final float[] heights = new float[9];
+        source.readRows(heights, 0, 3);
+        source.close();
+        for (int i = 0; i < samples.length; i++) {
+            assertEquals(samples[i] / 65535f, heights[i], 1e-6f);
+        }
+    }
+
+    @Test
+    public void tilesWithoutFilesAreFlat() throws Exception {
+        final File directory = createTemporaryDirectory();
+        writePgm(new File(directory, "0_0.pgm"), 2, new int[]{1, 2, 3, 4});
+
+        // Next to an existing tile, and far outside the exported area.
+        final PgmTileSource tiles = new PgmTileSource(directory);
+        for (HeightSource source : new HeightSource[]{
+                tiles.openTile(1, 0, 5), tiles.openTile(-1000, 1000, 5)}) {
+            assertEquals(5, source.getWidth());
+            assertEquals(5, source.getHeight());
+            final float[] heights = new float[2 + 25];
+            heights[0] = heights[1] = 7f;
+            source.readRows(heights, 2, 5);
+            source.close();
+            assertEquals(7f, heights[1], 0f);
+            for (int i = 2; i < heights.length; i++) {
+                assertEquals(0f, heights[i], 0f);
+            }
+        }
+    }
+
+    private static void writePgm(File file, int size, int[] samples) throws Exception {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(("P5\n" + size + " " + size + "\n65535\n").getBytes("US-ASCII"));
+            for (int sample : samples) {
+                out.write(sample >> 8);
+                out.write(sample & 0xFF);
+            }
+        } finally {
+            out.close();
+        }
+        file.deleteOnExit();
+    }
+
+    private static File createTemporaryDirectory() throws Exception {
+        final File directory = File.createTempFile("terrain", "tiles");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        directory.deleteOnExit();
+        return directory;
+    }
+}
@@ -0,0 +1,82 @@
+package com.airhockey.android.objects;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import static org.junit.Assert.*;
+
+public class RawHeightSourceTest {
+    @Test
+    public void readsNonSquareShortsAcrossBands() throws Exception {
+        // Wide enough rows that the grid is read in several bands.
+        final int width = 3000;
+        final int height = 37;
+        final ByteBuffer data = ByteBuffer.allocate(width * height * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < width * height; i++) {
+            data.putShort((short) (i * 7));
+        }
+
+        final RawHeightSource source = new RawHeightSource(channel(data.array()), width, height,
+                RawHeightSource.SAMPLE_UNSIGNED_SHORT, ByteOrder.LITTLE_ENDIAN);
+        final float[] heights = new float[width * height];
+        // Uneven reads, to cross band boundaries.
+        source.readRows(heights, 0, 5);
+        source.readRows(heights, 5 * width, height - 5);
+        source.close();
+
+        for (int i = 0; i < heights.length; i++) {
+            assertEquals(((i * 7) & 0xFFFF) / 65535f, heights[i], 1e-7f);
+        }
+    }
+
+    @Test
+    public void mapsFloatRange() throws Exception {
+        final ByteBuffer data = ByteBuffer.allocate(4 * 4).order(ByteOrder.BIG_ENDIAN);
+        data.putFloat(100f).putFloat(150f).putFloat(200f).putFloat(125f);
+
+        final RawHeightSource source = new RawHeightSource(channel(data.array()), 2, 2,
+                RawHeightSource.SAMPLE_FLOAT, ByteOrder.BIG_ENDIAN, 100f, 200f);
+        final float[] heights = new float[4];
+        source.readRows(heights, 0, 2);
+        assertArrayEquals(new float[]{0f, 0.5f, 1f, 0.25f}, heights, 1e-6f);
+    }
+
+    @Test
+    public void readsSixteenBitPgm() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write("P5\n# exported terrain\n3 2\n1023\n".getBytes("US-ASCII"));
+        final int[] samples = {0, 1, 512, 1023, 300, 7};
+        for (int sample : samples) {
+            out.write(sample >> 8);
+            out.write(sample & 0xFF);
+        }
+
+        final RawHeightSource source = RawHeightSource.openPgm(channel(out.toByteArray()));
+        assertEquals(3, source.getWidth());
+        assertEquals(2, source.getHeight());
+        final float[] heights = new float[6];
+        source.readRows(heights, 0, 2);
+        for (int i = 0; i < samples.length; i++) {
+            assertEquals(samples[i] / 1023f, heights[i], 1e-6f);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnTruncatedData() throws Exception {
+        final RawHeightSource source = new RawHeightSource(channel(new byte[10]), 4, 4,
+                RawHeightSource.SAMPLE_UNSIGNED_BYTE, ByteOrder.BIG_ENDIAN);
+        source.readRows(new float[16], 0, 4);
+    }
+
+    private static ReadableByteChannel channel(byte[] bytes) {
+        return Channels.newChannel(new ByteArrayInputStream(bytes));
+    }
+}
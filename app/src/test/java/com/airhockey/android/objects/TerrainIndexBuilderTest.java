@@ -0,0 +1,66 @@
+package com.airhockey.android.objects;
+
+import com.airhockey.android.util.VertexCacheOptimizer;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TerrainIndexBuilderTest {
+    private static final int SIZE = 64;
+    private static final int CACHE_SIZE = VertexCacheOptimizer.DEFAULT_CACHE_SIZE;
+
+    @Test
+    public void orderingsDrawTheSameTriangles() throws Exception {
+        final int[] expected = sortedTriangles(TerrainIndexBuilder.buildGridIndices(SIZE, SIZE));
+        assertArrayEquals(expected, sortedTriangles(TerrainIndexBuilder.buildGridIndices(
+                SIZE, SIZE, TerrainIndexBuilder.ORDER_COLUMN_BLOCKED)));
+        assertArrayEquals(expected, sortedTriangles(TerrainIndexBuilder.buildGridIndices(
+                SIZE, SIZE, TerrainIndexBuilder.ORDER_FORSYTH)));
+        assertArrayEquals(expected, sortedTriangles(TerrainIndexBuilder.stripToTriangles(
+                TerrainIndexBuilder.buildGridStrip(SIZE, SIZE, 7))));
+    }
+
+    @Test
+    public void cacheFriendlyOrderingsBeatRowMajor() throws Exception {
+        final float rowMajor = VertexCacheOptimizer.averageCacheMissRatio(
+                TerrainIndexBuilder.buildGridIndices(SIZE, SIZE), CACHE_SIZE);
+        final float blocked = VertexCacheOptimizer.averageCacheMissRatio(
+                TerrainIndexBuilder.buildGridIndices(SIZE, SIZE,
+                        TerrainIndexBuilder.ORDER_COLUMN_BLOCKED), CACHE_SIZE);
+        final float forsyth = VertexCacheOptimizer.averageCacheMissRatio(
+                TerrainIndexBuilder.buildGridIndices(SIZE, SIZE,
+                        TerrainIndexBuilder.ORDER_FORSYTH), CACHE_SIZE);
+
+        // Every vertex shaded about twice, against a best case of 0.5.
+        assertTrue("row-major " + rowMajor, rowMajor > 0.95f);
+        assertTrue("blocked " + blocked, blocked < 0.6f);
+        assertTrue("forsyth " + forsyth, forsyth < 0.7f);
+    }
+
+    // Each triangle rotated to start at its smallest index, then sorted, so
+    // that lists can be compared regardless of order but not of winding.
+    private static int[] sortedTriangles(int[] indices) {
+        final long[] keys = new long[indices.length / 3];
+        for (int t = 0; t < keys.length; t++) {
+            int a = indices[t * 3], b = indices[t * 3 + 1], c = indices[t * 3 + 2];
+            while (a > b || a > c) {
+                final int first = a;
+                a = b;
+                b = c;
+                c = first;
+            }
+            keys[t] = ((long) a << 40) | ((long) b << 20) | c;
+        }
+        Arrays.sort(keys);
+        final int[] sorted = new int[indices.length];
+        for (int t = 0; t < keys.length; t++) {
+            sorted[t * 3] = (int) (keys[t] >>> 40);
+            sorted[t * 3 + 1] = (int) ((keys[t] >>> 20) & 0xFFFFF);
+            sorted[t * 3 + 2] = (int) (keys[t] & 0xFFFFF);
+        }
+        return sorted;
+    }
+}
@@ -0,0 +1,100 @@
+package com.airhockey.android.objects;
+
+import org.junit.Test;
+
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.*;
+
+public class TerrainLodIndicesTest {
+    // 255 quads: three 64-quad chunks and a 63-quad one on each side.
+    private static final int SIZE = 256;
+
+    private final TerrainMesh mesh = TerrainMeshBuilder.buildChunkedMesh(
+            new float[SIZE * SIZE], SIZE, SIZE, 64, false);
+    private final TerrainLodIndices lod = new TerrainLodIndices(mesh);
+
+    @Test
+    public void everyVariantCoversTheChunk() throws Exception {
+        assertEquals(7, lod.getLevelCount());
+        for (int chunk = 0; chunk < mesh.chunks.length; chunk++) {
+            final TerrainChunk c = mesh.chunks[chunk];
+            for (int level = 0; level < lod.getLevelCount(); level++) {
+                for (int edgeMask = 0; edgeMask < 16; edgeMask++) {
+                    // Same winding as the full grid, and no gaps or overlaps.
+                    final long area = signedArea(c, lod.getBodyOffset(chunk, level),
+                            lod.getBodyCount(chunk, level))
+                            + signedArea(c, lod.getRingOffset(chunk, level, edgeMask),
+                            lod.getRingCount(chunk, level, edgeMask));
+                    assertEquals(2L * c.rows * c.columns, area);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void stitchedEdgesMatchCoarserNeighbour() throws Exception {
+        // Chunk 0 at level 2 next to chunk 1 (to its right) at level 3.
+        final int[] levels = new int[mesh.chunks.length];
+        levels[0] = 2;
+        levels[1] = 3;
+        final int edgeMask = TerrainLodIndices.getEdgeMask(levels, mesh.chunkRows,
+                mesh.chunkColumns, 0);
+        assertEquals(TerrainLodIndices.EDGE_RIGHT, edgeMask);
+
+        final Set<Integer> fineEdge = edgeRows(0, 2, edgeMask, mesh.chunks[0].columns);
+        final Set<Integer> coarseEdge = edgeRows(1, 3,
+                TerrainLodIndices.getEdgeMask(levels, mesh.chunkRows, mesh.chunkColumns, 1), 0);
+        assertEquals(coarseEdge, fineEdge);
+    }
+
+    @Test
+    public void neighbourLevelsDifferByAtMostOne() throws Exception {
+        final int[] levels = {0, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6, 6};
+        TerrainLodIndices.limitNeighbourLevels(levels, 4, 4);
+        for (int row = 0; row < 4; row++) {
+            for (int col = 0; col < 4; col++) {
+                assertEquals(Math.min(6, row + col), levels[row * 4 + col]);
+            }
+        }
+    }
+
+    // Twice the signed area of the triangles, in grid cells.
+    private long signedArea(TerrainChunk chunk, int offset, int count) {
+        final int vertexColumns = chunk.columns + 1;
+        long area = 0;
+        for (int i = offset; i < offset + count; i += 3) {
+            final int a = lod.indices[i], b = lod.indices[i + 1], c = lod.indices[i + 2];
+            final int ax = a % vertexColumns, az = a / vertexColumns;
+            final int bx = b % vertexColumns, bz = b / vertexColumns;
+            final int cx = c % vertexColumns, cz = c / vertexColumns;
+            final long cross = (long) (bz - az) * (cx - ax) - (long) (bx - ax) * (cz - az);
+            // Where two snapped edges meet, a triangle can be flat in x and z
+            // but still close the gap between the heights.
+            assertTrue("flipped triangle", cross >= 0);
+            area += cross;
+        }
+        return area;
+    }
+
+    // The rows of the vertices a chunk uses along the given column.
+    private Set<Integer> edgeRows(int chunk, int level, int edgeMask, int column) {
+        final int vertexColumns = mesh.chunks[chunk].columns + 1;
+        final Set<Integer> rows = new TreeSet<Integer>();
+        addEdgeRows(rows, lod.getBodyOffset(chunk, level), lod.getBodyCount(chunk, level),
+                vertexColumns, column);
+        addEdgeRows(rows, lod.getRingOffset(chunk, level, edgeMask),
+                lod.getRingCount(chunk, level, edgeMask), vertexColumns, column);
+        return rows;
+    }
+
+    private void addEdgeRows(Set<Integer> rows, int offset, int count,
+                             int vertexColumns, int column) {
+        for (int i = offset; i < offset + count; i++) {
+            if (lod.indices[i] % vertexColumns == column) {
+                rows.add(lod.indices[i] / vertexColumns);
+            }
+        }
+    }
+}
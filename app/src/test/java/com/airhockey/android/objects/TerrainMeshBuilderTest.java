@@ -0,0 +1,214 @@
+package com.airhockey.android.objects;
+
+import com.airhockey.android.util.Geometry;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TerrainMeshBuilderTest {
+    @Test
+    public void matchesGeometryBasedNormals() throws Exception {
+        // Large enough to be split across threads.
+        final int size = 300;
+        final float[] heights = randomHeights(size, size, 1);
+
+        final float[] expected = buildWithGeometry(heights, size, size);
+        final float[] actual = TerrainMeshBuilder.buildVertices(heights, size, size);
+
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("component " + i,
+                    Float.floatToIntBits(expected[i]), Float.floatToIntBits(actual[i]));
+        }
+    }
+
+    @Test
+    public void chunksMatchTheFullGrid() throws Exception {
+        // Not a multiple of the chunk size, so the last chunks are smaller.
+        final int width = 150;
+        final int height = 90;
+        final int chunkSize = 64;
+        final float[] heights = randomHeights(width, height, 2);
+        final float[] grid = TerrainMeshBuilder.buildVertices(heights, width, height);
+
+        final TerrainMesh shortMesh =
+                TerrainMeshBuilder.buildChunkedMesh(heights, width, height, chunkSize, false);
+        final TerrainMesh intMesh =
+                TerrainMeshBuilder.buildChunkedMesh(heights, width, height, chunkSize, true);
+        assertEquals(3, shortMesh.chunkColumns);
+        assertEquals(2, shortMesh.chunkRows);
+        // Four distinct chunk sizes, each with one shared pattern.
+        assertEquals(6 * (64 * 64 + 21 * 64 + 64 * 25 + 21 * 25), shortMesh.shortIndices.length);
+
+        int triangles = 0;
+        for (int i = 0; i < shortMesh.chunks.length; i++) {
+            final TerrainChunk chunk = shortMesh.chunks[i];
+            assertEquals(shortMesh.indexCounts[i], intMesh.indexCounts[i]);
+            for (int j = 0; j < shortMesh.indexCounts[i]; j++) {
+                final int local = shortMesh.shortIndices[shortMesh.indexOffsets[i] + j] & 0xFFFF;
+                final int absolute = intMesh.intIndices[intMesh.indexOffsets[i] + j];
+                assertEquals(chunk.vertexOffset + local, absolute);
+
+                // The chunk's vertex must be the same as the grid's.
+                final int row = chunk.firstRow + local / (chunk.columns + 1);
+                final int col = chunk.firstColumn + local % (chunk.columns + 1);
+                for (int k = 0; k < TerrainMeshBuilder.TOTAL_COMPONENT_COUNT; k++) {
+                    assertEquals(grid[(row * width + col) * 6 + k],
+                            shortMesh.vertices[absolute * 6 + k], 0f);
+                }
+            }
+            assertTrue(chunk.minY <= chunk.maxY);
+            triangles += shortMesh.indexCounts[i] / 3;
+        }
+        assertEquals((width - 1) * (height - 1) * 2, triangles);
+    }
+
+    @Test
+    public void quantizedVerticesDecodeCloseToFloats() throws Exception {
+        final int size = 40;
+        final float[] vertices =
+                TerrainMeshBuilder.buildVertices(randomHeights(size, size, 3), size, size);
+        // Include normals from the lower half, which fold out differently.
+        final float[] normals = {0f, -1f, 0f, 0.6f, -0.8f, 0f, -0.48f, -0.6f, 0.64f};
+        System.arraycopy(normals, 0, vertices, 3, 3);
+        System.arraycopy(normals, 3, vertices, 9, 3);
+        System.arraycopy(normals, 6, vertices, 15, 3);
+
+        final short[] packed = new short[TerrainMeshBuilder.QUANTIZED_COMPONENT_COUNT];
+        for (int i = 0; i < vertices.length; i += TerrainMeshBuilder.TOTAL_COMPONENT_COUNT) {
+            TerrainMeshBuilder.quantizeVertex(vertices, i, packed, 0);
+            // The same steps as the quantized branch of the vertex shader.
+            assertEquals(vertices[i], decode(packed[0]) * 0.5f, 1e-4f);
+            assertEquals(vertices[i + 1], decode(packed[1]), 1e-4f);
+            assertEquals(vertices[i + 2], decode(packed[2]) * 0.5f, 1e-4f);
+            assertEquals(1f, decode(packed[3]), 0f);
+
+            float x = decode(packed[4]);
+            float z = decode(packed[5]);
+            final float y = 1f - Math.abs(x) - Math.abs(z);
+            if (y < 0f) {
+                final float foldedX = (1f - Math.abs(z)) * (x >= 0f ? 1f : -1f);
+                final float foldedZ = (1f - Math.abs(x)) * (z >= 0f ? 1f : -1f);
+                x = foldedX;
+                z = foldedZ;
+            }
+            final float length = (float) Math.sqrt(x * x + y * y + z * z);
+            assertEquals(vertices[i + 3], x / length, 1e-3f);
+            assertEquals(vertices[i + 4], y / length, 1e-3f);
+            assertEquals(vertices[i + 5], z / length, 1e-3f);
+        }
+    }
+
+    @Test
+    public void rebuildRegionMatchesFullBuild() throws Exception {
+        final int width = 150;
+        final int height = 90;
+        final float[] heights = randomHeights(width, height, 5);
+        final TerrainMesh mesh =
+                TerrainMeshBuilder.buildChunkedMesh(heights, width, height, 64, false);
+        for (boolean quantized : new boolean[]{false, true}) {
+            final float[] edited = heights.clone();
+            final ByteBuffer before = quantized
+                    ? TerrainMeshBuilder.quantize(mesh).vertexData
+                    : TerrainMeshBuilder.toBuffers(mesh).vertexData;
+            final ByteBuffer vertexData = ByteBuffer.allocateDirect(before.capacity())
+                    .order(ByteOrder.nativeOrder());
+            vertexData.put(before.duplicate());
+
+            // Across the corner where four chunks meet.
+            for (int row = 60; row < 70; row++) {
+                for (int col = 58; col < 66; col++) {
+                    edited[row * width + col] = 1f - edited[row * width + col];
+                }
+            }
+            final int[] dirtyRanges = new int[mesh.chunks.length * 2];
+            final int rangeCount = TerrainMeshBuilder.rebuildRegion(edited, width, height,
+                    mesh.chunks, 60, 70, 58, 66, vertexData, quantized, dirtyRanges);
+            assertEquals(4, rangeCount);
+
+            final TerrainMesh rebuilt =
+                    TerrainMeshBuilder.buildChunkedMesh(edited, width, height, 64, false);
+            final ByteBuffer expected = quantized
+                    ? TerrainMeshBuilder.quantize(rebuilt).vertexData
+                    : TerrainMeshBuilder.toBuffers(rebuilt).vertexData;
+            for (int i = 0; i < expected.capacity(); i++) {
+                assertEquals("byte " + i, expected.get(i), vertexData.get(i));
+                if (expected.get(i) != before.get(i)) {
+                    boolean uploaded = false;
+                    for (int j = 0; j < rangeCount; j++) {
+                        uploaded |= i >= dirtyRanges[j * 2] && i < dirtyRanges[j * 2 + 1];
+                    }
+                    assertTrue("byte " + i + " changed outside the dirty ranges", uploaded);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void singleChunkDataMatchesChunkedMesh() throws Exception {
+        final int samples = 33;
+        final float[] heights = randomHeights(samples, samples, 8);
+        final TerrainMesh mesh =
+                TerrainMeshBuilder.buildChunkedMesh(heights, samples, samples, samples - 1, false);
+
+        assertEquals(TerrainMeshBuilder.toBuffers(mesh).vertexData,
+                TerrainMeshBuilder.buildVertexData(heights, samples, samples, false));
+        assertEquals(TerrainMeshBuilder.quantize(mesh).vertexData,
+                TerrainMeshBuilder.buildVertexData(heights, samples, samples, true));
+        assertEquals(TerrainMeshBuilder.toBuffers(mesh).indexData,
+                TerrainMeshBuilder.buildIndexData(samples - 1, samples - 1));
+    }
+
+    private static float decode(short value) {
+        return Math.max(value / (float) Short.MAX_VALUE, -1f);
+    }
+
+    private static float[] randomHeights(int width, int height, long seed) {
+        final Random random = new Random(seed);
+        final float[] heights = new float[width * height];
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = random.nextInt(256) / (float) 255;
+        }
+        return heights;
+    }
+
+    // The original per-vertex Heightmap code, for comparison.
+    private static float[] buildWithGeometry(float[] heights, int width, int height) {
+        final float[] vertices = new float[width * height * 6];
+        int offset = 0;
+        for (int row = 0; row < height; row++) {
+            for (int col = 0; col < width; col++) {
+                final Geometry.Point point = getPoint(heights, width, height, row, col);
+                vertices[offset++] = point.x;
+                vertices[offset++] = point.y;
+                vertices[offset++] = point.z;
+
+                final Geometry.Point top = getPoint(heights, width, height, row - 1, col);
+                final Geometry.Point left = getPoint(heights, width, height, row, col - 1);
+                final Geometry.Point right = getPoint(heights, width, height, row, col + 1);
+                final Geometry.Point bottom = getPoint(heights, width, height, row + 1, col);
+                final Geometry.Vector rightToLeft = Geometry.vectorBetween(right, left);
+                final Geometry.Vector topToBottom = Geometry.vectorBetween(top, bottom);
+                final Geometry.Vector normal = rightToLeft.crossProduct(topToBottom).normalize();
+                vertices[offset++] = normal.x;
+                vertices[offset++] = normal.y;
+                vertices[offset++] = normal.z;
+            }
+        }
+        return vertices;
+    }
+
+    private static Geometry.Point getPoint(float[] heights, int width, int height,
+                                           int row, int col) {
+        float x = ((float) col / (float) (width - 1)) - 0.5f;
+        float z = ((float) row / (float) (height - 1)) - 0.5f;
+        row = Math.max(0, Math.min(height - 1, row));
+        col = Math.max(0, Math.min(width - 1, col));
+        return new Geometry.Point(x, heights[row * width + col], z);
+    }
+}
@@ -0,0 +1,67 @@
+package com.airhockey.android.objects;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TerrainMeshCacheTest {
+    @Test
+    public void storedMeshReadsBackUnchanged() throws Exception {
+        final File directory = createTemporaryDirectory();
+        final TerrainMeshCache cache = new TerrainMeshCache(directory);
+        final long key = TerrainMeshCache.computeKey(
+                new ByteArrayInputStream(new byte[] {1, 2, 3}), 64, 1, 0);
+        assertNull(cache.load(key));
+
+        final int size = 100;
+        final float[] heights = new float[size * size];
+        final Random random = new Random(5);
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = random.nextFloat();
+        }
+        final TerrainMesh mesh =
+                TerrainMeshBuilder.buildChunkedMesh(heights, size, size, 32, false);
+        cache.store(key, heights, mesh);
+
+        final TerrainMeshCache.Entry entry = cache.load(key);
+        assertNotNull(entry);
+        assertArrayEquals(heights, entry.heights, 0f);
+        assertEquals(mesh.chunkRows, entry.mesh.chunkRows);
+        assertEquals(mesh.chunkColumns, entry.mesh.chunkColumns);
+        assertFalse(entry.mesh.hasIntIndices());
+        assertArrayEquals(mesh.indexOffsets, entry.mesh.indexOffsets);
+        assertArrayEquals(mesh.indexCounts, entry.mesh.indexCounts);
+        assertEquals(mesh.chunks[5].vertexOffset, entry.mesh.chunks[5].vertexOffset);
+        assertEquals(mesh.chunks[5].maxY, entry.mesh.chunks[5].maxY, 0f);
+
+        final float[] vertices = new float[mesh.vertices.length];
+        entry.mesh.vertexData.order(ByteOrder.nativeOrder()).asFloatBuffer().get(vertices);
+        assertArrayEquals(mesh.vertices, vertices, 0f);
+        final short[] indices = new short[mesh.shortIndices.length];
+        entry.mesh.indexData.order(ByteOrder.nativeOrder()).asShortBuffer().get(indices);
+        assertArrayEquals(mesh.shortIndices, indices);
+    }
+
+    @Test
+    public void keyDependsOnSourceAndParameters() throws Exception {
+        final byte[] source = {4, 5, 6};
+        final long key = TerrainMeshCache.computeKey(new ByteArrayInputStream(source), 64);
+        assertEquals(key, TerrainMeshCache.computeKey(new ByteArrayInputStream(source), 64));
+        assertNotEquals(key, TerrainMeshCache.computeKey(new ByteArrayInputStream(source), 32));
+        assertNotEquals(key, TerrainMeshCache.computeKey(
+                new ByteArrayInputStream(new byte[] {4, 5, 7}), 64));
+    }
+
+    private static File createTemporaryDirectory() throws Exception {
+        final File directory = File.createTempFile("terrain", "cache");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+        directory.deleteOnExit();
+        return directory;
+    }
+}
@@ -0,0 +1,281 @@
+package com.airhockey.android.objects;
+
+import com.airhockey.android.Constants;
+import com.airhockey.android.data.IndexBuffer;
+import com.airhockey.android.data.VertexBuffer;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the streamer's bookkeeping. Builds only run when a test says so,
+ * and no buffers are really created.
+ */
+public class TerrainStreamerTest {
+    private static final int TILE_SIZE = 4;
+    private static final float TILE_WORLD_SIZE = 10f;
+    private static final int TILE_BYTES = (TILE_SIZE + 1) * (TILE_SIZE + 1)
+            * TerrainMeshBuilder.TOTAL_COMPONENT_COUNT * Constants.BYTES_PER_FLOAT;
+
+    private final ManualExecutor workers = new ManualExecutor();
+    private final CountingUploader uploader = new CountingUploader();
+    private final CountingSource source = new CountingSource();
+
+    @Test
+    public void loadsTilesAroundTheCameraNearestFirst() throws Exception {
+        final TerrainStreamer streamer = createStreamer(1, 100 * TILE_BYTES);
+        moveTo(streamer, 1, -1);
+        assertEquals(key(1, -1), (long) source.opened.get(0));
+        assertEquals(9, source.opened.size());
+        assertEquals(9, streamer.getResidentTileCount());
+        for (int row = -2; row <= 0; row++) {
+            for (int column = 0; column <= 2; column++) {
+                assertTrue(streamer.isResident(column, row));
+            }
+        }
+        assertEquals(9L * TILE_BYTES, streamer.getResidentBytes());
+        assertEquals(9, uploader.vertexUploads);
+        // Every tile draws from the one index buffer.
+        assertEquals(1, uploader.indexUploads);
+
+        // Nothing more is requested while the camera stays put.
+        moveTo(streamer, 1, -1);
+        assertEquals(9, source.opened.size());
+    }
+
+    @Test
+    public void dropsPendingTilesThatFellOutOfRange() throws Exception {
+        final TerrainStreamer streamer = createStreamer(1, 100 * TILE_BYTES);
+        streamer.update(0.5f * TILE_WORLD_SIZE, 0.5f * TILE_WORLD_SIZE, Long.MAX_VALUE);
+        // Move away before any of the builds finish.
+        streamer.update(5.5f * TILE_WORLD_SIZE, 0.5f * TILE_WORLD_SIZE, Long.MAX_VALUE);
+        workers.runAll();
+        streamer.update(5.5f * TILE_WORLD_SIZE, 0.5f * TILE_WORLD_SIZE, Long.MAX_VALUE);
+
+        assertEquals(9, streamer.getResidentTileCount());
+        assertEquals(9, uploader.vertexUploads);
+        assertFalse(streamer.isResident(0, 0));
+        assertTrue(streamer.isResident(5, 0));
+    }
+
+    @Test
+    public void neverOpensDroppedTiles() throws Exception {
+        final TerrainStreamer streamer = createStreamer(1, 100 * TILE_BYTES);
+        streamer.update(0.5f * TILE_WORLD_SIZE, 0.5f * TILE_WORLD_SIZE, Long.MAX_VALUE);
+        streamer.update(5.5f * TILE_WORLD_SIZE, 0.5f * TILE_WORLD_SIZE, Long.MAX_VALUE);
+        workers.runAll();
+
+        // Only the tiles around the new position were read.
+        assertEquals(9, source.opened.size());
+        for (long key : source.opened) {
+            assertTrue(key >> 32 >= 4);
+        }
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedTiles() throws Exception {
+        final TerrainStreamer streamer = createStreamer(1, 12 * TILE_BYTES);
+        moveTo(streamer, 0, 0);
+        moveTo(streamer, 1, 0);
+        // Column 2 was loaded after column -1, but column -1 was used
+        // more recently.
+        moveTo(streamer, 0, 0);
+        assertEquals(12, streamer.getResidentTileCount());
+        assertEquals(0, uploader.deletes);
+
+        moveTo(streamer, -1, 0);
+        assertEquals(12, streamer.getResidentTileCount());
+        assertEquals(12L * TILE_BYTES, streamer.getResidentBytes());
+        assertEquals(3, uploader.deletes);
+        for (int row = -1; row <= 1; row++) {
+            assertFalse(streamer.isResident(2, row));
+            assertTrue(streamer.isResident(-2, row));
+            assertTrue(streamer.isResident(1, row));
+        }
+    }
+
+    @Test
+    public void keepsTilesInUseThisFrameOverBudget() throws Exception {
+        final TerrainStreamer streamer = createStreamer(1, 5 * TILE_BYTES);
+        moveTo(streamer, 0, 0);
+        assertEquals(9, streamer.getResidentTileCount());
+        assertEquals(0, uploader.deletes);
+        assertEquals(9L * TILE_BYTES, streamer.getResidentBytes());
+    }
+
+    @Test
+    public void retriesFailedTilesOnlyAfterLeavingRange() throws Exception {
+        final TerrainStreamer streamer = createStreamer(1, 100 * TILE_BYTES);
+        source.failing.add(key(0, 0));
+        moveTo(streamer, 0, 0);
+        moveTo(streamer, 0, 0);
+        assertEquals(8, streamer.getResidentTileCount());
+        assertFalse(streamer.isResident(0, 0));
+        assertEquals(1, count(source.opened, key(0, 0)));
+
+        moveTo(streamer, 5, 0);
+        source.failing.clear();
+        moveTo(streamer, 0, 0);
+        assertEquals(2, count(source.opened, key(0, 0)));
+        assertTrue(streamer.isResident(0, 0));
+    }
+
+    @Test
+    public void releaseDeletesEverything() throws Exception {
+        final TerrainStreamer streamer = createStreamer(1, 100 * TILE_BYTES);
+        moveTo(streamer, 0, 0);
+        streamer.release();
+        assertEquals(9, uploader.deletes);
+        assertEquals(1, uploader.indexDeletes);
+        assertEquals(0L, streamer.getResidentBytes());
+        assertTrue(workers.isShutdown());
+    }
+
+    private TerrainStreamer createStreamer(int loadRadius, long byteBudget) {
+        return new TerrainStreamer(source, TILE_SIZE, TILE_WORLD_SIZE, 1f, loadRadius,
+                byteBudget, false, workers, uploader);
+    }
+
+    // Puts the camera in the middle of a tile for two frames, with the
+    // builds asked for in the first finished in time for the second.
+    private void moveTo(TerrainStreamer streamer, int column, int row) {
+        final float x = (column + 0.5f) * TILE_WORLD_SIZE;
+        final float z = (row + 0.5f) * TILE_WORLD_SIZE;
+        streamer.update(x, z, Long.MAX_VALUE);
+        workers.runAll();
+        streamer.update(x, z, Long.MAX_VALUE);
+    }
+
+    private static long key(int column, int row) {
+        return ((long) column << 32) | (row & 0xFFFFFFFFL);
+    }
+
+    private static int count(List<Long> keys, long key) {
+        int count = 0;
+        for (long each : keys) {
+            if (each == key) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static class ManualExecutor extends AbstractExecutorService {
+        private final List<Runnable> queued = new ArrayList<Runnable>();
+        private boolean shutdown;
+
+        void runAll() {
+            while (!queued.isEmpty()) {
+                queued.remove(0).run();
+            }
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            queued.add(command);
+        }
+
+        @Override
+        public void shutdown() {
+            shutdown = true;
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            shutdown = true;
+            final List<Runnable> pending = new ArrayList<Runnable>(queued);
+            queued.clear();
+            return pending;
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return shutdown;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return shutdown && queued.isEmpty();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return isTerminated();
+        }
+    }
+
+    private static class CountingUploader implements TerrainStreamer.BufferUploader {
+        int vertexUploads;
+        int indexUploads;
+        int deletes;
+        int indexDeletes;
+
+        @Override
+        public VertexBuffer uploadVertices(ByteBuffer vertexData) {
+            vertexUploads++;
+            return null;
+        }
+
+        @Override
+        public IndexBuffer uploadIndices(ByteBuffer indexData) {
+            indexUploads++;
+            return null;
+        }
+
+        @Override
+        public void delete(VertexBuffer vertexBuffer) {
+            deletes++;
+        }
+
+        @Override
+        public void delete(IndexBuffer indexBuffer) {
+            indexDeletes++;
+        }
+    }
+
+    // Flat tiles, remembering which were opened in what order.
+    private static class CountingSource implements TerrainStreamer.TileSource {
+        final List<Long> opened = new ArrayList<Long>();
+        final Set<Long> failing = new HashSet<Long>();
+
+        @Override
+        public HeightSource openTile(int column, int row, final int samples)
+                throws IOException {
+            opened.add(key(column, row));
+            if (failing.contains(key(column, row))) {
+                throw new IOException("Tile " + column + ", " + row + " is missing.");
+            }
+            return new HeightSource() {
+                @Override
+                public int getWidth() {
+                    return samples;
+                }
+
+                @Override
+                public int getHeight() {
+                    return samples;
+                }
+
+                @Override
+                public void readRows(float[] heights, int offset, int rowCount) {
+                    Arrays.fill(heights, offset, offset + rowCount * samples, 0.5f);
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.airhockey.android.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BoundingVolumeHierarchyTest {
+    private static final int COUNT = 700;
+
+    @Test
+    public void queriesMatchLinearScans() throws Exception {
+        final Random random = new Random(12);
+        final float[] boxes = new float[COUNT * Frustum.BOX_COMPONENT_COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            placeBox(random, boxes, i);
+        }
+        final BoundingVolumeHierarchy tree = new BoundingVolumeHierarchy(boxes, COUNT);
+        check(random, boxes, tree);
+
+        // Move a third of the objects, some a long way, and refit.
+        for (int i = 0; i < COUNT; i += 3) {
+            placeBox(random, boxes, i);
+        }
+        BoundingVolumeHierarchy.setSphere(boxes, 1, 0f, 0f, -5f, 0.5f);
+        tree.refit();
+        check(random, boxes, tree);
+
+        tree.rebuild();
+        check(random, boxes, tree);
+    }
+
+    @Test
+    public void handlesObjectsInOnePlace() throws Exception {
+        final float[] boxes = new float[10 * Frustum.BOX_COMPONENT_COUNT];
+        for (int i = 0; i < 10; i++) {
+            BoundingVolumeHierarchy.setSphere(boxes, i, 1f, 2f, 3f, 0.5f + i * 0.1f);
+        }
+        final BoundingVolumeHierarchy tree = new BoundingVolumeHierarchy(boxes, 10);
+        final float[] ray = {1f, 2f, -10f, 0f, 0f, 1f};
+        // The largest box is entered first.
+        assertEquals(9, tree.findNearest(ray, 0));
+        assertEquals(13f - 1.4f, tree.getNearestDistance(), 1e-5f);
+        assertEquals(10, tree.intersectRay(ray, 0, new int[10], new float[10]));
+    }
+
+    private static void placeBox(Random random, float[] boxes, int index) {
+        final int offset = index * Frustum.BOX_COMPONENT_COUNT;
+        final float x = (random.nextFloat() - 0.5f) * 40f;
+        final float y = (random.nextFloat() - 0.5f) * 40f;
+        final float z = random.nextFloat() * -50f + 10f;
+        boxes[offset] = x;
+        boxes[offset + 1] = y;
+        boxes[offset + 2] = z;
+        boxes[offset + 3] = x + random.nextFloat() * 3f;
+        boxes[offset + 4] = y + random.nextFloat() * 3f;
+        boxes[offset + 5] = z + random.nextFloat() * 3f;
+    }
+
+    private static void check(Random random, float[] boxes, BoundingVolumeHierarchy tree) {
+        final float[] distances = new float[COUNT];
+        final int[] hitIndices = new int[COUNT];
+        final float[] hitDistances = new float[COUNT];
+        final int[] expectedIndices = new int[COUNT];
+        final float[] expectedDistances = new float[COUNT];
+        final float[] minX = new float[COUNT];
+        final float[] minY = new float[COUNT];
+        final float[] minZ = new float[COUNT];
+        final float[] maxX = new float[COUNT];
+        final float[] maxY = new float[COUNT];
+        final float[] maxZ = new float[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            final int offset = i * Frustum.BOX_COMPONENT_COUNT;
+            minX[i] = boxes[offset];
+            minY[i] = boxes[offset + 1];
+            minZ[i] = boxes[offset + 2];
+            maxX[i] = boxes[offset + 3];
+            maxY[i] = boxes[offset + 4];
+            maxZ[i] = boxes[offset + 5];
+        }
+
+        int totalHits = 0;
+        for (int i = 0; i < 200; i++) {
+            final Geometry.Ray ray = new Geometry.Ray(
+                    new Geometry.Point(random.nextFloat() * 10f, random.nextFloat() * 10f, 15f),
+                    new Geometry.Vector(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f,
+                            -1f));
+            final float[] rayArray = {ray.point.x, ray.point.y, ray.point.z,
+                    ray.vector.x, ray.vector.y, ray.vector.z};
+            RayBatch.intersectBoxes(rayArray, 0, minX, minY, minZ, maxX, maxY, maxZ, COUNT,
+                    distances);
+
+            final int nearest = tree.findNearest(ray);
+            final int expectedNearest = RayBatch.findNearest(distances, COUNT);
+            assertEquals(expectedNearest < 0, nearest < 0);
+            if (nearest >= 0) {
+                assertEquals(distances[expectedNearest], tree.getNearestDistance(), 0f);
+                assertEquals(distances[nearest], tree.getNearestDistance(), 0f);
+            }
+
+            final int hitCount = tree.intersectRay(ray, hitIndices, hitDistances);
+            final int expectedCount = RayBatch.collectHits(distances, COUNT, Float.MAX_VALUE,
+                    expectedIndices, expectedDistances);
+            assertEquals(expectedCount, hitCount);
+            for (int j = 0; j < hitCount; j++) {
+                assertEquals(distances[hitIndices[j]], hitDistances[j], 0f);
+            }
+            final int[] sorted = Arrays.copyOf(hitIndices, hitCount);
+            Arrays.sort(sorted);
+            assertArrayEquals(Arrays.copyOf(expectedIndices, expectedCount), sorted);
+            totalHits += hitCount;
+        }
+        assertTrue(totalHits > 200);
+
+        // A 60 degree perspective view from the origin down -z.
+        final float[] projection = new float[16];
+        final float f = 1f / (float) Math.tan(Math.toRadians(30.0));
+        final float near = 1f;
+        final float far = 30f;
+        projection[0] = f;
+        projection[5] = f;
+        projection[10] = (far + near) / (near - far);
+        projection[11] = -1f;
+        projection[14] = 2f * far * near / (near - far);
+        final Frustum frustum = new Frustum();
+        frustum.update(projection);
+
+        final boolean[] visible = new boolean[COUNT];
+        final boolean[] expectedVisible = new boolean[COUNT];
+        final int visibleCount = tree.cull(frustum, visible);
+        assertEquals(frustum.cullBoxes(boxes, COUNT, expectedVisible), visibleCount);
+        assertArrayEquals(expectedVisible, visible);
+        assertTrue(visibleCount > 10 && visibleCount < COUNT - 10);
+    }
+}
@@ -0,0 +1,18 @@
+package com.airhockey.android.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FastRandomTest {
+    private static final int SAMPLES = 10000;
+
+    @Test
+    public void nextFloatIsInUnitRange() throws Exception {
+        final FastRandom random = new FastRandom(0);
+        for (int i = 0; i < SAMPLES; i++) {
+            final float value = random.nextFloat();
+            assertTrue(value >= 0f && value < 1f);
+        }
+    }
+}
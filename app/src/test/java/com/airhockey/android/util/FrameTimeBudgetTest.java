@@ -0,0 +1,73 @@
+package com.airhockey.android.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameTimeBudgetTest {
+    private static final float TARGET = 1f / 60f;
+
+    @Test
+    public void slowFramesScaleDownToMinimum() throws Exception {
+        final FrameTimeBudget budget = new FrameTimeBudget(TARGET, 0.25f);
+        assertEquals(1f, budget.getScale(), 0f);
+
+        float previousScale = 1f;
+        for (int i = 0; i < 20; i++) {
+            budget.onFrame(TARGET * 2f);
+            assertTrue(budget.getScale() <= previousScale);
+            previousScale = budget.getScale();
+        }
+        assertTrue(previousScale < 1f);
+
+        for (int i = 0; i < 1000; i++) {
+            budget.onFrame(TARGET * 2f);
+        }
+        assertEquals(0.25f, budget.getScale(), 0f);
+    }
+
+    @Test
+    public void fastFramesRecoverToFullScale() throws Exception {
+        final FrameTimeBudget budget = new FrameTimeBudget(TARGET, 0.1f);
+        for (int i = 0; i < 100; i++) {
+            budget.onFrame(TARGET * 3f);
+        }
+        final float loweredScale = budget.getScale();
+        assertTrue(loweredScale < 0.5f);
+
+        // Recovery is slower than the drop.
+        for (int i = 0; i < 30; i++) {
+            budget.onFrame(TARGET / 2f);
+        }
+        assertTrue(budget.getScale() > loweredScale);
+        assertTrue(budget.getScale() < 1f);
+
+        for (int i = 0; i < 1000; i++) {
+            budget.onFrame(TARGET / 2f);
+        }
+        assertEquals(1f, budget.getScale(), 0f);
+    }
+
+    @Test
+    public void framesOnTargetHoldScale() throws Exception {
+        final FrameTimeBudget budget = new FrameTimeBudget(TARGET, 0.1f);
+        for (int i = 0; i < 100; i++) {
+            budget.onFrame(TARGET * 3f);
+        }
+        final float scale = budget.getScale();
+        for (int i = 0; i < 100; i++) {
+            budget.onFrame(TARGET * 1.1f);
+        }
+        assertEquals(scale, budget.getScale(), 0f);
+    }
+
+    @Test
+    public void pausesAndBadTimesAreIgnored() throws Exception {
+        final FrameTimeBudget budget = new FrameTimeBudget(TARGET, 0.1f);
+        budget.onFrame(5f);
+        budget.onFrame(0f);
+        budget.onFrame(-1f);
+        assertEquals(1f, budget.getScale(), 0f);
+        assertEquals(TARGET, budget.getAverageFrameTime(), 0f);
+    }
+}
@@ -0,0 +1,36 @@
+package com.airhockey.android.util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrustumTest {
+    @Test
+    public void cullsAgainstPerspectiveProjection() throws Exception {
+        // Looking down -z from the origin, with near 1 and far 100.
+        final float[] projection = new float[16];
+        MatrixHelper.perspectiveM(projection, 90f, 1f, 1f, 100f);
+        final Frustum frustum = new Frustum();
+        frustum.update(projection);
+
+        assertTrue(frustum.intersectsSphere(0f, 0f, -10f, 0.5f));
+        assertFalse(frustum.intersectsSphere(0f, 0f, 10f, 0.5f));
+        assertFalse(frustum.intersectsSphere(0f, 0f, -102f, 1f));
+        // At z = -10 the sides are at x = +-10.
+        assertFalse(frustum.intersectsSphere(12f, 0f, -10f, 1f));
+        assertTrue(frustum.intersectsSphere(10.5f, 0f, -10f, 1f));
+
+        final float[] boxes = {
+                -1f, -1f, -11f, 1f, 1f, -9f,   // straight ahead
+                -1f, -1f, 9f, 1f, 1f, 11f,     // behind
+                9f, -1f, -11f, 11f, 1f, -9f,   // across the right plane
+                20f, -1f, -11f, 22f, 1f, -9f,  // off to the right
+        };
+        final boolean[] visible = new boolean[4];
+        assertEquals(2, frustum.cullBoxes(boxes, 4, visible));
+        assertTrue(visible[0]);
+        assertFalse(visible[1]);
+        assertTrue(visible[2]);
+        assertFalse(visible[3]);
+    }
+}
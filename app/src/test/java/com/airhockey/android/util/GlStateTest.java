@@ -0,0 +1,151 @@
+package com.airhockey.android.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+
+import static android.opengl.GLES20.*;
+import static org.junit.Assert.*;
+
+/**
+ * Checks which calls GlState passes on, through its counters. GLES20 does
+ * nothing in local tests.
+ */
+public class GlStateTest {
+    private final FloatBuffer clientData = FloatBuffer.allocate(16);
+
+    @Before
+    public void setUp() throws Exception {
+        GlState.reset();
+        GlState.beginFrame();
+    }
+
+    @Test
+    public void redundantCallsAreFiltered() throws Exception {
+        GlState.useProgram(3);
+        GlState.useProgram(3);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 5);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 5);
+        // Each target has its own binding.
+        GlState.bindBuffer(GL_ELEMENT_ARRAY_BUFFER, 5);
+        assertCalls(3, 2);
+
+        GlState.activeTexture(GL_TEXTURE0);
+        GlState.bindTexture(GL_TEXTURE_2D, 7);
+        GlState.bindTexture(GL_TEXTURE_2D, 7);
+        GlState.bindTexture(GL_TEXTURE_CUBE_MAP, 7);
+        GlState.activeTexture(GL_TEXTURE0);
+        GlState.activeTexture(GL_TEXTURE1);
+        // Each unit has its own bindings too.
+        GlState.bindTexture(GL_TEXTURE_2D, 7);
+        GlState.activeTexture(GL_TEXTURE0);
+        GlState.bindTexture(GL_TEXTURE_2D, 7);
+        assertCalls(6, 3);
+
+        GlState.enable(GL_BLEND);
+        GlState.enable(GL_BLEND);
+        GlState.disable(GL_BLEND);
+        GlState.enable(GL_DEPTH_TEST);
+        GlState.blendFunc(GL_ONE, GL_ONE);
+        GlState.blendFunc(GL_ONE, GL_ONE);
+        GlState.blendFunc(GL_ONE, GL_ZERO);
+        GlState.depthMask(false);
+        GlState.depthMask(false);
+        GlState.depthFunc(GL_LEQUAL);
+        GlState.depthFunc(GL_LEQUAL);
+        assertCalls(7, 4);
+    }
+
+    @Test
+    public void attributePointersAreFiltered() throws Exception {
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 5);
+        // The pointer and the enable.
+        GlState.vertexAttribPointer(1, 3, GL_FLOAT, false, 24, 0);
+        assertCalls(3, 0);
+
+        GlState.vertexAttribPointer(1, 3, GL_FLOAT, false, 24, 0);
+        assertCalls(0, 2);
+
+        GlState.vertexAttribPointer(1, 3, GL_FLOAT, false, 24, 12);
+        assertCalls(1, 1);
+
+        // The same layout in another buffer.
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 6);
+        GlState.vertexAttribPointer(1, 3, GL_FLOAT, false, 24, 12);
+        assertCalls(2, 1);
+    }
+
+    @Test
+    public void deletingForgetsBindings() throws Exception {
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 5);
+        GlState.vertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
+        GlState.deleteBuffer(5);
+        // Deleting a bound buffer leaves 0 bound.
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 0);
+        assertCalls(4, 1);
+
+        // The name may come back for a new buffer, which needs setting up.
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 5);
+        GlState.vertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
+        assertCalls(2, 1);
+
+        GlState.activeTexture(GL_TEXTURE0);
+        GlState.bindTexture(GL_TEXTURE_2D, 9);
+        GlState.deleteTexture(9);
+        GlState.bindTexture(GL_TEXTURE_2D, 0);
+        GlState.bindTexture(GL_TEXTURE_2D, 9);
+        assertCalls(4, 1);
+    }
+
+    @Test
+    public void clientSideDataUnbindsArrayBuffer() throws Exception {
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 5);
+        GlState.vertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
+        assertCalls(3, 0);
+
+        // Unbinding, the pointer and the filtered enable.
+        GlState.vertexAttribPointer(0, 3, GL_FLOAT, false, 0, clientData);
+        assertCalls(2, 1);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 0);
+        assertCalls(0, 1);
+
+        // The buffer's pointer has to be set again.
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 5);
+        GlState.vertexAttribPointer(0, 3, GL_FLOAT, false, 0, 0);
+        assertCalls(2, 1);
+    }
+
+    @Test
+    public void countsRollOverEachFrame() throws Exception {
+        GlState.useProgram(1);
+        GlState.useProgram(1);
+        GlState.beginFrame();
+        assertEquals(1, GlState.getIssuedCallCount());
+        assertEquals(1, GlState.getFilteredCallCount());
+
+        // Nothing happened in the frame since.
+        GlState.beginFrame();
+        assertEquals(0, GlState.getIssuedCallCount());
+        assertEquals(0, GlState.getFilteredCallCount());
+    }
+
+    @Test
+    public void resetForgetsEverything() throws Exception {
+        GlState.useProgram(1);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 2);
+        GlState.enable(GL_BLEND);
+        GlState.reset();
+        GlState.useProgram(1);
+        GlState.bindBuffer(GL_ARRAY_BUFFER, 2);
+        GlState.enable(GL_BLEND);
+        assertCalls(6, 0);
+    }
+
+    // Checks the calls since the last check.
+    private static void assertCalls(int issued, int filtered) {
+        GlState.beginFrame();
+        assertEquals(issued, GlState.getIssuedCallCount());
+        assertEquals(filtered, GlState.getFilteredCallCount());
+    }
+}
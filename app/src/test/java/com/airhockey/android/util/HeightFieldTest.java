@@ -0,0 +1,140 @@
+package com.airhockey.android.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HeightFieldTest {
+    @Test
+    public void rayCastMatchesBruteForce() throws Exception {
+        // Not a power of two, and not square.
+        final int columns = 45;
+        final int rows = 30;
+        final Random random = new Random(4);
+        final float[] heights = new float[columns * rows];
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = random.nextFloat();
+        }
+        final HeightField field = new HeightField(heights, columns, rows)
+                .scaled(100f, 10f, 60f);
+
+        int hits = 0;
+        for (int i = 0; i < 2000; i++) {
+            final float ox = (random.nextFloat() - 0.5f) * 150f;
+            final float oy = random.nextFloat() * 20f;
+            final float oz = (random.nextFloat() - 0.5f) * 90f;
+            final float dx = random.nextFloat() - 0.5f;
+            final float dy = -random.nextFloat() * 0.3f;
+            final float dz = random.nextFloat() - 0.5f;
+
+            final float expected = bruteForce(heights, columns, rows,
+                    ox / 100f, oy / 10f, oz / 60f, dx / 100f, dy / 10f, dz / 60f);
+            final float actual = field.intersectRay(ox, oy, oz, dx, dy, dz);
+            if (expected < 0f) {
+                assertEquals(HeightField.NO_INTERSECTION, actual, 0f);
+            } else {
+                assertEquals("ray " + i, expected, actual, 1e-3f * Math.max(1f, expected));
+                hits++;
+            }
+        }
+        assertTrue(hits > 500);
+    }
+
+    @Test
+    public void verticalRayHitsSample() throws Exception {
+        final float[] heights = {0f, 0.25f, 0.5f, 0.75f, 1f, 0.5f, 0.2f, 0.1f, 0f};
+        final HeightField field = new HeightField(heights, 3, 3).scaled(2f, 4f, 2f);
+
+        // Straight down onto the centre sample, at x = 0 and z = 0.
+        final Geometry.Point hit = field.intersectionPoint(new Geometry.Ray(
+                new Geometry.Point(0f, 10f, 0f), new Geometry.Vector(0f, -1f, 0f)));
+        assertNotNull(hit);
+        assertEquals(4f * 1f, hit.y, 1e-5f);
+        assertEquals(field.heightAt(0f, 0f), hit.y, 1e-5f);
+
+        // Pointing away from the terrain.
+        assertNull(field.intersectionPoint(new Geometry.Ray(
+                new Geometry.Point(0f, 10f, 0f), new Geometry.Vector(0f, 1f, 0f))));
+    }
+
+    @Test
+    public void updateRegionMatchesNewField() throws Exception {
+        final int columns = 40;
+        final int rows = 33;
+        final Random random = new Random(6);
+        final float[] heights = new float[columns * rows];
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = random.nextFloat() * 0.2f;
+        }
+        final HeightField field = new HeightField(heights, columns, rows);
+
+        // Raise a block that rays would otherwise pass over.
+        for (int row = 10; row < 14; row++) {
+            for (int col = 20; col < 31; col++) {
+                heights[row * columns + col] = 0.9f;
+            }
+        }
+        field.updateRegion(10, 14, 20, 31);
+        final HeightField expected = new HeightField(heights.clone(), columns, rows);
+
+        for (int i = 0; i < 500; i++) {
+            final float ox = random.nextFloat() - 0.5f;
+            final float oz = random.nextFloat() - 0.5f;
+            final float dx = random.nextFloat() - 0.5f;
+            final float dz = random.nextFloat() - 0.5f;
+            assertEquals(expected.intersectRay(ox, 1f, oz, dx, -0.5f, dz),
+                    field.intersectRay(ox, 1f, oz, dx, -0.5f, dz), 0f);
+        }
+    }
+
+    // Tests every triangle of the grid, in grid space scaled to 1x1x1.
+    private static float bruteForce(float[] heights, int columns, int rows,
+                                    float ox, float oy, float oz,
+                                    float dx, float dy, float dz) {
+        float nearest = -1f;
+        for (int row = 0; row < rows - 1; row++) {
+            for (int col = 0; col < columns - 1; col++) {
+                final float[] tl = point(heights, columns, rows, row, col);
+                final float[] tr = point(heights, columns, rows, row, col + 1);
+                final float[] bl = point(heights, columns, rows, row + 1, col);
+                final float[] br = point(heights, columns, rows, row + 1, col + 1);
+                final float[][] triangles = {tl, bl, tr, tr, bl, br};
+                for (int i = 0; i < 6; i += 3) {
+                    final float t = intersect(ox, oy, oz, dx, dy, dz,
+                            triangles[i], triangles[i + 1], triangles[i + 2]);
+                    if (t >= 0f && (nearest < 0f || t < nearest)) {
+                        nearest = t;
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    private static float[] point(float[] heights, int columns, int rows, int row, int col) {
+        return new float[]{(float) col / (columns - 1) - 0.5f, heights[row * columns + col],
+                (float) row / (rows - 1) - 0.5f};
+    }
+
+    private static float intersect(float ox, float oy, float oz, float dx, float dy, float dz,
+                                   float[] a, float[] b, float[] c) {
+        final Geometry.Vector e1 = new Geometry.Vector(b[0] - a[0], b[1] - a[1], b[2] - a[2]);
+        final Geometry.Vector e2 = new Geometry.Vector(c[0] - a[0], c[1] - a[1], c[2] - a[2]);
+        final Geometry.Vector d = new Geometry.Vector(dx, dy, dz);
+        final Geometry.Vector p = d.crossProduct(e2);
+        final float determinant = e1.dotProduct(p);
+        if (Math.abs(determinant) < 1e-12f) {
+            return -1f;
+        }
+        final Geometry.Vector s = new Geometry.Vector(ox - a[0], oy - a[1], oz - a[2]);
+        final float u = s.dotProduct(p) / determinant;
+        final Geometry.Vector q = s.crossProduct(e1);
+        final float v = d.dotProduct(q) / determinant;
+        if (u < 0f || v < 0f || u + v > 1f) {
+            return -1f;
+        }
+        return e2.dotProduct(q) / determinant;
+    }
+}
@@ -0,0 +1,223 @@
+package com.airhockey.android.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the affine routines against general ones. android.opengl.Matrix
+ * isn't available to local tests, so the general routines are written out
+ * here the way it computes them.
+ */
+public class MatrixHelperTest {
+    private static final float EPSILON = 1e-5f;
+
+    @Test
+    public void affineRoutinesMatchGeneralOnes() throws Exception {
+        final Random random = new Random(13);
+        final float[] lhs = new float[16];
+        final float[] rhs = new float[16];
+        final float[] rigid = new float[16];
+        final float[] expected = new float[16];
+        final float[] actual = new float[20];
+        final float[] temp = new float[16];
+
+        for (int i = 0; i < 1000; i++) {
+            randomAffine(random, lhs, true);
+            randomAffine(random, rhs, true);
+            randomAffine(random, rigid, false);
+
+            multiply(expected, lhs, rhs);
+            // At an offset, to check the offsets are honoured.
+            MatrixHelper.multiplyAffineMM(actual, 4, lhs, 0, rhs, 0);
+            assertMatrixEquals(expected, actual, 4, 16);
+
+            invert(expected, rigid);
+            MatrixHelper.invertRigidM(actual, 0, rigid, 0);
+            assertMatrixEquals(expected, actual, 0, 16);
+
+            invert(temp, lhs);
+            transpose(expected, temp);
+            MatrixHelper.normalMatrixM(actual, 0, lhs, 0);
+            // Only the upper 3x3 matters for normals.
+            for (int column = 0; column < 3; column++) {
+                for (int row = 0; row < 3; row++) {
+                    final int index = column * 4 + row;
+                    assertEquals(expected[index], actual[index],
+                            EPSILON * Math.max(1f, Math.abs(expected[index])));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void quaternionsMatchAxisAngleRotation() throws Exception {
+        final Random random = new Random(14);
+        final float[] first = new float[4];
+        final float[] second = new float[4];
+        final float[] expected = new float[16];
+        final float[] a = new float[16];
+        final float[] b = new float[16];
+        final float[] actual = new float[16];
+
+        for (int i = 0; i < 1000; i++) {
+            final float angle1 = (random.nextFloat() - 0.5f) * 720f;
+            final float angle2 = (random.nextFloat() - 0.5f) * 720f;
+            final float x = random.nextFloat() - 0.5f;
+            final float y = random.nextFloat() - 0.5f;
+            final float z = random.nextFloat() - 0.5f;
+            setRotate(a, angle1, x, y, z);
+            setRotate(b, angle2, z, x, y);
+            multiply(expected, a, b);
+
+            MatrixHelper.setRotateQuaternion(first, 0, angle1, x, y, z);
+            MatrixHelper.setRotateQuaternion(second, 0, angle2, z, x, y);
+            MatrixHelper.multiplyQuaternion(first, 0, first, 0, second, 0);
+            MatrixHelper.setRotateQuaternionM(actual, 0, first, 0);
+            assertMatrixEquals(expected, actual, 0, 16);
+        }
+    }
+
+    @Test
+    public void eulerRotationMatchesMatrix() throws Exception {
+        final Random random = new Random(15);
+        final float[] rotation = new float[16];
+        final float[] vector = new float[3];
+        final float[] actual = new float[3];
+
+        for (int i = 0; i < 1000; i++) {
+            final float x = (random.nextFloat() - 0.5f) * 360f;
+            final float y = (random.nextFloat() - 0.5f) * 360f;
+            final float z = (random.nextFloat() - 0.5f) * 360f;
+            for (int k = 0; k < 3; k++) {
+                vector[k] = random.nextFloat() - 0.5f;
+            }
+            // Rz(-z) * Ry(-y) * Rx(-x), as setRotateEulerM2 builds it.
+            final float[] rx = new float[16];
+            final float[] ry = new float[16];
+            final float[] rz = new float[16];
+            final float[] temp = new float[16];
+            setRotate(rx, -x, 1f, 0f, 0f);
+            setRotate(ry, -y, 0f, 1f, 0f);
+            setRotate(rz, -z, 0f, 0f, 1f);
+            multiply(temp, rz, ry);
+            multiply(rotation, temp, rx);
+
+            MatrixHelper.rotateEulerV(actual, 0, vector, 0, x, y, z);
+            for (int row = 0; row < 3; row++) {
+                final float expected = rotation[row] * vector[0] + rotation[4 + row] * vector[1]
+                        + rotation[8 + row] * vector[2];
+                assertEquals(expected, actual[row], EPSILON);
+            }
+        }
+    }
+
+    // A random rotation and translation, scaled on each axis if scaled.
+    private static void randomAffine(Random random, float[] m, boolean scaled) {
+        setRotate(m, random.nextFloat() * 360f, random.nextFloat() - 0.5f,
+                random.nextFloat() - 0.5f, random.nextFloat() - 0.5f);
+        for (int column = 0; column < 3; column++) {
+            final float scale = scaled ? 0.5f + random.nextFloat() * 4f : 1f;
+            for (int row = 0; row < 3; row++) {
+                m[column * 4 + row] *= scale;
+            }
+        }
+        for (int row = 0; row < 3; row++) {
+            m[12 + row] = (random.nextFloat() - 0.5f) * 20f;
+        }
+    }
+
+    // As Matrix.setRotateM.
+    private static void setRotate(float[] m, float a, float x, float y, float z) {
+        java.util.Arrays.fill(m, 0f);
+        m[15] = 1f;
+        final double radians = Math.toRadians(a);
+        final float s = (float) Math.sin(radians);
+        final float c = (float) Math.cos(radians);
+        final float length = (float) Math.sqrt(x * x + y * y + z * z);
+        x /= length;
+        y /= length;
+        z /= length;
+        final float nc = 1f - c;
+        final float xy = x * y, yz = y * z, zx = z * x;
+        final float xs = x * s, ys = y * s, zs = z * s;
+        m[0] = x * x * nc + c;
+        m[4] = xy * nc - zs;
+        m[8] = zx * nc + ys;
+        m[1] = xy * nc + zs;
+        m[5] = y * y * nc + c;
+        m[9] = yz * nc - xs;
+        m[2] = zx * nc - ys;
+        m[6] = yz * nc + xs;
+        m[10] = z * z * nc + c;
+    }
+
+    private static void multiply(float[] result, float[] lhs, float[] rhs) {
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++) {
+                float sum = 0f;
+                for (int k = 0; k < 4; k++) {
+                    sum += lhs[k * 4 + row] * rhs[column * 4 + k];
+                }
+                result[column * 4 + row] = sum;
+            }
+        }
+    }
+
+    private static void transpose(float[] result, float[] m) {
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++) {
+                result[column * 4 + row] = m[row * 4 + column];
+            }
+        }
+    }
+
+    // Gauss-Jordan elimination with partial pivoting, in doubles.
+    private static void invert(float[] result, float[] m) {
+        final double[][] a = new double[4][8];
+        for (int row = 0; row < 4; row++) {
+            for (int column = 0; column < 4; column++) {
+                a[row][column] = m[column * 4 + row];
+            }
+            a[row][4 + row] = 1.0;
+        }
+        for (int column = 0; column < 4; column++) {
+            int pivot = column;
+            for (int row = column + 1; row < 4; row++) {
+                if (Math.abs(a[row][column]) > Math.abs(a[pivot][column])) {
+                    pivot = row;
+                }
+            }
+            final double[] swap = a[column];
+            a[column] = a[pivot];
+            a[pivot] = swap;
+            final double divisor = a[column][column];
+            for (int k = 0; k < 8; k++) {
+                a[column][k] /= divisor;
+            }
+            for (int row = 0; row < 4; row++) {
+                if (row != column) {
+                    final double factor = a[row][column];
+                    for (int k = 0; k < 8; k++) {
+                        a[row][k] -= factor * a[column][k];
+                    }
+                }
+            }
+        }
+        for (int row = 0; row < 4; row++) {
+            for (int column = 0; column < 4; column++) {
+                result[column * 4 + row] = (float) a[row][4 + column];
+            }
+        }
+    }
+
+    private static void assertMatrixEquals(float[] expected, float[] actual, int offset,
+                                           int length) {
+        for (int i = 0; i < length; i++) {
+            assertEquals("element " + i, expected[i], actual[offset + i],
+                    EPSILON * Math.max(1f, Math.abs(expected[i])));
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.airhockey.android.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RayBatchTest {
+    private static final int COUNT = 1000;
+
+    @Test
+    public void spheresMatchSingleTests() throws Exception {
+        final Random random = new Random(11);
+        final float[] x = new float[COUNT];
+        final float[] y = new float[COUNT];
+        final float[] z = new float[COUNT];
+        final float[] radii = new float[COUNT];
+        for (int i = 0; i < COUNT; i++) {
+            x[i] = (random.nextFloat() - 0.5f) * 10f;
+            y[i] = (random.nextFloat() - 0.5f) * 10f;
+            z[i] = (random.nextFloat() - 0.5f) * 10f;
+            radii[i] = random.nextFloat() * 2f;
+        }
+        final float[] ray = {0.5f, -1f, 2f, 0.3f, 0.1f, -0.6f};
+        final float[] distances = new float[COUNT];
+        RayBatch.intersectSpheres(ray, 0, x, y, z, radii, COUNT, distances);
+
+        int hits = 0;
+        for (int i = 0; i < COUNT; i++) {
+            final Geometry.Ray geometryRay = new Geometry.Ray(
+                    new Geometry.Point(ray[0], ray[1], ray[2]),
+                    new Geometry.Vector(ray[3], ray[4], ray[5]));
+            final Geometry.Point center = new Geometry.Point(x[i], y[i], z[i]);
+            final boolean lineHits = Geometry.intersects(
+                    new Geometry.Sphere(center, radii[i]), geometryRay);
+            // Geometry tests the whole line; the batch only counts hits in
+            // front of the ray's point.
+            final Geometry.Vector toCenter = Geometry.vectorBetween(geometryRay.point, center);
+            final boolean inFront = toCenter.dotProduct(geometryRay.vector) >= 0f
+                    || toCenter.length() <= radii[i];
+            if (Math.abs(Geometry.distanceBetween(center, geometryRay) - radii[i]) < 1e-3f) {
+                // Too close to tangent to agree on.
+                continue;
+            }
+            assertTrue("sphere " + i,
+                    (lineHits && inFront) == (distances[i] != RayBatch.NO_HIT));
+            if (distances[i] > 0f && distances[i] != RayBatch.NO_HIT) {
+                // On the surface.
+                final float hitX = ray[0] + ray[3] * distances[i] - x[i];
+                final float hitY = ray[1] + ray[4] * distances[i] - y[i];
+                final float hitZ = ray[2] + ray[5] * distances[i] - z[i];
+                assertEquals(radii[i], (float) Math.sqrt(hitX * hitX + hitY * hitY + hitZ * hitZ),
+                        1e-3f);
+                hits++;
+            }
+        }
+        assertTrue(hits > 10);
+    }
+
+    @Test
+    public void boxesHandleAxisAlignedRays() throws Exception {
+        final float[] minX = {0f, 2f, -1f, 0f};
+        final float[] minY = {0f, 0f, -1f, 0f};
+        final float[] minZ = {0f, 0f, -1f, -9f};
+        final float[] maxX = {1f, 3f, 1f, 1f};
+        final float[] maxY = {1f, 1f, 1f, 1f};
+        final float[] maxZ = {1f, 1f, 1f, -8f};
+        // Along z, starting on the boxes' minX plane.
+        final float[] ray = {0f, 0.5f, -5f, 0f, 0f, 2f};
+        final float[] distances = new float[4];
+        RayBatch.intersectBoxes(ray, 0, minX, minY, minZ, maxX, maxY, maxZ, 4, distances);
+
+        assertEquals(2.5f, distances[0], 0f);
+        // Off to the side.
+        assertEquals(RayBatch.NO_HIT, distances[1], 0f);
+        assertEquals(2f, distances[2], 0f);
+        // Behind the ray.
+        assertEquals(RayBatch.NO_HIT, distances[3], 0f);
+        assertEquals(2, RayBatch.findNearest(distances, 4));
+
+        final int[] hitIndices = new int[4];
+        final float[] hitDistances = new float[4];
+        assertEquals(2, RayBatch.collectHits(distances, 4, Float.MAX_VALUE,
+                hitIndices, hitDistances));
+        assertEquals(0, hitIndices[0]);
+        assertEquals(2, hitIndices[1]);
+        assertEquals(2f, hitDistances[1], 0f);
+        assertEquals(1, RayBatch.collectHits(distances, 4, 2.2f, hitIndices, hitDistances));
+        // No limit still leaves out the misses.
+        assertEquals(2, RayBatch.collectHits(distances, 4, Float.POSITIVE_INFINITY,
+                hitIndices, hitDistances));
+        assertEquals(0, hitIndices[0]);
+        assertEquals(2, hitIndices[1]);
+
+        // Starting inside.
+        ray[2] = 0.5f;
+        RayBatch.intersectBoxes(ray, 0, minX, minY, minZ, maxX, maxY, maxZ, 4, distances);
+        assertEquals(0f, distances[0], 0f);
+        assertEquals(RayBatch.NO_HIT, distances[3], 0f);
+        assertEquals(-1, RayBatch.findNearest(distances, 0));
+    }
+}
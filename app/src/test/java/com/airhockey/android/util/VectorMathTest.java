@@ -0,0 +1,86 @@
+package com.airhockey.android.util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class VectorMathTest {
+    @Test
+    public void matchesGeometryExactly() throws Exception {
+        final Random random = new Random(7);
+        final float[] a = new float[3];
+        final float[] b = new float[3];
+        final float[] out = new float[4];
+        final float[] ray = new float[VectorMath.RAY_COMPONENT_COUNT];
+        final float[] plane = new float[VectorMath.PLANE_COMPONENT_COUNT];
+        final float[] sphere = new float[VectorMath.SPHERE_COMPONENT_COUNT];
+
+        for (int i = 0; i < 10000; i++) {
+            fill(random, a);
+            fill(random, b);
+            final Geometry.Point pointA = new Geometry.Point(a[0], a[1], a[2]);
+            final Geometry.Point pointB = new Geometry.Point(b[0], b[1], b[2]);
+            final Geometry.Vector vectorA = new Geometry.Vector(a[0], a[1], a[2]);
+            final Geometry.Vector vectorB = new Geometry.Vector(b[0], b[1], b[2]);
+
+            // Written at an offset, to check the offsets are honoured.
+            VectorMath.translate(out, 1, a, 0, b, 0);
+            assertSame(pointA.translate(vectorB), out, 1);
+            VectorMath.translateY(out, 1, a, 0, b[1]);
+            assertSame(pointA.translateY(b[1]), out, 1);
+            VectorMath.vectorBetween(out, 1, a, 0, b, 0);
+            assertSame(Geometry.vectorBetween(pointA, pointB), out, 1);
+            VectorMath.crossProduct(out, 1, a, 0, b, 0);
+            assertSame(vectorA.crossProduct(vectorB), out, 1);
+            VectorMath.scale(out, 1, a, 0, b[2]);
+            assertSame(vectorA.scale(b[2]), out, 1);
+            VectorMath.normalize(out, 1, a, 0);
+            assertSame(vectorA.normalize(), out, 1);
+            assertEquals(vectorA.length(), VectorMath.length(a, 0), 0f);
+            assertEquals(vectorA.dotProduct(vectorB), VectorMath.dotProduct(a, 0, b, 0), 0f);
+
+            fill(random, ray);
+            fill(random, plane);
+            fill(random, sphere);
+            final Geometry.Ray geometryRay = new Geometry.Ray(
+                    new Geometry.Point(ray[0], ray[1], ray[2]),
+                    new Geometry.Vector(ray[3], ray[4], ray[5]));
+            VectorMath.intersectionPoint(out, 1, ray, 0, plane, 0);
+            assertSame(Geometry.intersectionPoint(geometryRay, new Geometry.Plane(
+                    new Geometry.Point(plane[0], plane[1], plane[2]),
+                    new Geometry.Vector(plane[3], plane[4], plane[5]))), out, 1);
+            assertEquals(Geometry.distanceBetween(pointA, geometryRay),
+                    VectorMath.distanceBetween(a, 0, ray, 0), 0f);
+            assertEquals(Geometry.intersects(new Geometry.Sphere(
+                    new Geometry.Point(sphere[0], sphere[1], sphere[2]), sphere[3]), geometryRay),
+                    VectorMath.intersects(sphere, 0, ray, 0));
+        }
+    }
+
+    @Test
+    public void crossProductMayOverwriteItsInput() throws Exception {
+        final float[] a = {1f, 2f, 3f};
+        VectorMath.crossProduct(a, 0, a, 0, new float[]{-2f, 0.5f, 4f}, 0);
+        assertArrayEquals(new float[]{6.5f, -10f, 4.5f}, a, 0f);
+    }
+
+    private static void fill(Random random, float[] values) {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (random.nextFloat() - 0.5f) * 20f;
+        }
+    }
+
+    private static void assertSame(Geometry.Point expected, float[] actual, int offset) {
+        assertEquals(expected.x, actual[offset], 0f);
+        assertEquals(expected.y, actual[offset + 1], 0f);
+        assertEquals(expected.z, actual[offset + 2], 0f);
+    }
+
+    private static void assertSame(Geometry.Vector expected, float[] actual, int offset) {
+        assertEquals(expected.x, actual[offset], 0f);
+        assertEquals(expected.y, actual[offset + 1], 0f);
+        assertEquals(expected.z, actual[offset + 2], 0f);
+    }
+}